@@ -0,0 +1,229 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog;
+
+import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
+import org.sakaiproject.nakamura.grouper.changelog.util.LruCache;
+
+/**
+ * Remembers how grouper names map to Sakai OAE.
+ *
+ * Each changelog entry asks for the group id, world type, institutional flag and
+ * so on several times, and resolving a course group id runs a regex and a Jexl
+ * template. The answers only depend on the configuration so they're kept until
+ * this object is thrown away with the configuration. The cache holds at most
+ * maxSize names and evicts the least recently used first.
+ *
+ * Each part of a name's resolution is worked out the first time it's asked for,
+ * so names that are only checked and ignored never run the template.
+ * {@link #getWorldId(String)} is a cheap string operation and isn't cached.
+ */
+public class CachingGroupIdManager implements GroupIdManager {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	// Marks a part of the resolution we haven't worked out yet. null is a valid answer.
+	private static final String UNRESOLVED = new String("UNRESOLVED");
+
+	private final GroupIdManager delegate;
+
+	private final LruCache<String, Resolution> resolutions;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Everything we know about one grouper name.
+	 */
+	private static class Resolution {
+		volatile String groupId = UNRESOLVED;
+		volatile String worldType = UNRESOLVED;
+		volatile String applicationGroupName = UNRESOLVED;
+		volatile String allGroupName = UNRESOLVED;
+		volatile Boolean institutional;
+		volatile Boolean includeExcludeSubGroup;
+	}
+
+	public CachingGroupIdManager(GroupIdManager delegate){
+		this(delegate, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param delegate does the actual work
+	 * @param maxSize the most grouper names to remember
+	 */
+	public CachingGroupIdManager(GroupIdManager delegate, int maxSize){
+		this.delegate = delegate;
+		this.resolutions = new LruCache<String, Resolution>(maxSize);
+	}
+
+	/**
+	 * @return the resolution for this name, creating an empty one if needed.
+	 */
+	private synchronized Resolution resolution(String grouperName){
+		Resolution r = resolutions.get(grouperName);
+		if (r == null){
+			r = new Resolution();
+			resolutions.put(grouperName, r);
+		}
+		return r;
+	}
+
+	private synchronized void record(boolean hit){
+		if (hit){
+			hits++;
+		}
+		else {
+			misses++;
+		}
+	}
+
+	// The delegate is called outside the lock. Two threads may both work out the
+	// same answer but it's always the same answer.
+
+	public String getGroupId(String grouperName) {
+		if (grouperName == null){
+			return delegate.getGroupId(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		String value = r.groupId;
+		record(value != UNRESOLVED);
+		if (value == UNRESOLVED){
+			value = delegate.getGroupId(grouperName);
+			r.groupId = value;
+		}
+		return value;
+	}
+
+	public String getWorldType(String grouperName) {
+		if (grouperName == null){
+			return delegate.getWorldType(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		String value = r.worldType;
+		record(value != UNRESOLVED);
+		if (value == UNRESOLVED){
+			value = delegate.getWorldType(grouperName);
+			r.worldType = value;
+		}
+		return value;
+	}
+
+	public String getApplicationGroupName(String grouperName) {
+		if (grouperName == null){
+			return delegate.getApplicationGroupName(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		String value = r.applicationGroupName;
+		record(value != UNRESOLVED);
+		if (value == UNRESOLVED){
+			value = delegate.getApplicationGroupName(grouperName);
+			r.applicationGroupName = value;
+		}
+		return value;
+	}
+
+	public String getAllGroupName(String grouperName) {
+		if (grouperName == null){
+			return delegate.getAllGroupName(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		String value = r.allGroupName;
+		record(value != UNRESOLVED);
+		if (value == UNRESOLVED){
+			value = delegate.getAllGroupName(grouperName);
+			r.allGroupName = value;
+		}
+		return value;
+	}
+
+	public boolean isInstitutional(String grouperName) {
+		if (grouperName == null){
+			return delegate.isInstitutional(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		Boolean value = r.institutional;
+		record(value != null);
+		if (value == null){
+			value = delegate.isInstitutional(grouperName);
+			r.institutional = value;
+		}
+		return value;
+	}
+
+	public boolean isIncludeExcludeSubGroup(String grouperName) {
+		if (grouperName == null){
+			return delegate.isIncludeExcludeSubGroup(grouperName);
+		}
+		Resolution r = resolution(grouperName);
+		Boolean value = r.includeExcludeSubGroup;
+		record(value != null);
+		if (value == null){
+			value = delegate.isIncludeExcludeSubGroup(grouperName);
+			r.includeExcludeSubGroup = value;
+		}
+		return value;
+	}
+
+	public String getWorldId(String groupId) {
+		return delegate.getWorldId(groupId);
+	}
+
+	/**
+	 * Forget everything. Use when the configuration changes.
+	 */
+	public synchronized void invalidateAll(){
+		resolutions.clear();
+	}
+
+	public GroupIdManager getDelegate() {
+		return delegate;
+	}
+
+	public synchronized int size(){
+		return resolutions.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return resolutions.getEvictions();
+	}
+
+	/**
+	 * @return the fraction of lookups answered from the cache.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return (lookups == 0)? 0.0 : (double)hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "CachingGroupIdManager[size=" + resolutions.size() + "/" + resolutions.getMaxSize() +
+			" hits=" + hits +
+			" misses=" + misses +
+			" hitRate=" + String.format("%.2f", getHitRate()) +
+			" evictions=" + resolutions.getEvictions() + "]";
+	}
+}
@@ -16,23 +16,29 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog;
 
-import java.util.HashSet;
-import java.util.Set;
-
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Classification;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Kind;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Origin;
 
 import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
 
+/**
+ * Maps grouper names to OAE group ids based on which of the configured stems they're in.
+ *
+ * Each of the stem properties can list more than one stem separated by commas.
+ * The first provisioned stem of each kind is where institutional groups are mirrored.
+ */
 public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupIdManager {
 
 	private static Log log = LogFactory.getLog(GroupIdManagerImpl.class);
 
-	private Set<String> stems;
-	private Set<String> provisonedStems;
-	private Set<String> adhocStems;
+	// Replaced, never changed, so readers don't need a lock
+	private volatile StemClassifier classifier;
 
 	private TemplateGroupIdAdapter templateGroupIdAdapter;
 	private SimpleGroupIdAdapter simpleGroupIdAdapter;
@@ -56,9 +62,7 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 	public static final String PROP_INST_COURSE_GROUPS_STEM = "institutional.coursegroups.stem";
 
 	public GroupIdManagerImpl(){
-		stems = new HashSet<String>();
-		provisonedStems = new HashSet<String>();
-		adhocStems = new HashSet<String>();
+		classifier = new StemClassifier();
 	}
 
 	@Override
@@ -69,25 +73,13 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 		}
 
 		StringBuilder groupId = new StringBuilder();
-		if (isAdhoc(grouperName)){
-			for (String astem : adhocStems){
-				if (grouperName.startsWith(astem)){
-					groupId.append(simpleGroupIdAdapter.getGroupId(grouperName.substring(astem.length() + 1)));
-					break;
-				}
+		Classification c = classifier.classify(grouperName);
+		if (c != null){
+			if (!c.isAdhoc() && c.isCourse()){
+				groupId.append(templateGroupIdAdapter.getGroupId(c.remainder));
 			}
-		}
-		else if (isProvisioned(grouperName) || isInstitutional(grouperName)){
-			for (String pstem : provisonedStems){
-				if (grouperName.startsWith(pstem) && isCourseGroup(grouperName)){
-					groupId.append(templateGroupIdAdapter.getGroupId(grouperName.substring(pstem.length() + 1)));
-					break;
-				}
-
-				if (grouperName.startsWith(pstem) && isSimpleGroup(grouperName)){
-					groupId.append(simpleGroupIdAdapter.getGroupId(grouperName.substring(pstem.length() + 1)));
-					break;
-				}
+			else {
+				groupId.append(simpleGroupIdAdapter.getGroupId(c.remainder));
 			}
 		}
 
@@ -99,14 +91,11 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 
 	@Override
 	public String getWorldType(String grouperName){
-		String type = null;
-		if (isCourseGroup(grouperName)){
-			type = COURSE;
-		}
-		else if (isSimpleGroup(grouperName)){
-			type = SIMPLE;
+		Classification c = classifier.classify(grouperName);
+		if (c == null){
+			return null;
 		}
-		return type;
+		return c.isCourse()? COURSE : SIMPLE;
 	}
 
 	@Override
@@ -122,14 +111,17 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 			return null;
 		}
 
-		if (isProvisioned(grouperName)){
-			provName = grouperName;
-		}
-		if (isSimpleGroup(grouperName) && isInstitutional(grouperName)){
-			provName = grouperName.replace(institutionalSimpleGroupsStem, provisionedSimpleGroupsStem);
-		}
-		else if (isCourseGroup(grouperName) && isInstitutional(grouperName)){
-			provName = grouperName.replace(institutionalCourseGroupsStem, provisionedCourseGroupsStem);
+		Classification c = classifier.classify(grouperName);
+		if (c != null){
+			if (c.isProvisioned()){
+				provName = grouperName;
+			}
+			else if (c.isInstitutional()){
+				String provisionedStem = firstStem(c.isCourse()? provisionedCourseGroupsStem : provisionedSimpleGroupsStem);
+				if (provisionedStem != null){
+					provName = provisionedStem + StemClassifier.SEPARATOR + c.remainder;
+				}
+			}
 		}
 
 		if (provName != null){
@@ -143,46 +135,36 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 		return provName;
 	}
 
+	/**
+	 * @return which configured stem the name is in and the rest of the name, or null.
+	 */
+	public Classification classify(String grouperName){
+		return classifier.classify(grouperName);
+	}
+
 	protected boolean isProvisioned(String grouperName){
-		if (grouperName != null){
-			return startsWith(grouperName, provisionedSimpleGroupsStem) ||
-					startsWith(grouperName, provisionedCourseGroupsStem);
-		}
-		return false;
+		Classification c = classifier.classify(grouperName);
+		return c != null && c.isProvisioned();
 	}
 
 	public boolean isInstitutional(String grouperName){
-		if (grouperName != null){
-			return startsWith(grouperName, institutionalSimpleGroupsStem) ||
-					startsWith(grouperName, institutionalCourseGroupsStem);
-		}
-		return false;
+		Classification c = classifier.classify(grouperName);
+		return c != null && c.isInstitutional();
 	}
 
 	protected boolean isAdhoc(String grouperName){
-		if (grouperName != null){
-			return startsWith(grouperName, adhocCourseGroupsStem) ||
-					startsWith(grouperName, adhocSimpleGroupsStem);
-		}
-		return false;
+		Classification c = classifier.classify(grouperName);
+		return c != null && c.isAdhoc();
 	}
 
 	protected  boolean isCourseGroup(String grouperName){
-		if (grouperName != null){
-			return startsWith(grouperName, adhocCourseGroupsStem) ||
-					startsWith(grouperName, provisionedCourseGroupsStem) ||
-					startsWith(grouperName ,institutionalCourseGroupsStem);
-		}
-		return false;
+		Classification c = classifier.classify(grouperName);
+		return c != null && c.isCourse();
 	}
 
 	protected boolean isSimpleGroup(String grouperName){
-		if (grouperName != null){
-			return startsWith(grouperName,adhocSimpleGroupsStem) ||
-					startsWith(grouperName,provisionedSimpleGroupsStem) ||
-					startsWith(grouperName,institutionalSimpleGroupsStem);
-		}
-		return false;
+		Classification c = classifier.classify(grouperName);
+		return c != null && c.isSimple();
 	}
 
 	/**
@@ -207,64 +189,68 @@ public class GroupIdManagerImpl extends AbstractGroupIdAdapter implements GroupI
 		log.info(cfgPrefix + PROP_INST_COURSE_GROUPS_STEM + " : " + institutionalCourseGroupsStem);
 	}
 
-	private boolean startsWith(String subject, String prefix){
-		if (subject == null || prefix == null){
-			return false;
+	/**
+	 * Put all of the configured stems in the classifier.
+	 */
+	private synchronized void rebuildClassifier(){
+		StemClassifier rebuilt = new StemClassifier();
+		addStems(rebuilt, adhocSimpleGroupsStem, Origin.ADHOC, Kind.SIMPLE);
+		addStems(rebuilt, adhocCourseGroupsStem, Origin.ADHOC, Kind.COURSE);
+		addStems(rebuilt, provisionedSimpleGroupsStem, Origin.PROVISIONED, Kind.SIMPLE);
+		addStems(rebuilt, provisionedCourseGroupsStem, Origin.PROVISIONED, Kind.COURSE);
+		addStems(rebuilt, institutionalSimpleGroupsStem, Origin.INSTITUTIONAL, Kind.SIMPLE);
+		addStems(rebuilt, institutionalCourseGroupsStem, Origin.INSTITUTIONAL, Kind.COURSE);
+		classifier = rebuilt;
+	}
+
+	private void addStems(StemClassifier target, String stems, Origin origin, Kind kind){
+		if (stems == null){
+			return;
+		}
+		for (String stem : StringUtils.split(stems, ",")){
+			target.addStem(stem.trim(), origin, kind);
+		}
+	}
+
+	private String firstStem(String stems){
+		if (stems == null){
+			return null;
 		}
-		return subject.startsWith(prefix);
+		return StringUtils.trimToNull(StringUtils.substringBefore(stems, ","));
 	}
 
 	// Setters are ugly.
 
 	public void setAdhocSimpleGroupsStem(String adhocSimpleGroupsStem) {
-		stems.remove(this.adhocSimpleGroupsStem);
-		adhocStems.remove(this.adhocSimpleGroupsStem);
 		this.adhocSimpleGroupsStem = adhocSimpleGroupsStem;
-		stems.add(this.adhocSimpleGroupsStem);
-		adhocStems.add(this.adhocSimpleGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setAdhocCourseGroupsStem(String adhocCourseGroupsStem) {
-		stems.remove(this.adhocCourseGroupsStem);
-		adhocStems.remove(this.adhocCourseGroupsStem);
 		this.adhocCourseGroupsStem = adhocCourseGroupsStem;
-		stems.add(this.adhocCourseGroupsStem);
-		adhocStems.add(this.adhocCourseGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setProvisionedSimpleGroupsStem(String provisionedSimpleGroupsStem) {
-		stems.remove(this.provisionedSimpleGroupsStem);
-		provisonedStems.remove(this.provisionedSimpleGroupsStem);
 		this.provisionedSimpleGroupsStem = provisionedSimpleGroupsStem;
-		stems.add(this.provisionedSimpleGroupsStem);
-		provisonedStems.add(this.provisionedSimpleGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setProvisionedCourseGroupsStem(String provisionedCourseGroupsStem) {
-		stems.remove(this.provisionedCourseGroupsStem);
-		provisonedStems.remove(this.provisionedCourseGroupsStem);
 		this.provisionedCourseGroupsStem = provisionedCourseGroupsStem;
-		stems.add(this.provisionedCourseGroupsStem);
-		provisonedStems.add(this.provisionedCourseGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setInstitutionalSimpleGroupsStem(
 			String institutionalSimpleGroupsStem) {
-		stems.remove(this.institutionalSimpleGroupsStem);
-		provisonedStems.remove(this.institutionalSimpleGroupsStem);
 		this.institutionalSimpleGroupsStem = institutionalSimpleGroupsStem;
-
-		stems.add(this.institutionalSimpleGroupsStem);
-		provisonedStems.add(this.institutionalSimpleGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setInstitutionalCourseGroupsStem(
 			String institutionalCourseGroupsStem) {
-		stems.remove(this.institutionalCourseGroupsStem);
-		provisonedStems.remove(this.institutionalCourseGroupsStem);
 		this.institutionalCourseGroupsStem = institutionalCourseGroupsStem;
-		stems.add(this.institutionalCourseGroupsStem);
-		provisonedStems.add(this.institutionalCourseGroupsStem);
+		rebuildClassifier();
 	}
 
 	public void setSimpleGroupIdAdapter(SimpleGroupIdAdapter simpleAdapter) {
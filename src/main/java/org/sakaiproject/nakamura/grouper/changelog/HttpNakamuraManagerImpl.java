@@ -20,17 +20,34 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
@@ -41,16 +58,28 @@ import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
 import org.sakaiproject.nakamura.grouper.changelog.api.NakamuraManager;
 import org.sakaiproject.nakamura.grouper.changelog.api.WorldConstants;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipChunkException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipFlushException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserCreationException;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserModificationException;
 import org.sakaiproject.nakamura.grouper.changelog.log.AuditLogUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.AdaptiveChunkSizer;
+import org.sakaiproject.nakamura.grouper.changelog.util.AsyncDispatcher;
+import org.sakaiproject.nakamura.grouper.changelog.util.ExistenceCache;
+import org.sakaiproject.nakamura.grouper.changelog.util.HttpConnectionPool;
 import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils.ResponseMode;
+import org.sakaiproject.nakamura.grouper.changelog.util.PersistentIdStore;
+import org.sakaiproject.nakamura.grouper.changelog.util.RateGovernor;
+import org.sakaiproject.nakamura.grouper.changelog.util.RateGovernor.Operation;
+import org.sakaiproject.nakamura.grouper.changelog.util.SubjectResolver;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.MapMaker;
 
 import edu.internet2.middleware.grouper.SubjectFinder;
 import edu.internet2.middleware.grouper.exception.GrouperException;
 import edu.internet2.middleware.subject.Subject;
+import edu.internet2.middleware.subject.SubjectNotFoundException;
 
 /**
  * Shared functionality for the GroupAdapter classes goes in here.
@@ -65,11 +94,14 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	public static final String GROUP_PATH_PREFIX = USER_MANAGER_URI + "/group";
 	public static final String WORLD_CREATE_URI = "/system/world/create";
 	public static final String USER_CREATE_URI = USER_MANAGER_URI + "/user.create.json";
+	public static final String USER_PATH_PREFIX = USER_MANAGER_URI + "/user";
 
 	// Nakamura Batch servlet takes a JSONArray of JSONObjects that each represent a request
 	public static final String BATCH_URI         = "/system/batch";
 	public static final String BATCH_REQUESTS_PARAM = "requests";
 	public static final String PARAMETERS_PARAM = "parameters";
+	public static final String BATCH_RESULTS_PARAM = "results";
+	public static final String BATCH_STATUS_PARAM = "status";
 
 	// Creating worlds
 	public static final String DATA_PARAM = "data";
@@ -124,12 +156,115 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	public String password;
 
 	public boolean createUsers = false;
+	// Subjects the consumer already looked up for this batch. Optional.
+	public SubjectResolver subjectResolver;
 
 	// User cache
-	protected Map<String,Boolean> userExistsInSakai;
+	protected ExistenceCache userExistsInSakai;
 
 	// Group cache
-	protected Map<String,Boolean> groupExistsInSakai;
+	protected ExistenceCache groupExistsInSakai;
+
+	// Paces requests to OAE. null if not configured.
+	public volatile RateGovernor governor;
+
+	// Ids we've seen in OAE before, saved on disk. null if not configured.
+	public PersistentIdStore idStore;
+
+	// Queue membership changes and send them together in batch requests
+	public static final int DEFAULT_COALESCE_MAX_SIZE = 100;
+	public static final long DEFAULT_COALESCE_LINGER = 1000;
+	public boolean coalesceMemberships = false;
+	public int coalesceMaxSize = DEFAULT_COALESCE_MAX_SIZE;
+	public long coalesceLinger = DEFAULT_COALESCE_LINGER;
+
+	// Membership changes waiting to be sent, in the order they were made.
+	protected final List<MembershipWrite> pendingWrites = new ArrayList<MembershipWrite>();
+	private long oldestPendingWrite;
+
+	/**
+	 * A membership add or delete waiting to be sent to OAE.
+	 */
+	protected static class MembershipWrite {
+		final String groupId;
+		final String memberId;
+		final boolean add;
+
+		MembershipWrite(String groupId, String memberId, boolean add){
+			this.groupId = groupId;
+			this.memberId = memberId;
+			this.add = add;
+		}
+	}
+
+	/**
+	 * The net membership changes for one group. A member is never in both lists.
+	 */
+	protected static class MembershipDelta {
+		final String groupId;
+		final List<String> adds = new ArrayList<String>();
+		final List<String> removes = new ArrayList<String>();
+		// Each member's last change, in the order the members were first seen
+		private final Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+
+		MembershipDelta(String groupId){
+			this.groupId = groupId;
+		}
+
+		void add(MembershipWrite write){
+			changes.put(write.memberId, write.add);
+		}
+
+		/**
+		 * Split the changes into adds and removes.
+		 */
+		MembershipDelta build(){
+			adds.clear();
+			removes.clear();
+			for (Entry<String, Boolean> change : changes.entrySet()){
+				(change.getValue()? adds : removes).add(change.getKey());
+			}
+			return this;
+		}
+
+		int size(){
+			return adds.size() + removes.size();
+		}
+	}
+
+	// Send writes to OAE from a pool of threads with up to this many in flight. 0 sends them one at a time.
+	public int asyncWindow = 0;
+	private AsyncDispatcher dispatcher;
+
+	// Split bulk membership changes into chunks and send a few at a time
+	public static final int DEFAULT_CHUNK_PARALLELISM = 2;
+	public int chunkParallelism = DEFAULT_CHUNK_PARALLELISM;
+	protected AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer();
+	// One pool per OAE server and chunkParallelism. Grouper makes a new manager every run
+	// so the pools are shared instead of being left behind.
+	private static final ConcurrentMap<String, ExecutorService> chunkPools =
+		new ConcurrentHashMap<String, ExecutorService>();
+
+	/**
+	 * One chunk of a bulk membership change and how it went.
+	 */
+	protected static class MembershipChunk {
+		final List<String> memberIds;
+		final List<String> failedMemberIds = new ArrayList<String>();
+		String error;
+
+		MembershipChunk(List<String> memberIds){
+			this.memberIds = memberIds;
+		}
+	}
+
+	// How many existence checks to send in one batch request
+	public static final int DEFAULT_PREFETCH_BATCH_SIZE = 50;
+	public int prefetchBatchSize = DEFAULT_PREFETCH_BATCH_SIZE;
+
+	// How many users to create in one batch request
+	public static final int DEFAULT_USER_BATCH_SIZE = 25;
+	public int userBatchSize = DEFAULT_USER_BATCH_SIZE;
 
 	// Configurable subject attributes. Used when creating users in OAE.
 	public String firstNameAttribute;
@@ -147,8 +282,29 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	public GroupIdManager groupIdAdapter;
 
 	public HttpNakamuraManagerImpl(){
-		userExistsInSakai = new MapMaker().expireAfterWrite(30, TimeUnit.SECONDS).makeMap();
-		groupExistsInSakai = new MapMaker().expireAfterWrite(30, TimeUnit.SECONDS).makeMap();
+		userExistsInSakai = new ExistenceCache("users");
+		groupExistsInSakai = new ExistenceCache("groups");
+	}
+
+	/**
+	 * Replace the existence caches with ones using these settings.
+	 * @param maxSize the most ids to remember in each cache
+	 * @param positiveTtl milliseconds to remember that a user or group exists
+	 * @param negativeTtl milliseconds to remember that a user or group doesn't exist
+	 */
+	public void configureExistenceCaches(int maxSize, long positiveTtl, long negativeTtl){
+		userExistsInSakai = new ExistenceCache("users", maxSize, positiveTtl, negativeTtl);
+		groupExistsInSakai = new ExistenceCache("groups", maxSize, positiveTtl, negativeTtl);
+	}
+
+	/**
+	 * Replace the chunk sizer with one using these settings.
+	 * @param minSize the fewest membership changes in a chunk
+	 * @param maxSize the most membership changes in a chunk
+	 * @param targetLatency milliseconds a chunk should take. Slower chunks shrink the size.
+	 */
+	public void configureChunking(int minSize, int maxSize, long targetLatency){
+		chunkSizer = new AdaptiveChunkSizer(minSize, maxSize, AdaptiveChunkSizer.DEFAULT_INITIAL_SIZE, targetLatency);
 	}
 
 	/**
@@ -166,6 +322,50 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 			Map<String, String> usersRolesToAdd)
 			throws GroupModificationException {
 
+		// Keep membership changes in order with the world they belong to
+		if (hasPendingWrites()){
+			flush();
+		}
+
+		if (isAsync()){
+			final String[] args = new String[] { grouperName, worldId, title, description, visibility, joinability, template, message };
+			final String[] worldTags = tags;
+			final Map<String, String> worldUsers = usersRolesToAdd;
+			// Later checks for this world should see it as created while the request is in flight
+			forgetGroup(worldId);
+			groupExistsInSakai.put(worldId, true);
+			if (pseudoGroupSuffixes != null){
+				for (String suffix : pseudoGroupSuffixes){
+					groupExistsInSakai.put(worldId + "-" + suffix, true);
+				}
+			}
+			dispatch(worldId, "create world " + worldId, new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						sendCreateWorld(args[0], args[1], args[2], args[3], worldTags, args[4], args[5], args[6], args[7], worldUsers);
+					}
+					catch (GroupModificationException gme){
+						forgetGroup(args[1]);
+						throw gme;
+					}
+					return null;
+				}
+			});
+			return;
+		}
+		sendCreateWorld(grouperName, worldId, title, description, tags, visibility, joinability, template, message, usersRolesToAdd);
+	}
+
+	/**
+	 * Send the request to create a world.
+	 * See {@link #createWorld(String, String, String, String, String[], String, String, String, String, Map)}
+	 */
+	protected void sendCreateWorld(String grouperName, String worldId, String title,
+			String description, String[] tags, String visibility,
+			String joinability, String template, String message,
+			Map<String, String> usersRolesToAdd)
+			throws GroupModificationException {
+
 		JSONObject params = makeCreateWorldParams(worldId, worldId, tags, worldId,
 				visibility, joinability, template, message, usersRolesToAdd);
 
@@ -175,8 +375,9 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 
 		try {
 			if(!dryrun){
-				HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
-				NakamuraHttpUtils.http(client, method);
+				send(Operation.WORLD_CREATE, method, ResponseMode.STATUS_ONLY);
+				forgetGroup(worldId);
+				groupFound(worldId, true);
 				AuditLogUtils.audit(AuditLogUtils.GROUP_CREATED, null, worldId, description, AuditLogUtils.SUCCESS);
 				setGrouperNameProperties(worldId, grouperName);
 			}
@@ -234,7 +435,25 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	/*
 	 * POST http://localhost:8080/system/userManager/group/groupId.update.json :member=subjectId
 	 */
-	public void addMembership(String nakamuraGroupId, String memberId)
+	public void addMembership(final String nakamuraGroupId, final String memberId)
+			throws GroupModificationException {
+		if (coalesceMemberships && !dryrun){
+			enqueue(new MembershipWrite(nakamuraGroupId, memberId, true));
+			return;
+		}
+		if (isAsync()){
+			dispatch(groupIdAdapter.getWorldId(nakamuraGroupId), "add " + memberId + " to " + nakamuraGroupId, new Callable<Void>() {
+				public Void call() throws Exception {
+					sendAddMembership(nakamuraGroupId, memberId);
+					return null;
+				}
+			});
+			return;
+		}
+		sendAddMembership(nakamuraGroupId, memberId);
+	}
+
+	protected void sendAddMembership(String nakamuraGroupId, String memberId)
 			throws GroupModificationException {
 		String parentGroupId = groupIdAdapter.getWorldId(nakamuraGroupId);
 		String role = StringUtils.substringAfterLast(nakamuraGroupId, "-");
@@ -244,7 +463,8 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
         method.addParameter(CHARSET_PARAM, UTF_8);
         try {
         	if (!dryrun){
-        		NakamuraHttpUtils.http(NakamuraHttpUtils.getHttpClient(url, username, password), method);
+        		NakamuraHttpUtils.markIdempotent(method);
+        		send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.STATUS_ONLY);
         		AuditLogUtils.audit(AuditLogUtils.USER_ADDED, memberId, parentGroupId, role, AuditLogUtils.SUCCESS);
         	}
         	log.info("Added subjectId=" + memberId + " to group=" + nakamuraGroupId);
@@ -255,7 +475,7 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
         }
 	}
 
-	public void addMemberships(String nakamuraGroupId, List<String> memberIds)
+	public void addMemberships(final String nakamuraGroupId, final List<String> memberIds)
 			throws GroupModificationException {
 
 		if (memberIds.isEmpty()){
@@ -265,47 +485,350 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 			addMembership(nakamuraGroupId, memberIds.get(0));
 			return;
 		}
+		else if (coalesceMemberships && !dryrun){
+			for (String memberId : memberIds){
+				enqueue(new MembershipWrite(nakamuraGroupId, memberId, true));
+			}
+			return;
+		}
+		else if (isAsync()){
+			dispatch(groupIdAdapter.getWorldId(nakamuraGroupId), "add " + memberIds.size() + " members to " + nakamuraGroupId, new Callable<Void>() {
+				public Void call() throws Exception {
+					sendAddMemberships(nakamuraGroupId, memberIds);
+					return null;
+				}
+			});
+			return;
+		}
+		sendAddMemberships(nakamuraGroupId, memberIds);
+	}
+
+	protected void sendAddMemberships(String nakamuraGroupId, List<String> memberIds)
+			throws GroupModificationException {
+		sendMemberships(nakamuraGroupId, memberIds, true);
+	}
+
+	/**
+	 * Remove a list of subjects from a group.
+	 * @param nakamuraGroupId the id of the group in OAE
+	 * @param memberIds the ids of the subjects being removed
+	 * @throws GroupModificationException
+	 */
+	public void deleteMemberships(final String nakamuraGroupId, final List<String> memberIds)
+			throws GroupModificationException {
+
+		if (memberIds.isEmpty()){
+			return;
+		}
+		else if (memberIds.size() == 1){
+			deleteMembership(nakamuraGroupId, memberIds.get(0));
+			return;
+		}
+		else if (coalesceMemberships && !dryrun){
+			for (String memberId : memberIds){
+				enqueue(new MembershipWrite(nakamuraGroupId, memberId, false));
+			}
+			return;
+		}
+		else if (isAsync()){
+			dispatch(groupIdAdapter.getWorldId(nakamuraGroupId), "delete " + memberIds.size() + " members from " + nakamuraGroupId, new Callable<Void>() {
+				public Void call() throws Exception {
+					sendMemberships(nakamuraGroupId, memberIds, false);
+					return null;
+				}
+			});
+			return;
+		}
+		sendMemberships(nakamuraGroupId, memberIds, false);
+	}
+
+	/**
+	 * Send a bulk membership change to OAE as batch requests.
+	 *
+	 * The members are split into chunks sized by the {@link AdaptiveChunkSizer} and up to
+	 * chunkParallelism chunks are sent at once. A failed chunk doesn't stop the others.
+	 *
+	 * @param nakamuraGroupId the id of the group in OAE
+	 * @param memberIds the ids of the subjects being added or removed
+	 * @param add true to add the members, false to remove them
+	 * @throws MembershipChunkException if any of the chunks failed
+	 */
+	protected void sendMemberships(final String nakamuraGroupId, List<String> memberIds, final boolean add)
+			throws GroupModificationException {
+		List<MembershipChunk> chunks = new ArrayList<MembershipChunk>();
+		int next = 0;
+
+		if (chunkParallelism <= 1){
+			while (next < memberIds.size()){
+				MembershipChunk chunk = new MembershipChunk(nextChunk(memberIds, next));
+				next += chunk.memberIds.size();
+				sendChunk(nakamuraGroupId, chunk, add);
+				chunks.add(chunk);
+			}
+		}
+		else {
+			// Cut each chunk just before it's sent so it gets the latest size
+			CompletionService<MembershipChunk> completion = new ExecutorCompletionService<MembershipChunk>(getChunkPool());
+			Map<Future<MembershipChunk>, MembershipChunk> inFlight = new HashMap<Future<MembershipChunk>, MembershipChunk>();
+			try {
+				while (next < memberIds.size() || !inFlight.isEmpty()){
+					if (next < memberIds.size() && inFlight.size() < chunkParallelism){
+						final MembershipChunk chunk = new MembershipChunk(nextChunk(memberIds, next));
+						next += chunk.memberIds.size();
+						inFlight.put(completion.submit(new Callable<MembershipChunk>() {
+							public MembershipChunk call() {
+								sendChunk(nakamuraGroupId, chunk, add);
+								return chunk;
+							}
+						}), chunk);
+					}
+					else {
+						Future<MembershipChunk> done = completion.take();
+						MembershipChunk chunk = inFlight.remove(done);
+						try {
+							done.get();
+						}
+						catch (ExecutionException ee){
+							// Count it like any other failed chunk and wait for the rest
+							chunk.failedMemberIds.clear();
+							chunk.failedMemberIds.addAll(chunk.memberIds);
+							chunk.error = String.valueOf(ee.getCause());
+						}
+						chunks.add(chunk);
+					}
+				}
+			}
+			catch (InterruptedException ie){
+				Thread.currentThread().interrupt();
+				throw new GroupModificationException("Interrupted sending memberships for " + nakamuraGroupId);
+			}
+		}
 
 		String parentGroupId = groupIdAdapter.getWorldId(nakamuraGroupId);
 		String role = StringUtils.substringAfterLast(nakamuraGroupId, "-");
+		String action = add? AuditLogUtils.USER_ADDED : AuditLogUtils.USER_DELETED;
+		List<String> failedMemberIds = new ArrayList<String>();
+		int failedChunks = 0;
+		String lastError = null;
+		for (MembershipChunk chunk : chunks){
+			for (String memberId : chunk.memberIds){
+				boolean failed = chunk.failedMemberIds.contains(memberId);
+				AuditLogUtils.audit(action, memberId, parentGroupId, role, failed? AuditLogUtils.FAILURE : AuditLogUtils.SUCCESS);
+			}
+			if (chunk.failedMemberIds.isEmpty()){
+				log.info((add? "Added" : "Deleted") + " subjectId=" + StringUtils.join(chunk.memberIds.toArray(), ",")
+						+ (add? " to" : " from") + " group=" + nakamuraGroupId);
+			}
+			else {
+				failedChunks++;
+				failedMemberIds.addAll(chunk.failedMemberIds);
+				lastError = chunk.error;
+				log.error("Failed to " + (add? "add" : "delete") + " " + chunk.failedMemberIds.size() + " of "
+						+ chunk.memberIds.size() + " members for group=" + nakamuraGroupId + " : " + chunk.error);
+			}
+		}
+		if (failedChunks > 0){
+			throw new MembershipChunkException(nakamuraGroupId, failedMemberIds, failedChunks, chunks.size(), lastError);
+		}
+	}
+
+	private List<String> nextChunk(List<String> memberIds, int start){
+		return memberIds.subList(start, Math.min(start + chunkSizer.getChunkSize(), memberIds.size()));
+	}
 
+	/**
+	 * Send one chunk of a bulk membership change and record how it went.
+	 * Never throws. Failures are recorded in the chunk.
+	 */
+	protected void sendChunk(String nakamuraGroupId, MembershipChunk chunk, boolean add){
+		if (dryrun){
+			return;
+		}
+		long start = System.currentTimeMillis();
 		JSONArray requests = new JSONArray();
-		for (String memberId : memberIds){
-			JSONObject req = new JSONObject();
-			req.put(METHOD_PARAM, "POST");
-			req.put(CHARSET_PARAM, UTF_8);
-			req.put(URL_PARAM, getUpdateURI(nakamuraGroupId));
+		for (String memberId : chunk.memberIds){
+			requests.add(makeMembershipRequest(nakamuraGroupId, memberId, add));
+		}
+		try {
+			PostMethod method = new PostMethod(url + BATCH_URI);
+			method.setParameter(BATCH_REQUESTS_PARAM, requests.toString());
+			method.setParameter(CHARSET_PARAM, UTF_8);
+			NakamuraHttpUtils.markIdempotent(method);
+			JSONObject response = send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.JSON);
+			JSONArray results = (response != null && response.has(BATCH_RESULTS_PARAM))?
+					response.getJSONArray(BATCH_RESULTS_PARAM) : null;
+			for (int i = 0; i < chunk.memberIds.size(); i++){
+				int status = batchResultStatus(results, i);
+				if (status != HttpStatus.SC_OK && status != HttpStatus.SC_CREATED){
+					chunk.failedMemberIds.add(chunk.memberIds.get(i));
+					chunk.error = ((status == -1)? "No result" : String.valueOf(status)) + " for " + chunk.memberIds.get(i);
+				}
+			}
+		}
+		catch (Exception e){
+			chunk.failedMemberIds.addAll(chunk.memberIds);
+			chunk.error = e.getMessage();
+		}
+		chunkSizer.record(chunk.memberIds.size(), System.currentTimeMillis() - start, chunk.failedMemberIds.isEmpty());
+	}
 
-			JSONObject params = new JSONObject();
-			params.put(MEMBER_PARAM, memberId);
-			params.put(VIEWER_PARAM, memberId);
-			params.put(CHARSET_PARAM, UTF_8);
+	/**
+	 * @return a request for the OAE batch servlet that adds or removes a member.
+	 */
+	protected JSONObject makeMembershipRequest(String nakamuraGroupId, String memberId, boolean add){
+		JSONObject req = new JSONObject();
+		req.put(METHOD_PARAM, "POST");
+		req.put(CHARSET_PARAM, UTF_8);
+		req.put(URL_PARAM, getUpdateURI(nakamuraGroupId));
+		JSONObject params = new JSONObject();
+		params.put(add? MEMBER_PARAM : MEMBER_DELETE_PARAM, memberId);
+		params.put(add? VIEWER_PARAM : VIEWER_DELETE_PARAM, memberId);
+		params.put(CHARSET_PARAM, UTF_8);
+		req.put(PARAMETERS_PARAM, params);
+		return req;
+	}
 
-			req.put(PARAMETERS_PARAM, params);
-			requests.add(req);
+	/**
+	 * @return the status of the ith request in a batch response, or -1 if OAE didn't say.
+	 * A request without a result may not have happened so it counts as a failure.
+	 */
+	private int batchResultStatus(JSONArray results, int i){
+		if (results != null && i < results.size()){
+			return results.getJSONObject(i).optInt(BATCH_STATUS_PARAM, -1);
 		}
-		try {
-			// Use the OAE batch service to add multiple memberships in one HTTP POST
-			batchPost(requests);
-			for (String memberId : memberIds){
-				AuditLogUtils.audit(AuditLogUtils.USER_ADDED, memberId, parentGroupId, role, AuditLogUtils.SUCCESS);
+		return -1;
+	}
+
+	/*
+	 * POST http://localhost:8080/system/userManager/group/groupId.update.json
+	 * :member=add1 :viewer=add1 :member=add2 :viewer=add2 ...
+	 * :member@Delete=remove1 :viewer@Delete=remove1 ...
+	 */
+	public void applyMembershipDelta(final String nakamuraGroupId, final List<String> adds, final List<String> removes)
+			throws GroupModificationException {
+		if (adds.isEmpty() && removes.isEmpty()){
+			return;
+		}
+		else if (coalesceMemberships && !dryrun){
+			for (String memberId : removes){
+				enqueue(new MembershipWrite(nakamuraGroupId, memberId, false));
 			}
-			log.info("Added subjectId=" + StringUtils.join(memberIds.toArray(), ",") + " to group=" + nakamuraGroupId);
+			for (String memberId : adds){
+				enqueue(new MembershipWrite(nakamuraGroupId, memberId, true));
+			}
+			return;
 		}
-		catch (GrouperException ge){
-			for (String memberId : memberIds){
-				AuditLogUtils.audit(AuditLogUtils.USER_ADDED, memberId, parentGroupId, role, AuditLogUtils.FAILURE);
+		else if (isAsync()){
+			dispatch(groupIdAdapter.getWorldId(nakamuraGroupId), "apply " + (adds.size() + removes.size()) + " membership changes to " + nakamuraGroupId, new Callable<Void>() {
+				public Void call() throws Exception {
+					sendMembershipDelta(nakamuraGroupId, adds, removes);
+					return null;
+				}
+			});
+			return;
+		}
+		sendMembershipDelta(nakamuraGroupId, adds, removes);
+	}
+
+	/**
+	 * Send the adds and removes for a group in as few update requests as possible.
+	 * Requests are split so none has more than the largest membership chunk.
+	 */
+	protected void sendMembershipDelta(String nakamuraGroupId, List<String> adds, List<String> removes)
+			throws GroupModificationException {
+		String parentGroupId = groupIdAdapter.getWorldId(nakamuraGroupId);
+		String role = StringUtils.substringAfterLast(nakamuraGroupId, "-");
+		int maxMembers = chunkSizer.getMaxSize();
+		int nextAdd = 0;
+		int nextRemove = 0;
+		while (nextAdd < adds.size() || nextRemove < removes.size()){
+			// Removes go first so the order matches the way the changes were queued
+			List<String> removeChunk = removes.subList(nextRemove, Math.min(removes.size(), nextRemove + maxMembers));
+			nextRemove += removeChunk.size();
+			List<String> addChunk = adds.subList(nextAdd, Math.min(adds.size(), nextAdd + maxMembers - removeChunk.size()));
+			nextAdd += addChunk.size();
+
+			PostMethod method = new PostMethod(url.toString() + getUpdateURI(nakamuraGroupId));
+			for (String memberId : addChunk){
+				method.addParameter(MEMBER_PARAM, memberId);
+				method.addParameter(VIEWER_PARAM, memberId);
+			}
+			for (String memberId : removeChunk){
+				method.addParameter(MEMBER_DELETE_PARAM, memberId);
+				method.addParameter(VIEWER_DELETE_PARAM, memberId);
+			}
+			method.addParameter(CHARSET_PARAM, UTF_8);
+			if (dryrun){
+				log.info("Updated group=" + nakamuraGroupId + " added=" + StringUtils.join(addChunk.toArray(), ",")
+						+ " deleted=" + StringUtils.join(removeChunk.toArray(), ","));
+				continue;
+			}
+			boolean sent = false;
+			try {
+				NakamuraHttpUtils.markIdempotent(method);
+				send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.STATUS_ONLY);
+				sent = true;
+				log.info("Updated group=" + nakamuraGroupId + " added=" + StringUtils.join(addChunk.toArray(), ",")
+						+ " deleted=" + StringUtils.join(removeChunk.toArray(), ","));
+			}
+			finally {
+				int status = sent? AuditLogUtils.SUCCESS : AuditLogUtils.FAILURE;
+				for (String memberId : addChunk){
+					AuditLogUtils.audit(AuditLogUtils.USER_ADDED, memberId, parentGroupId, role, status);
+				}
+				for (String memberId : removeChunk){
+					AuditLogUtils.audit(AuditLogUtils.USER_DELETED, memberId, parentGroupId, role, status);
+				}
 			}
-			throw ge;
 		}
 	}
 
+	/**
+	 * @return a request for the OAE batch servlet that applies all of the changes for a group.
+	 */
+	protected JSONObject makeMembershipDeltaRequest(MembershipDelta delta){
+		JSONObject req = new JSONObject();
+		req.put(METHOD_PARAM, "POST");
+		req.put(CHARSET_PARAM, UTF_8);
+		req.put(URL_PARAM, getUpdateURI(delta.groupId));
+		JSONObject params = new JSONObject();
+		if (!delta.adds.isEmpty()){
+			params.put(MEMBER_PARAM, JSONArray.fromObject(delta.adds));
+			params.put(VIEWER_PARAM, JSONArray.fromObject(delta.adds));
+		}
+		if (!delta.removes.isEmpty()){
+			params.put(MEMBER_DELETE_PARAM, JSONArray.fromObject(delta.removes));
+			params.put(VIEWER_DELETE_PARAM, JSONArray.fromObject(delta.removes));
+		}
+		params.put(CHARSET_PARAM, UTF_8);
+		req.put(PARAMETERS_PARAM, params);
+		return req;
+	}
+
 	/*
 	 * POST http://localhost:8080/system/userManager/group/groupId.update.json?
 	 * :member@Delete=memberId
 	 * :viewer@Delete=memberId
 	 */
-	public void deleteMembership(String nakamuraGroupId, String memberId)
+	public void deleteMembership(final String nakamuraGroupId, final String memberId)
+			throws GroupModificationException {
+		if (coalesceMemberships && !dryrun){
+			enqueue(new MembershipWrite(nakamuraGroupId, memberId, false));
+			return;
+		}
+		if (isAsync()){
+			dispatch(groupIdAdapter.getWorldId(nakamuraGroupId), "delete " + memberId + " from " + nakamuraGroupId, new Callable<Void>() {
+				public Void call() throws Exception {
+					sendDeleteMembership(nakamuraGroupId, memberId);
+					return null;
+				}
+			});
+			return;
+		}
+		sendDeleteMembership(nakamuraGroupId, memberId);
+	}
+
+	protected void sendDeleteMembership(String nakamuraGroupId, String memberId)
 			throws GroupModificationException {
 		String parentGroupId = groupIdAdapter.getWorldId(nakamuraGroupId);
         String role = StringUtils.substringAfterLast(nakamuraGroupId, "-");
@@ -315,7 +838,8 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
         method.addParameter(CHARSET_PARAM, UTF_8);
         try {
         	if (!dryrun){
-        		NakamuraHttpUtils.http(NakamuraHttpUtils.getHttpClient(url, username, password), method);
+        		NakamuraHttpUtils.markIdempotent(method);
+        		send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.STATUS_ONLY);
         		AuditLogUtils.audit(AuditLogUtils.USER_DELETED, memberId, parentGroupId, role, AuditLogUtils.SUCCESS);
         	}
         	log.info("Deleted subjectId=" + memberId + " from group=" + nakamuraGroupId );
@@ -331,14 +855,27 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 			return false;
 		}
 
-		if (!groupExistsInSakai.containsKey(groupId)){
-			HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
-			String groupUrl = url.toString() + GROUP_PATH_PREFIX + "/" + groupId + ".json";
+		Boolean exists = groupExistsInSakai.get(groupId);
+		if (exists == null && idStore != null && idStore.containsGroup(groupId)){
+			exists = Boolean.TRUE;
+			groupExistsInSakai.put(groupId, true);
+		}
+		if (exists == null){
+			exists = Boolean.FALSE;
+			HttpClient client = getHttpClient();
+			String groupUrl = url.toString() + getGroupURI(groupId);
 			GetMethod method = new GetMethod(groupUrl);
 			try {
+				throttle(Operation.READ);
+				long start = System.currentTimeMillis();
 				int responseCode = client.executeMethod(method);
+				recordLatency(System.currentTimeMillis() - start);
 				if (responseCode == HttpStatus.SC_OK){
-					groupExistsInSakai.put(groupId, Boolean.TRUE);
+					exists = Boolean.TRUE;
+					groupFound(groupId, true);
+				}
+				else if (responseCode == HttpStatus.SC_NOT_FOUND){
+					groupFound(groupId, false);
 				}
 				log.debug(responseCode + " : " + groupUrl);
 			}
@@ -346,8 +883,144 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 				log.error(e.getMessage());
 				throw new GrouperException(e.getMessage());
 			}
+			finally {
+				// Hand the connection back to the pool
+				method.releaseConnection();
+			}
+		}
+		return exists.booleanValue();
+	}
+
+	/**
+	 * Ask OAE about many groups and users at once with GETs bundled into batch requests.
+	 * A 200 means the authorizable exists, a 404 means it doesn't. Anything else is left
+	 * for {@link #groupExists(String)} or {@link #userExists(String)} to find out later.
+	 */
+	public void prefetchExistence(Collection<String> groupIds, Collection<String> userIds){
+		if (dryrun){
+			return;
+		}
+		// Map the request uri back to the id and whether it's a group or a user
+		Map<String, String> uriToId = new HashMap<String, String>();
+		Map<String, Boolean> uriIsGroup = new HashMap<String, Boolean>();
+		for (String groupId : groupIds){
+			if (groupId != null && !groupExistsInSakai.contains(groupId)
+					&& (idStore == null || !idStore.containsGroup(groupId))){
+				uriToId.put(getGroupURI(groupId), groupId);
+				uriIsGroup.put(getGroupURI(groupId), Boolean.TRUE);
+			}
+		}
+		for (String userId : userIds){
+			if (userId != null && !userExistsInSakai.contains(userId)
+					&& (idStore == null || !idStore.containsUser(userId))){
+				uriToId.put(getUserURI(userId), userId);
+				uriIsGroup.put(getUserURI(userId), Boolean.FALSE);
+			}
+		}
+		if (uriToId.isEmpty()){
+			return;
+		}
+
+		List<String> uris = new ArrayList<String>(uriToId.keySet());
+		int requestCount = 0;
+		for (int start = 0; start < uris.size(); start += prefetchBatchSize){
+			JSONArray requests = new JSONArray();
+			for (String uri : uris.subList(start, Math.min(start + prefetchBatchSize, uris.size()))){
+				JSONObject req = new JSONObject();
+				req.put(METHOD_PARAM, "GET");
+				req.put(CHARSET_PARAM, UTF_8);
+				req.put(URL_PARAM, uri);
+				requests.add(req);
+			}
+			PostMethod method = new PostMethod(url + BATCH_URI);
+			method.setParameter(BATCH_REQUESTS_PARAM, requests.toString());
+			method.setParameter(CHARSET_PARAM, UTF_8);
+			try {
+				NakamuraHttpUtils.markIdempotent(method);
+				JSONObject response = send(Operation.READ, method, ResponseMode.JSON);
+				requestCount++;
+				if (response == null || !response.has(BATCH_RESULTS_PARAM)){
+					continue;
+				}
+				JSONArray results = response.getJSONArray(BATCH_RESULTS_PARAM);
+				for (int i = 0; i < results.size(); i++){
+					JSONObject result = results.getJSONObject(i);
+					String uri = result.optString(URL_PARAM, null);
+					int status = result.optInt(BATCH_STATUS_PARAM, -1);
+					if (uri == null || !uriToId.containsKey(uri)){
+						continue;
+					}
+					if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NOT_FOUND){
+						continue;
+					}
+					if (uriIsGroup.get(uri)){
+						groupFound(uriToId.get(uri), status == HttpStatus.SC_OK);
+					}
+					else {
+						userFound(uriToId.get(uri), status == HttpStatus.SC_OK);
+					}
+				}
+			}
+			catch (GroupModificationException gme){
+				// Not fatal. We'll fall back to checking one at a time.
+				log.warn("Unable to prefetch existence from OAE. " + gme.getMessage());
+			}
+		}
+		log.info("Prefetched existence of " + uris.size() + " groups and users in " + requestCount + " batch requests");
+	}
+
+	/**
+	 * Forget what we know about a world and its pseudoGroups after creating or deleting it.
+	 * @param worldId the id of the world in OAE
+	 */
+	protected void forgetGroup(String worldId){
+		List<String> groupIds = new ArrayList<String>();
+		groupIds.add(worldId);
+		if (pseudoGroupSuffixes != null){
+			for (String suffix : pseudoGroupSuffixes){
+				groupIds.add(worldId + "-" + suffix);
+			}
+		}
+		for (String groupId : groupIds){
+			groupExistsInSakai.invalidate(groupId);
+			if (idStore != null){
+				idStore.removeGroup(groupId);
+			}
+		}
+	}
+
+	/**
+	 * Remember what OAE told us about a group.
+	 * @param groupId the id of the group in OAE
+	 * @param exists whether it exists
+	 */
+	protected void groupFound(String groupId, boolean exists){
+		groupExistsInSakai.put(groupId, exists);
+		if (idStore != null){
+			if (exists){
+				idStore.addGroup(groupId);
+			}
+			else {
+				idStore.removeGroup(groupId);
+			}
+		}
+	}
+
+	/**
+	 * Remember what OAE told us about a user.
+	 * @param userId the id of the user in OAE
+	 * @param exists whether it exists
+	 */
+	protected void userFound(String userId, boolean exists){
+		userExistsInSakai.put(userId, exists);
+		if (idStore != null){
+			if (exists){
+				idStore.addUser(userId);
+			}
+			else {
+				idStore.removeUser(userId);
+			}
 		}
-		return groupExistsInSakai.containsKey(groupId);
 	}
 
 	/*
@@ -368,7 +1041,8 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		method.setParameter(CHARSET_PARAM, UTF_8);
 		try {
 			if (!dryrun){
-        		NakamuraHttpUtils.http(NakamuraHttpUtils.getHttpClient(url, username, password), method);
+        		NakamuraHttpUtils.markIdempotent(method);
+        		send(Operation.WORLD_CREATE, method, ResponseMode.STATUS_ONLY);
                 for (Entry<String,String> entry: properties.entrySet()){
                 	AuditLogUtils.audit(AuditLogUtils.GROUP_MODIFIED, null, groupId,
                 			entry.getKey() + "=" + entry.getValue(), AuditLogUtils.SUCCESS);
@@ -393,50 +1067,20 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		if (dryrun || userExists(userId)){
 			return;
 		}
-		HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
-
 		String fullName = null;
 		try {
 			// throws exception if not found or not unique
-			Subject subject = SubjectFinder.findByIdOrIdentifier(userId, true);
+			Subject subject = findSubject(userId);
+			Map<String, String> params = makeUserParameters(userId, subject);
+			fullName = params.get(FIRST_NAME_PARAM) + " " + params.get(LAST_NAME_PARAM);
 
-			String randomPassword = UUID.randomUUID().toString();
 			PostMethod method = new PostMethod(url.toString() + USER_CREATE_URI);
-
-			// Get properties from the Grouper Subject
-			String firstName = subject.getAttributeValue(firstNameAttribute);
-			if (firstName == null){
-				firstName = "Firstname";
-			}
-			String lastName = subject.getAttributeValue(lastNameAttribute);
-			if (lastName == null){
-				lastName = "Lastname";
-			}
-
-			fullName = firstName + " " + lastName;
-
-			String email = subject.getAttributeValue(emailAttribute);
-			if (email == null){
-				email = userId + "@" + defaultEmailDomain;
+			for (Entry<String, String> param : params.entrySet()){
+				method.addParameter(param.getKey(), param.getValue());
 			}
-			// Fill in the template
-			String profileTemplate = "{\"basic\":{\"elements\":{\"firstName\":{\"value\":\"FIRSTNAME\"},\"lastName\":{\"value\":\"LASTNAME\"},\"email\":{\"value\":\"EMAIL\"}},\"access\":\"everybody\"},\"email\":\"EMAIL\"}}";
-			profileTemplate = profileTemplate.replaceAll("FIRSTNAME", firstName)
-								.replaceAll("LASTNAME", lastName)
-								.replaceAll("EMAIL", email);
 
-			method.addParameter(NAME_PARAM, userId);
-			method.addParameter(PWD_PARAM, randomPassword);
-			method.addParameter(PWD_CONFIRM_PARAM, randomPassword);
-			method.addParameter(FIRST_NAME_PARAM, firstName);
-			method.addParameter(LAST_NAME_PARAM, lastName);
-			method.addParameter(EMAIL_PARAM, email);
-			method.addParameter(TIMEZONE_PARAM, "America/New_York");
-			method.addParameter(LOCALE_PARAM, "en_US");
-			method.addParameter(PROFILE_IMPORT_PARAM, profileTemplate);
-
-			NakamuraHttpUtils.http(client, method);
-			userExistsInSakai.put(userId, Boolean.TRUE);
+			send(Operation.USER_CREATE, method, ResponseMode.STATUS_ONLY);
+			userFound(userId, true);
 			log.info("Created a user in Sakai OAE for " + userId);
 			AuditLogUtils.audit(AuditLogUtils.USER_CREATED, userId, null, fullName, AuditLogUtils.SUCCESS);
 		}
@@ -447,6 +1091,207 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		}
 	}
 
+	/**
+	 * Create the users that don't exist in OAE.
+	 *
+	 * Users we don't already know about are looked up in batch requests. The subjects
+	 * for the missing ones are resolved together and the users are created
+	 * userBatchSize at a time through the batch servlet.
+	 *
+	 * @param userIds the ids of the users
+	 * @throws UserCreationException with the users that couldn't be created. The others were.
+	 */
+	public void createUsers(Collection<String> userIds) throws UserModificationException {
+		if (dryrun || userIds.isEmpty()){
+			return;
+		}
+		Set<String> unknown = new LinkedHashSet<String>();
+		for (String userId : userIds){
+			if (userId != null && !Boolean.TRUE.equals(userExistsInSakai.get(userId))
+					&& (idStore == null || !idStore.containsUser(userId))){
+				unknown.add(userId);
+			}
+		}
+		if (unknown.isEmpty()){
+			return;
+		}
+		prefetchExistence(new ArrayList<String>(), unknown);
+
+		List<String> missing = new ArrayList<String>();
+		for (String userId : unknown){
+			Boolean exists = userExistsInSakai.get(userId);
+			// The prefetch couldn't tell us. Ask the slow way.
+			if (exists == null){
+				exists = userExists(userId);
+			}
+			if (!exists){
+				missing.add(userId);
+			}
+		}
+		if (missing.isEmpty()){
+			return;
+		}
+		if (subjectResolver != null){
+			subjectResolver.resolveAll(missing);
+		}
+
+		Map<String, String> failures = new LinkedHashMap<String, String>();
+		int created = 0;
+		for (int start = 0; start < missing.size(); start += userBatchSize){
+			List<String> chunk = missing.subList(start, Math.min(start + userBatchSize, missing.size()));
+			created += sendCreateUsers(chunk, failures);
+		}
+		log.info("Created " + created + " of " + missing.size() + " missing users in Sakai OAE");
+		if (!failures.isEmpty()){
+			throw new UserCreationException(failures, created);
+		}
+	}
+
+	/**
+	 * Create a chunk of users with one batch request.
+	 * @param userIds users that don't exist in OAE
+	 * @param failures filled in with the users that weren't created and why
+	 * @return how many users were created.
+	 */
+	protected int sendCreateUsers(List<String> userIds, Map<String, String> failures){
+		List<String> sent = new ArrayList<String>();
+		List<String> fullNames = new ArrayList<String>();
+		JSONArray requests = new JSONArray();
+		for (String userId : userIds){
+			try {
+				Map<String, String> params = makeUserParameters(userId, findSubject(userId));
+				JSONObject parameters = new JSONObject();
+				for (Entry<String, String> param : params.entrySet()){
+					parameters.put(param.getKey(), param.getValue());
+				}
+				parameters.put(CHARSET_PARAM, UTF_8);
+				JSONObject req = new JSONObject();
+				req.put(METHOD_PARAM, "POST");
+				req.put(CHARSET_PARAM, UTF_8);
+				req.put(URL_PARAM, USER_CREATE_URI);
+				req.put(PARAMETERS_PARAM, parameters);
+				requests.add(req);
+				sent.add(userId);
+				fullNames.add(params.get(FIRST_NAME_PARAM) + " " + params.get(LAST_NAME_PARAM));
+			}
+			catch (Exception e){
+				failures.put(userId, e.getMessage());
+				AuditLogUtils.audit(AuditLogUtils.USER_CREATED, userId, null, null, AuditLogUtils.FAILURE);
+			}
+		}
+		if (sent.isEmpty()){
+			return 0;
+		}
+
+		JSONArray results = null;
+		String error = null;
+		try {
+			PostMethod method = new PostMethod(url + BATCH_URI);
+			method.setParameter(BATCH_REQUESTS_PARAM, requests.toString());
+			method.setParameter(CHARSET_PARAM, UTF_8);
+			JSONObject response = send(Operation.USER_CREATE, method, ResponseMode.JSON);
+			if (response != null && response.has(BATCH_RESULTS_PARAM)){
+				results = response.getJSONArray(BATCH_RESULTS_PARAM);
+			}
+		}
+		catch (Exception e){
+			error = e.getMessage();
+		}
+
+		int created = 0;
+		for (int i = 0; i < sent.size(); i++){
+			String userId = sent.get(i);
+			int status = (error == null)? batchResultStatus(results, i) : -1;
+			if (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED){
+				userFound(userId, true);
+				created++;
+				log.info("Created a user in Sakai OAE for " + userId);
+				AuditLogUtils.audit(AuditLogUtils.USER_CREATED, userId, null, fullNames.get(i), AuditLogUtils.SUCCESS);
+			}
+			else {
+				if (error != null){
+					failures.put(userId, error);
+				}
+				else {
+					// Without a result the user may not exist. Don't remember it as created.
+					failures.put(userId, (status == -1)? "No result from OAE" : status + " from OAE");
+				}
+				log.error("Unable to create the user " + userId + " in Sakai OAE : " + failures.get(userId));
+				AuditLogUtils.audit(AuditLogUtils.USER_CREATED, userId, null, fullNames.get(i), AuditLogUtils.FAILURE);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * @return the parameters for user.create.json, filled in from the Grouper Subject.
+	 */
+	protected Map<String, String> makeUserParameters(String userId, Subject subject){
+		String firstName = subject.getAttributeValue(firstNameAttribute);
+		if (firstName == null){
+			firstName = "Firstname";
+		}
+		String lastName = subject.getAttributeValue(lastNameAttribute);
+		if (lastName == null){
+			lastName = "Lastname";
+		}
+		String email = subject.getAttributeValue(emailAttribute);
+		if (email == null){
+			email = userId + "@" + defaultEmailDomain;
+		}
+		String randomPassword = UUID.randomUUID().toString();
+
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put(NAME_PARAM, userId);
+		params.put(PWD_PARAM, randomPassword);
+		params.put(PWD_CONFIRM_PARAM, randomPassword);
+		params.put(FIRST_NAME_PARAM, firstName);
+		params.put(LAST_NAME_PARAM, lastName);
+		params.put(EMAIL_PARAM, email);
+		params.put(TIMEZONE_PARAM, "America/New_York");
+		params.put(LOCALE_PARAM, "en_US");
+		params.put(PROFILE_IMPORT_PARAM, makeProfile(firstName, lastName, email).toString());
+		return params;
+	}
+
+	/**
+	 * {"basic":{"elements":{"firstName":{"value":"F"},"lastName":{"value":"L"},"email":{"value":"E"}},"access":"everybody"},"email":"E"}
+	 */
+	private JSONObject makeProfile(String firstName, String lastName, String email){
+		JSONObject elements = new JSONObject();
+		elements.put(FIRST_NAME_PARAM, profileValue(firstName));
+		elements.put(LAST_NAME_PARAM, profileValue(lastName));
+		elements.put(EMAIL_PARAM, profileValue(email));
+		JSONObject basic = new JSONObject();
+		basic.put("elements", elements);
+		basic.put("access", "everybody");
+		JSONObject profile = new JSONObject();
+		profile.put("basic", basic);
+		profile.put(EMAIL_PARAM, email);
+		return profile;
+	}
+
+	private JSONObject profileValue(String value){
+		JSONObject element = new JSONObject();
+		element.put("value", value);
+		return element;
+	}
+
+	/**
+	 * @return the subject, from this batch's resolver if there is one.
+	 * @throws SubjectNotFoundException
+	 */
+	private Subject findSubject(String userId) throws SubjectNotFoundException {
+		if (subjectResolver == null){
+			return SubjectFinder.findByIdOrIdentifier(userId, true);
+		}
+		Subject subject = subjectResolver.find(userId);
+		if (subject == null){
+			throw new SubjectNotFoundException("Unable to find the subject " + userId);
+		}
+		return subject;
+	}
+
 	/**
 	 * Send a batch request to delete the group and its pseudoGroups
 	 * @param groupId id of the group or one of its pseudoGroups
@@ -454,8 +1299,10 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	 * @throws GroupModificationException
 	 */
 	public void deleteGroup(String groupId, String groupName) throws GroupModificationException {
+		// Send the membership changes for this group before it goes away
+		flush();
+
 		String parentGroupId = groupIdAdapter.getWorldId(groupId);
-		HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
 
 		JSONArray batchRequests = new JSONArray();
 		// Add the delete requests for the parent group
@@ -487,7 +1334,8 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 
 		try {
 			if (!dryrun){
-				NakamuraHttpUtils.http(client, method);
+				send(Operation.WORLD_CREATE, method, ResponseMode.STATUS_ONLY);
+				forgetGroup(parentGroupId);
 				AuditLogUtils.audit(AuditLogUtils.GROUP_DELETED, null, parentGroupId, "deleted", AuditLogUtils.SUCCESS);
 				for (String suffix: pseudoGroupSuffixes){
 					AuditLogUtils.audit(AuditLogUtils.GROUP_DELETED, null, parentGroupId + "-" + suffix, "deleted", AuditLogUtils.SUCCESS);
@@ -507,7 +1355,7 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		List<String> roles = new ArrayList<String>();
 		GetMethod get = new GetMethod(url + GROUP_PATH_PREFIX + "/" + worldId + ".json");
 		try {
-			JSONObject json = NakamuraHttpUtils.http(NakamuraHttpUtils.getHttpClient(url, username, password), get);
+			JSONObject json = send(Operation.READ, get, ResponseMode.JSON);
 			if (json != null){
 				JSONArray jsonRoles = json.getJSONObject("properties").getJSONArray("sakai:roles");
 				for (Object jRole : jsonRoles){
@@ -532,7 +1380,6 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	 */
 	protected void createPseudoGroup(String nakamuraGroupId, String groupName, String description) throws GroupModificationException {
 		String role = nakamuraGroupId.substring(nakamuraGroupId.lastIndexOf('-') + 1);
-		HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
 		PostMethod method = new PostMethod(url + GROUP_CREATE_URI);
 		method.addParameter(":name", nakamuraGroupId);
 		method.addParameter(CHARSET_PARAM, UTF_8);
@@ -549,7 +1396,7 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 
 		try {
 			if (!dryrun){
-				NakamuraHttpUtils.http(client, method);
+				send(Operation.WORLD_CREATE, method, ResponseMode.STATUS_ONLY);
 			}
 			log.info("Created pseudoGroup in OAE for " + nakamuraGroupId);
 			AuditLogUtils.audit(AuditLogUtils.GROUP_CREATED, null, nakamuraGroupId, description, AuditLogUtils.SUCCESS);
@@ -560,6 +1407,253 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		}
 	}
 
+	/**
+	 * Queue a membership change. Send the queue when it's full or has been waiting too long.
+	 * @param write the membership change
+	 * @throws GroupModificationException if the queue was sent and any of the changes failed.
+	 */
+	protected synchronized void enqueue(MembershipWrite write) throws GroupModificationException {
+		if (pendingWrites.isEmpty()){
+			oldestPendingWrite = System.currentTimeMillis();
+		}
+		pendingWrites.add(write);
+		if (pendingWrites.size() >= coalesceMaxSize
+				|| System.currentTimeMillis() - oldestPendingWrite >= coalesceLinger){
+			flush();
+		}
+	}
+
+	/**
+	 * Wait for the requests in flight, then send the queued membership changes to OAE in batch requests.
+	 * The changes for each group are reduced to the last change for each member and sent
+	 * as one update request, see {@link #applyMembershipDelta(String, List, List)}.
+	 *
+	 * The queue is empty afterwards whether or not the requests succeeded.
+	 */
+	public synchronized void flush() throws GroupModificationException {
+		GroupModificationException failure = null;
+		try {
+			awaitDispatched();
+		}
+		catch (GroupModificationException gme){
+			failure = gme;
+		}
+		try {
+			sendPendingWrites();
+		}
+		catch (GroupModificationException gme){
+			failure = MembershipFlushException.combine(failure, gme);
+		}
+		if (failure != null){
+			throw failure;
+		}
+	}
+
+	protected synchronized boolean hasPendingWrites(){
+		return !pendingWrites.isEmpty();
+	}
+
+	/**
+	 * Send the queued membership changes to OAE in batch requests.
+	 * @throws MembershipFlushException naming the groups whose changes failed.
+	 */
+	protected synchronized void sendPendingWrites() throws GroupModificationException {
+		if (pendingWrites.isEmpty()){
+			return;
+		}
+		List<MembershipWrite> writes = new ArrayList<MembershipWrite>(pendingWrites);
+		pendingWrites.clear();
+
+		int failures = 0;
+		String lastError = null;
+		// Failures are counted in net changes, after adds and removes of the same member cancel out
+		int total = 0;
+		Set<String> failedGroupIds = new HashSet<String>();
+		for (int start = 0; start < writes.size(); start += coalesceMaxSize){
+			List<MembershipWrite> chunk = writes.subList(start, Math.min(start + coalesceMaxSize, writes.size()));
+			// One update request per group with all of its changes
+			Map<String, MembershipDelta> byGroup = new LinkedHashMap<String, MembershipDelta>();
+			for (MembershipWrite write : chunk){
+				MembershipDelta delta = byGroup.get(write.groupId);
+				if (delta == null){
+					delta = new MembershipDelta(write.groupId);
+					byGroup.put(write.groupId, delta);
+				}
+				delta.add(write);
+			}
+			List<MembershipDelta> deltas = new ArrayList<MembershipDelta>(byGroup.size());
+			JSONArray requests = new JSONArray();
+			for (MembershipDelta delta : byGroup.values()){
+				deltas.add(delta.build());
+				requests.add(makeMembershipDeltaRequest(delta));
+				total += delta.size();
+			}
+
+			JSONArray results = null;
+			try {
+				PostMethod method = new PostMethod(url + BATCH_URI);
+				method.setParameter(BATCH_REQUESTS_PARAM, requests.toString());
+				method.setParameter(CHARSET_PARAM, UTF_8);
+				NakamuraHttpUtils.markIdempotent(method);
+				JSONObject response = send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.JSON);
+				if (response != null && response.has(BATCH_RESULTS_PARAM)){
+					results = response.getJSONArray(BATCH_RESULTS_PARAM);
+				}
+			}
+			catch (GroupModificationException gme){
+				for (MembershipDelta delta : deltas){
+					auditMembershipDelta(delta, AuditLogUtils.FAILURE);
+					failures += delta.size();
+					failedGroupIds.add(delta.groupId);
+				}
+				lastError = gme.getMessage();
+				continue;
+			}
+
+			for (int i = 0; i < deltas.size(); i++){
+				MembershipDelta delta = deltas.get(i);
+				int status = batchResultStatus(results, i);
+				if (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED){
+					auditMembershipDelta(delta, AuditLogUtils.SUCCESS);
+					log.info("Updated group=" + delta.groupId + " added=" + StringUtils.join(delta.adds.toArray(), ",")
+							+ " deleted=" + StringUtils.join(delta.removes.toArray(), ","));
+				}
+				else {
+					auditMembershipDelta(delta, AuditLogUtils.FAILURE);
+					failures += delta.size();
+					failedGroupIds.add(delta.groupId);
+					// No result means the changes may not have been made. Send them again.
+					lastError = ((status == -1)? "No result" : String.valueOf(status)) + " for " + delta.groupId;
+				}
+			}
+		}
+		log.debug("Sent " + total + " membership changes to OAE");
+		if (failures > 0){
+			throw new MembershipFlushException(failedGroupIds, Collections.<String>emptySet(), failures + " of " + total
+					+ " membership changes failed. Last error: " + lastError);
+		}
+	}
+
+	/**
+	 * @return whether writes are sent by the {@link AsyncDispatcher}.
+	 */
+	protected boolean isAsync(){
+		return asyncWindow > 0 && !dryrun;
+	}
+
+	/**
+	 * Hand a write to the dispatcher. Writes for the same world are sent in order.
+	 * @param worldId the world the write belongs to
+	 * @param description for log and error messages
+	 * @param operation sends the write
+	 * @throws GroupModificationException if interrupted while waiting for room in the window
+	 */
+	protected void dispatch(String worldId, String description, Callable<Void> operation) throws GroupModificationException {
+		try {
+			dispatcher().submit(worldId, description, operation);
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new GroupModificationException("Interrupted waiting to " + description);
+		}
+	}
+
+	/**
+	 * Wait for every write handed to the dispatcher to finish, then stop its threads.
+	 * Grouper makes a new manager every run so they'd be left behind otherwise.
+	 * The next write starts a new dispatcher.
+	 * @throws MembershipFlushException naming the worlds whose writes failed
+	 */
+	protected void awaitDispatched() throws GroupModificationException {
+		AsyncDispatcher d;
+		synchronized (this){
+			d = dispatcher;
+			dispatcher = null;
+		}
+		if (d == null){
+			return;
+		}
+		List<Throwable> failures;
+		Set<String> failedWorldIds = new HashSet<String>();
+		try {
+			failures = d.await(failedWorldIds);
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new GroupModificationException("Interrupted waiting for the requests in flight to OAE.");
+		}
+		finally {
+			d.shutdown();
+			log.info(d);
+		}
+		if (!failures.isEmpty()){
+			throw new MembershipFlushException(Collections.<String>emptySet(), failedWorldIds, failures.size() + " requests to OAE failed. Last error: "
+					+ failures.get(failures.size() - 1).getMessage());
+		}
+	}
+
+	/**
+	 * @return the pool that sends chunks to this OAE server, creating it the first time.
+	 */
+	private ExecutorService getChunkPool(){
+		final String key = url.getHost() + ":" + NakamuraHttpUtils.getPort(url) + "/" + chunkParallelism;
+		ExecutorService pool = chunkPools.get(key);
+		if (pool == null){
+			final AtomicInteger threadCount = new AtomicInteger();
+			ExecutorService created = Executors.newFixedThreadPool(chunkParallelism, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, key + "-chunk-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pool = chunkPools.putIfAbsent(key, created);
+			if (pool == null){
+				pool = created;
+			}
+			else {
+				// Another manager got there first. No threads have been started yet.
+				created.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the chunk sizer for bulk membership changes, for monitoring.
+	 */
+	public AdaptiveChunkSizer getChunkSizer(){
+		return chunkSizer;
+	}
+
+	/**
+	 * @return the dispatcher for the writes since the last flush, created with asyncWindow threads.
+	 */
+	private synchronized AsyncDispatcher dispatcher(){
+		if (dispatcher == null){
+			dispatcher = new AsyncDispatcher(url.getHost(), asyncWindow);
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * @return the dispatcher for the writes since the last flush. null if there haven't been any.
+	 */
+	public synchronized AsyncDispatcher getDispatcher(){
+		return dispatcher;
+	}
+
+	private void auditMembershipDelta(MembershipDelta delta, int status){
+		String parentGroupId = groupIdAdapter.getWorldId(delta.groupId);
+		String role = StringUtils.substringAfterLast(delta.groupId, "-");
+		for (String memberId : delta.adds){
+			AuditLogUtils.audit(AuditLogUtils.USER_ADDED, memberId, parentGroupId, role, status);
+		}
+		for (String memberId : delta.removes){
+			AuditLogUtils.audit(AuditLogUtils.USER_DELETED, memberId, parentGroupId, role, status);
+		}
+	}
+
 	/**
 	 * Send a batch request to Sakai OAE.
 	 * @param requests a JSONArray for JSONObjects. Each JSONObject represents a request.
@@ -570,7 +1664,7 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 		method.setParameter(BATCH_REQUESTS_PARAM, requests.toString());
 		method.setParameter(CHARSET_PARAM, UTF_8);
 		if (!dryrun){
-			NakamuraHttpUtils.http(NakamuraHttpUtils.getHttpClient(url, username, password), method);
+			send(Operation.MEMBERSHIP_WRITE, method, ResponseMode.STATUS_ONLY);
 		}
 	}
 
@@ -579,23 +1673,129 @@ public class HttpNakamuraManagerImpl implements NakamuraManager {
 	 * @return does this user exist in Sakai OAE?
 	 */
 	private boolean userExists(String userId){
-		boolean exists = false;
-		if (dryrun || userExistsInSakai.containsKey(userId)){
-			exists = true;
+		if (dryrun){
+			return true;
 		}
-		if (!exists){
-			try {
-				HttpClient client = NakamuraHttpUtils.getHttpClient(url, username, password);
-				int returnCode = client.executeMethod(new GetMethod(url.toString() + "/system/userManager/user/" + userId + ".json"));
-				exists = (returnCode == HttpStatus.SC_OK);
-			}
-			catch (IOException ioe){
-				log.error("Could not communicate with OAE to check if a user exists.");
+		Boolean cached = userExistsInSakai.get(userId);
+		if (cached != null){
+			return cached.booleanValue();
+		}
+		if (idStore != null && idStore.containsUser(userId)){
+			userExistsInSakai.put(userId, true);
+			return true;
+		}
+		boolean exists = false;
+		GetMethod method = new GetMethod(url.toString() + getUserURI(userId));
+		try {
+			HttpClient client = getHttpClient();
+			throttle(Operation.READ);
+			long start = System.currentTimeMillis();
+			int returnCode = client.executeMethod(method);
+			recordLatency(System.currentTimeMillis() - start);
+			exists = (returnCode == HttpStatus.SC_OK);
+			if (exists || returnCode == HttpStatus.SC_NOT_FOUND){
+				userFound(userId, exists);
 			}
 		}
+		catch (IOException ioe){
+			log.error("Could not communicate with OAE to check if a user exists.");
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			method.releaseConnection();
+		}
 		return exists;
 	}
 
+	/**
+	 * Send a request to OAE once the {@link RateGovernor} allows it.
+	 * @param operation the kind of request, for the governor
+	 * @param method the request
+	 * @param mode how much of the response we need
+	 * @return the response, as {@link NakamuraHttpUtils#http(HttpClient, org.apache.commons.httpclient.HttpMethod, ResponseMode)}
+	 * @throws GroupModificationException
+	 */
+	protected JSONObject send(Operation operation, HttpMethodBase method, ResponseMode mode) throws GroupModificationException {
+		try {
+			throttle(operation);
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new GroupModificationException("Interrupted waiting to send " + method.getName() + " " + method.getPath());
+		}
+		return NakamuraHttpUtils.http(getHttpClient(), method, mode, latencyListener);
+	}
+
+	/**
+	 * Wait until the governor lets this kind of request through.
+	 */
+	protected void throttle(Operation operation) throws InterruptedException {
+		RateGovernor g = governor;
+		if (g != null){
+			g.acquire(operation);
+		}
+	}
+
+	// Feeds each attempt's latency to the governor, not counting retry backoff
+	private final NakamuraHttpUtils.LatencyListener latencyListener = new NakamuraHttpUtils.LatencyListener() {
+		public void attempted(long millis){
+			recordLatency(millis);
+		}
+	};
+
+	private void recordLatency(long millis){
+		RateGovernor g = governor;
+		if (g != null){
+			g.recordLatency(millis);
+		}
+	}
+
+	/**
+	 * @return the shared, pooled client for this OAE server.
+	 */
+	protected HttpClient getHttpClient(){
+		return NakamuraHttpUtils.getHttpClient(url, username, password);
+	}
+
+	/**
+	 * @return the cache of which groups exist in OAE, for monitoring.
+	 */
+	public ExistenceCache getGroupExistenceCache(){
+		return groupExistsInSakai;
+	}
+
+	/**
+	 * @return the cache of which users exist in OAE, for monitoring.
+	 */
+	public ExistenceCache getUserExistenceCache(){
+		return userExistsInSakai;
+	}
+
+	/**
+	 * @return the connection pool for this OAE server, for monitoring.
+	 */
+	public HttpConnectionPool getConnectionPool(){
+		return HttpConnectionPool.getPool(url, username, password);
+	}
+
+	/**
+	 * @param groupId the id of the OAE group
+	 * @return the URI to the group's JSON representation.
+	 */
+	protected String getGroupURI(String groupId){
+		return GROUP_PATH_PREFIX + "/" + groupId + ".json";
+	}
+
+	/**
+	 * @param userId the id of the OAE user
+	 * @return the URI to the user's JSON representation.
+	 */
+	protected String getUserURI(String userId){
+		return USER_PATH_PREFIX + "/" + userId + ".json";
+	}
+
 	/**
 	 * @param groupId the id of the OAE group
 	 * @return the URI to the delete operation.
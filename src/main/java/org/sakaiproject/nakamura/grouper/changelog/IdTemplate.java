@@ -0,0 +1,267 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import org.apache.commons.jexl2.Expression;
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+
+/**
+ * A group id template compiled once and safe to share between threads.
+ *
+ * Most templates just glue string literals and captured groups together:
+ *
+ * 'course_' + g[2] + '_' + g[3]
+ *
+ * Those are turned into a list of parts and filled in with a StringBuilder.
+ * Anything else is handed to Jexl, parsed once.
+ *
+ * Jexl adds two operands as numbers when they both look like numbers, so a plain
+ * concatenation only skips Jexl when one of the first two parts is a literal that
+ * can't be part of a number, like '_'. After that every + is a string concatenation.
+ */
+public abstract class IdTemplate {
+
+	private final String source;
+
+	protected IdTemplate(String source){
+		this.source = source;
+	}
+
+	/**
+	 * @return the template this was compiled from.
+	 */
+	public String getSource(){
+		return source;
+	}
+
+	/**
+	 * @param matcher a matcher that has matched the grouper name
+	 * @return the group id, or null if the template produced nothing.
+	 * @throws ClassCastException if a Jexl template doesn't produce a String
+	 */
+	public abstract String apply(Matcher matcher);
+
+	/**
+	 * @return whether this template is evaluated without Jexl.
+	 */
+	public abstract boolean isCompiled();
+
+	/**
+	 * @param template the group id template
+	 * @param groupCount how many groups the name pattern captures
+	 * @return the compiled template.
+	 */
+	public static IdTemplate compile(String template, int groupCount){
+		List<Object> parts = parse(template);
+		if (parts != null && isPlainConcatenation(parts, groupCount)){
+			return new Concatenation(template, parts);
+		}
+		return new JexlTemplate(template);
+	}
+
+	/**
+	 * Split a template into String literals and Integer capture indexes.
+	 * @return the parts, or null if the template isn't a plain concatenation.
+	 */
+	static List<Object> parse(String template){
+		List<Object> parts = new ArrayList<Object>();
+		int i = skipSpace(template, 0);
+		int length = template.length();
+		while (i < length){
+			char c = template.charAt(i);
+			if (c == '\'' || c == '"'){
+				StringBuilder literal = new StringBuilder();
+				i++;
+				while (i < length && template.charAt(i) != c){
+					if (template.charAt(i) == '\\' && i + 1 < length){
+						i++;
+					}
+					literal.append(template.charAt(i));
+					i++;
+				}
+				if (i >= length){
+					return null;
+				}
+				parts.add(literal.toString());
+				i++;
+			}
+			else if (c == 'g'){
+				i = skipSpace(template, i + 1);
+				if (i >= length || template.charAt(i) != '['){
+					return null;
+				}
+				i = skipSpace(template, i + 1);
+				int start = i;
+				while (i < length && Character.isDigit(template.charAt(i))){
+					i++;
+				}
+				if (start == i){
+					return null;
+				}
+				parts.add(Integer.valueOf(template.substring(start, i)));
+				i = skipSpace(template, i);
+				if (i >= length || template.charAt(i) != ']'){
+					return null;
+				}
+				i++;
+			}
+			else {
+				return null;
+			}
+			i = skipSpace(template, i);
+			if (i < length){
+				if (template.charAt(i) != '+'){
+					return null;
+				}
+				i = skipSpace(template, i + 1);
+				if (i >= length){
+					return null;
+				}
+			}
+		}
+		return parts.isEmpty()? null : parts;
+	}
+
+	private static int skipSpace(String s, int i){
+		while (i < s.length() && Character.isWhitespace(s.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isPlainConcatenation(List<Object> parts, int groupCount){
+		for (Object part : parts){
+			if (part instanceof Integer && (Integer)part >= groupCount){
+				// Let Jexl decide what an out of range capture means
+				return false;
+			}
+		}
+		return parts.size() == 1 || isNeverNumeric(parts.get(0)) || isNeverNumeric(parts.get(1));
+	}
+
+	/**
+	 * @return whether no string containing this part can be read as a number.
+	 */
+	private static boolean isNeverNumeric(Object part){
+		if (!(part instanceof String)){
+			return false;
+		}
+		String literal = (String)part;
+		for (int i = 0; i < literal.length(); i++){
+			char c = literal.charAt(i);
+			if (!Character.isLetterOrDigit(c) && !Character.isWhitespace(c)
+					&& c != '.' && c != '+' && c != '-'){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Literals and captured groups joined together.
+	 */
+	static class Concatenation extends IdTemplate {
+		// String literals and Integer capture indexes
+		private final Object[] parts;
+		private final int literalLength;
+
+		Concatenation(String template, List<Object> parts){
+			super(template);
+			this.parts = parts.toArray();
+			int length = 0;
+			for (Object part : parts){
+				if (part instanceof String){
+					length += ((String)part).length();
+				}
+			}
+			this.literalLength = length;
+		}
+
+		@Override
+		public String apply(Matcher matcher){
+			StringBuilder id = new StringBuilder(literalLength + 32);
+			for (Object part : parts){
+				if (part instanceof String){
+					id.append((String)part);
+				}
+				else {
+					// g[0] is the first captured group. Groups that didn't match are empty, as in Jexl.
+					String group = matcher.group((Integer)part + 1);
+					if (group != null){
+						id.append(group);
+					}
+				}
+			}
+			return id.toString();
+		}
+
+		@Override
+		public boolean isCompiled(){
+			return true;
+		}
+
+		@Override
+		public String toString(){
+			return "IdTemplate" + Arrays.toString(parts);
+		}
+	}
+
+	/**
+	 * A template parsed once by Jexl and evaluated with a fresh context each time.
+	 */
+	static class JexlTemplate extends IdTemplate {
+		private static final JexlEngine jexl = new JexlEngine();
+
+		private final Expression expression;
+
+		JexlTemplate(String template){
+			super(template);
+			synchronized (jexl){
+				this.expression = jexl.createExpression(template);
+			}
+		}
+
+		@Override
+		public String apply(Matcher matcher){
+			List<String> g = new ArrayList<String>(matcher.groupCount());
+			for (int i = 1; i <= matcher.groupCount(); i++){
+				g.add(matcher.group(i));
+			}
+			Map<String, Object> vars = new HashMap<String, Object>();
+			vars.put("g", g);
+			return (String)expression.evaluate(new MapContext(vars));
+		}
+
+		@Override
+		public boolean isCompiled(){
+			return false;
+		}
+
+		@Override
+		public String toString(){
+			return "IdTemplate[jexl: " + expression.getExpression() + "]";
+		}
+	}
+}
@@ -16,22 +16,14 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.jexl2.Expression;
-import org.apache.commons.jexl2.JexlContext;
-import org.apache.commons.jexl2.JexlEngine;
-import org.apache.commons.jexl2.MapContext;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdAdapter;
 
-import com.google.common.collect.ImmutableMap;
-
 import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
 
 /**
@@ -42,7 +34,9 @@ import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
  * in the regular expression {@link Pattern} are available as an array named g.
  *
  * This implementation uses the Jexl2 expression language because its pretty
- * simple and available already on the grouper loader classpath.
+ * simple and available already on the grouper loader classpath. Templates that
+ * only join strings and captured groups are compiled so they don't need Jexl
+ * at all. See {@link IdTemplate}.
  *
  * Configure this component in the grouper-loader.properties
  * nakamura.groupname.regex = "pre:fix:([^:]+):([^:]+):([^:]+)"
@@ -56,6 +50,8 @@ public class TemplateGroupIdAdapter extends AbstractGroupIdAdapter implements Gr
 	protected Pattern pattern;
 	// Used to create an id for Sakai OAE
 	protected String nakamuraIdTemplate;
+	// nakamuraIdTemplate ready to run
+	private volatile IdTemplate compiledTemplate;
 
 	// Configuration keys
 	public static final String PROP_REGEX = "TemplateGroupIdAdapter.groupName.regex";
@@ -69,6 +65,7 @@ public class TemplateGroupIdAdapter extends AbstractGroupIdAdapter implements Gr
 		String cfgPrefix = "changeLog.consumer." + consumerName + ".";
 		pattern = Pattern.compile(GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_REGEX, true));
 		nakamuraIdTemplate = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_NAKID_TEMPLATE, true);
+		log.info("Compiled the group id template : " + getCompiledTemplate());
 	}
 
 	@Override
@@ -122,19 +119,18 @@ public class TemplateGroupIdAdapter extends AbstractGroupIdAdapter implements Gr
 		if (!matcher.find()){
 			throw new Exception(grouperName + " does not match the regex in ");
 		}
+		return getCompiledTemplate().apply(matcher);
+	}
 
-		List<String> g = new ArrayList<String>();
-		for (int i = 1; i <= matcher.groupCount(); i++){
-			g.add(matcher.group(i));
-		}
-
-		Expression e = new JexlEngine().createExpression(nakamuraIdTemplate);
-		JexlContext jc = new MapContext(ImmutableMap.of("g", (Object)g));
-		String nakamuraGroupId = (String)e.evaluate(jc);
-
-		if (nakamuraGroupId == null){
-			return null;
+	/**
+	 * @return nakamuraIdTemplate compiled for the current pattern.
+	 */
+	protected IdTemplate getCompiledTemplate(){
+		IdTemplate compiled = compiledTemplate;
+		if (compiled == null || !compiled.getSource().equals(nakamuraIdTemplate)){
+			compiled = IdTemplate.compile(nakamuraIdTemplate, pattern.matcher("").groupCount());
+			compiledTemplate = compiled;
 		}
-		return nakamuraGroupId;
+		return compiled;
 	}
 }
@@ -16,6 +16,7 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog.api;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -58,6 +59,13 @@ public interface NakamuraManager {
 	 */
 	public void createUser(String userId) throws UserModificationException;
 
+	/**
+	 * Create the users that don't already exist in Sakai OAE
+	 * @param userIds the ids of the Users
+	 * @throws UserModificationException listing the users that couldn't be created
+	 */
+	public void createUsers(Collection<String> userIds) throws UserModificationException;
+
 	/**
 	 * Add a subject to a group.
 	 * @param groupId the id of the group in OAE
@@ -92,6 +100,30 @@ public interface NakamuraManager {
 	 */
 	public void deleteMembership(String groupId, String subjectId) throws GroupModificationException;
 
+	/**
+	 * Remove a list of subjects from a group.
+	 * @param groupId the id of the group in OAE
+	 * @param subjectIds the ids of the subjects being removed
+	 * @throws GroupModificationException
+	 */
+	public void deleteMemberships(String groupId, List<String> subjectIds) throws GroupModificationException;
+
+	/**
+	 * Add and remove members of a group in one request.
+	 * @param groupId the id of the group in OAE
+	 * @param addSubjectIds the ids of the subjects being added
+	 * @param removeSubjectIds the ids of the subjects being removed. Must not overlap addSubjectIds.
+	 * @throws GroupModificationException
+	 */
+	public void applyMembershipDelta(String groupId, List<String> addSubjectIds, List<String> removeSubjectIds) throws GroupModificationException;
+
+	/**
+	 * Send any membership changes that are queued up waiting to go to OAE.
+	 * The queue is empty afterwards, even if sending failed.
+	 * @throws GroupModificationException if any of the changes failed
+	 */
+	public void flush() throws GroupModificationException;
+
 	/**
 	 * Does the group exist in SakaiOAE?
 	 * @param groupId the id of the group in OAE
@@ -99,6 +131,16 @@ public interface NakamuraManager {
 	 */
 	public boolean groupExists(String groupId) throws GrouperException;
 
+	/**
+	 * Look up whether a set of groups and users exist in Sakai OAE in as few
+	 * requests as possible and remember the answers. Later calls to
+	 * {@link #groupExists(String)} and {@link #createUser(String)} for these
+	 * ids won't need to ask OAE again.
+	 * @param groupIds the ids of groups in OAE
+	 * @param userIds the ids of users in OAE
+	 */
+	public void prefetchExistence(Collection<String> groupIds, Collection<String> userIds);
+
 	/**
 	 * Set a property on a group in Sakai OAE
 	 * @param groupId the id of the group in OAE
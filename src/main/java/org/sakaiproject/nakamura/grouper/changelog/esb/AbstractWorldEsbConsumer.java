@@ -16,37 +16,62 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog.esb;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.nakamura.grouper.changelog.AbstractGroupIdAdapter;
+import org.sakaiproject.nakamura.grouper.changelog.CachingGroupIdManager;
+import org.sakaiproject.nakamura.grouper.changelog.HttpNakamuraManagerImpl;
 import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
 import org.sakaiproject.nakamura.grouper.changelog.api.NakamuraManager;
 import org.sakaiproject.nakamura.grouper.changelog.api.WorldConstants;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipFlushException;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.util.AdaptiveChunkSizer;
+import org.sakaiproject.nakamura.grouper.changelog.util.ChangeLogEvent;
 import org.sakaiproject.nakamura.grouper.changelog.util.ChangeLogUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.CircuitBreaker;
+import org.sakaiproject.nakamura.grouper.changelog.util.ExistenceCache;
+import org.sakaiproject.nakamura.grouper.changelog.util.GroupLookupCache;
+import org.sakaiproject.nakamura.grouper.changelog.util.HttpConnectionPool;
+import org.sakaiproject.nakamura.grouper.changelog.util.ImmediateMemberPages;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.ParkingLot;
+import org.sakaiproject.nakamura.grouper.changelog.util.PendingMemberships;
+import org.sakaiproject.nakamura.grouper.changelog.util.PersistentIdStore;
+import org.sakaiproject.nakamura.grouper.changelog.util.ProvisioningPipeline;
+import org.sakaiproject.nakamura.grouper.changelog.util.RateGovernor;
+import org.sakaiproject.nakamura.grouper.changelog.util.RetryPolicy;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemAttributeResolver;
+import org.sakaiproject.nakamura.grouper.changelog.util.SubjectResolver;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import edu.internet2.middleware.grouper.Group;
-import edu.internet2.middleware.grouper.GroupFinder;
 import edu.internet2.middleware.grouper.GroupType;
 import edu.internet2.middleware.grouper.GrouperSession;
-import edu.internet2.middleware.grouper.Member;
-import edu.internet2.middleware.grouper.Stem;
 import edu.internet2.middleware.grouper.Stem.Scope;
-import edu.internet2.middleware.grouper.SubjectFinder;
 import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogConsumerBase;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
@@ -56,7 +81,6 @@ import edu.internet2.middleware.grouper.exception.GrouperException;
 import edu.internet2.middleware.grouper.exception.SessionException;
 import edu.internet2.middleware.grouper.misc.SaveMode;
 import edu.internet2.middleware.subject.Subject;
-import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
 
 /**
  * Common data and methods for the other EsbConsumers.
@@ -77,6 +101,159 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	public static final String PROP_PASSWORD = "password";
 	protected String password;
 
+	public static final String PROP_HTTP_MAX_CONNECTIONS = "http.max.connections";
+	protected int httpMaxConnections = HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	public static final String PROP_HTTP_CONNECT_TIMEOUT = "http.connect.timeout";
+	protected int httpConnectTimeout = HttpConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+
+	public static final String PROP_HTTP_READ_TIMEOUT = "http.read.timeout";
+	protected int httpReadTimeout = HttpConnectionPool.DEFAULT_READ_TIMEOUT;
+
+	public static final String PROP_HTTP_IDLE_TIMEOUT = "http.idle.timeout";
+	protected int httpIdleTimeout = HttpConnectionPool.DEFAULT_IDLE_TIMEOUT;
+
+	public static final String PROP_HTTP_MAX_RESPONSE_SIZE = "http.max.response.size";
+	protected int httpMaxResponseSize = NakamuraHttpUtils.DEFAULT_MAX_RESPONSE_SIZE;
+
+	public static final String PROP_HTTP_RETRY_MAX = "http.retry.max";
+	protected int httpRetryMax = RetryPolicy.DEFAULT_MAX_RETRIES;
+
+	public static final String PROP_HTTP_RETRY_DELAY = "http.retry.delay";
+	protected long httpRetryDelay = RetryPolicy.DEFAULT_BASE_DELAY;
+
+	public static final String PROP_HTTP_RETRY_MAX_DELAY = "http.retry.max.delay";
+	protected long httpRetryMaxDelay = RetryPolicy.DEFAULT_MAX_DELAY;
+
+	public static final String PROP_HTTP_BREAKER_FAILURES = "http.breaker.failures";
+	protected int httpBreakerFailures = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+	public static final String PROP_HTTP_BREAKER_OPEN = "http.breaker.open";
+	protected long httpBreakerOpen = CircuitBreaker.DEFAULT_OPEN_DURATION;
+
+	public static final String PROP_PREFETCH_EXISTENCE = "prefetch.existence";
+	public static final boolean DEFAULT_PREFETCH_EXISTENCE = true;
+	protected boolean prefetchExistence = DEFAULT_PREFETCH_EXISTENCE;
+
+	public static final String PROP_PREFETCH_BATCH_SIZE = "prefetch.batch.size";
+	protected int prefetchBatchSize = HttpNakamuraManagerImpl.DEFAULT_PREFETCH_BATCH_SIZE;
+
+	public static final String PROP_USER_BATCH_SIZE = "user.batch.size";
+	protected int userBatchSize = HttpNakamuraManagerImpl.DEFAULT_USER_BATCH_SIZE;
+
+	public static final String PROP_PREFETCH_SUBJECTS = "prefetch.subjects";
+	public static final boolean DEFAULT_PREFETCH_SUBJECTS = true;
+	protected boolean prefetchSubjects = DEFAULT_PREFETCH_SUBJECTS;
+
+	// Grouper subjects looked up for the current batch
+	protected SubjectResolver subjectResolver = new SubjectResolver();
+
+	public static final String PROP_GROUP_CACHE_SIZE = "group.cache.size";
+	protected int groupCacheSize = GroupLookupCache.DEFAULT_MAX_SIZE;
+
+	public static final String PROP_GROUP_CACHE_TTL = "group.cache.ttl";
+	protected long groupCacheTtl = GroupLookupCache.DEFAULT_TTL;
+
+	// Grouper groups we've looked up
+	protected GroupLookupCache groupLookupCache = new GroupLookupCache();
+
+	public static final String PROP_MEMBER_PAGE_SIZE = "member.page.size";
+	protected int memberPageSize = ImmediateMemberPages.DEFAULT_PAGE_SIZE;
+
+	public static final String PROP_PROVISION_ENUMERATORS = "provision.enumerators";
+	protected int provisionEnumerators = ProvisioningPipeline.DEFAULT_ENUMERATORS;
+
+	public static final String PROP_PROVISION_USER_WORKERS = "provision.user.workers";
+	protected int provisionUserWorkers = ProvisioningPipeline.DEFAULT_USER_WORKERS;
+
+	public static final String PROP_PROVISION_WRITERS = "provision.writers";
+	protected int provisionWriters = ProvisioningPipeline.DEFAULT_WRITERS;
+
+	public static final String PROP_PROVISION_QUEUE_SIZE = "provision.queue.size";
+	protected int provisionQueueSize = ProvisioningPipeline.DEFAULT_QUEUE_SIZE;
+
+	public static final String PROP_STEM_ATTRIBUTE_CACHE_TTL = "stem.attribute.cache.ttl";
+	protected long stemAttributeCacheTtl = StemAttributeResolver.DEFAULT_TTL;
+
+	public static final String PROP_EXISTENCE_CACHE_SIZE = "existence.cache.size";
+	protected int existenceCacheSize = ExistenceCache.DEFAULT_MAX_SIZE;
+
+	public static final String PROP_EXISTENCE_CACHE_TTL = "existence.cache.ttl";
+	protected long existenceCacheTtl = ExistenceCache.DEFAULT_POSITIVE_TTL;
+
+	public static final String PROP_EXISTENCE_CACHE_NEGATIVE_TTL = "existence.cache.negative.ttl";
+	protected long existenceCacheNegativeTtl = ExistenceCache.DEFAULT_NEGATIVE_TTL;
+
+	public static final String PROP_GROUP_ID_CACHE_SIZE = "group.id.cache.size";
+	protected int groupIdCacheSize = CachingGroupIdManager.DEFAULT_MAX_SIZE;
+
+	public static final String PROP_ID_STORE_DIRECTORY = "id.store.directory";
+	protected String idStoreDirectory;
+
+	public static final String PROP_ID_STORE_VERSION = "id.store.version";
+	public static final String DEFAULT_ID_STORE_VERSION = "1";
+	protected String idStoreVersion = DEFAULT_ID_STORE_VERSION;
+
+	public static final String PROP_COALESCE_MEMBERSHIPS = "membership.coalesce";
+	public static final boolean DEFAULT_COALESCE_MEMBERSHIPS = false;
+	protected boolean coalesceMemberships = DEFAULT_COALESCE_MEMBERSHIPS;
+
+	public static final String PROP_MEMBERSHIP_DELTAS = "membership.delta";
+	public static final boolean DEFAULT_MEMBERSHIP_DELTAS = true;
+	protected boolean membershipDeltas = DEFAULT_MEMBERSHIP_DELTAS;
+
+	public static final String PROP_COALESCE_MAX_SIZE = "membership.coalesce.size";
+	protected int coalesceMaxSize = HttpNakamuraManagerImpl.DEFAULT_COALESCE_MAX_SIZE;
+
+	public static final String PROP_COALESCE_LINGER = "membership.coalesce.linger";
+	protected long coalesceLinger = HttpNakamuraManagerImpl.DEFAULT_COALESCE_LINGER;
+
+	public static final String PROP_RATE_WORLD_CREATE = "rate.world.create";
+	protected int rateWorldCreate = 0;
+
+	public static final String PROP_RATE_USER_CREATE = "rate.user.create";
+	protected int rateUserCreate = 0;
+
+	public static final String PROP_RATE_MEMBERSHIP_WRITE = "rate.membership.write";
+	protected int rateMembershipWrite = 0;
+
+	public static final String PROP_RATE_READ = "rate.read";
+	protected int rateRead = 0;
+
+	public static final String PROP_RATE_LATENCY_THRESHOLD = "rate.latency.threshold";
+	protected long rateLatencyThreshold = RateGovernor.DEFAULT_LATENCY_THRESHOLD;
+
+	public static final String PROP_CHUNK_MIN_SIZE = "membership.chunk.min";
+	protected int chunkMinSize = AdaptiveChunkSizer.DEFAULT_MIN_SIZE;
+
+	public static final String PROP_CHUNK_MAX_SIZE = "membership.chunk.max";
+	protected int chunkMaxSize = AdaptiveChunkSizer.DEFAULT_MAX_SIZE;
+
+	public static final String PROP_CHUNK_TARGET_LATENCY = "membership.chunk.target.latency";
+	protected long chunkTargetLatency = AdaptiveChunkSizer.DEFAULT_TARGET_LATENCY;
+
+	public static final String PROP_CHUNK_PARALLELISM = "membership.chunk.parallelism";
+	protected int chunkParallelism = HttpNakamuraManagerImpl.DEFAULT_CHUNK_PARALLELISM;
+
+	public static final String PROP_ASYNC_WINDOW = "http.async.window";
+	public static final int DEFAULT_ASYNC_WINDOW = 0;
+	protected int asyncWindow = DEFAULT_ASYNC_WINDOW;
+
+	public static final String PROP_PARALLEL_WORKERS = "parallel.workers";
+	public static final int DEFAULT_PARALLEL_WORKERS = 1;
+	protected int parallelWorkers = DEFAULT_PARALLEL_WORKERS;
+
+	public static final String PROP_COMPACT_BATCHES = "batch.compact";
+	public static final boolean DEFAULT_COMPACT_BATCHES = true;
+	protected boolean compactBatches = DEFAULT_COMPACT_BATCHES;
+
+	public static final String PROP_PARKING_DIRECTORY = "parking.directory";
+	protected String parkingDirectory;
+
+	public static final String PROP_PARKING_MAX_FAILURES = "parking.max.failures";
+	public static final int DEFAULT_PARKING_MAX_FAILURES = 3;
+	protected int parkingMaxFailures = DEFAULT_PARKING_MAX_FAILURES;
+
 	public static final String PROP_DRYRUN = "dryrun";
 	public static final boolean DEFAULT_DRYRUN = false;
 	protected boolean dryrun = DEFAULT_DRYRUN;
@@ -135,6 +312,20 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	// Authenticated session for the Grouper API
 	protected GrouperSession grouperSession;
 
+	// Worker threads each get their own session
+	protected final ThreadLocal<GrouperSession> workerSession = new ThreadLocal<GrouperSession>();
+
+	// The membership changes of the batch or partition this thread is processing.
+	// Not set when changes go straight to OAE.
+	protected final ThreadLocal<PendingMemberships> pendingMemberships = new ThreadLocal<PendingMemberships>();
+
+	// The users created by the partitions of a parallel batch. Each is created once and the
+	// other partitions wait for it. null when the batch is processed on one thread.
+	protected volatile ConcurrentHashMap<String, FutureTask<Void>> createdUsers;
+
+	// Entries that keep failing. null if parking isn't configured.
+	protected ParkingLot parkingLot;
+
 	// Interact with OAE
 	protected NakamuraManager nakamuraManager;
 
@@ -149,6 +340,8 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	private Map<String,String> defaultTemplates;
 
 	public static final String PROP_WORLD_TEMPLATE_PATH = "sakai:worldTemplatePath";
+	// Finds the template path on a group or the stems above it
+	protected StemAttributeResolver templatePathResolver = new StemAttributeResolver(PROP_WORLD_TEMPLATE_PATH);
 	
 	public static final String MEMBER_SUFFIX = "member";
 	public static final String MANAGER_SUFFIX = "manager";
@@ -176,6 +369,121 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		log.info("Sakai OAE username = " + username);
 		password = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_PASSWORD, true);
 		log.info("Sakai OAE password = XXXXXXXXX");
+
+		httpMaxConnections = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_MAX_CONNECTIONS, HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		log.info("httpMaxConnections = " + httpMaxConnections);
+		httpConnectTimeout = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_CONNECT_TIMEOUT, HttpConnectionPool.DEFAULT_CONNECT_TIMEOUT);
+		log.info("httpConnectTimeout = " + httpConnectTimeout);
+		httpReadTimeout = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_READ_TIMEOUT, HttpConnectionPool.DEFAULT_READ_TIMEOUT);
+		log.info("httpReadTimeout = " + httpReadTimeout);
+		httpIdleTimeout = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_IDLE_TIMEOUT, HttpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+		log.info("httpIdleTimeout = " + httpIdleTimeout);
+		HttpConnectionPool.configure(url, username, password,
+				httpMaxConnections, httpConnectTimeout, httpReadTimeout, httpIdleTimeout);
+		httpMaxResponseSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_MAX_RESPONSE_SIZE, NakamuraHttpUtils.DEFAULT_MAX_RESPONSE_SIZE);
+		log.info("httpMaxResponseSize = " + httpMaxResponseSize);
+		NakamuraHttpUtils.setMaxResponseSize(httpMaxResponseSize);
+
+		httpRetryMax = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_RETRY_MAX, RetryPolicy.DEFAULT_MAX_RETRIES);
+		log.info("httpRetryMax = " + httpRetryMax);
+		httpRetryDelay = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_RETRY_DELAY, (int)RetryPolicy.DEFAULT_BASE_DELAY);
+		log.info("httpRetryDelay = " + httpRetryDelay);
+		httpRetryMaxDelay = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_RETRY_MAX_DELAY, (int)RetryPolicy.DEFAULT_MAX_DELAY);
+		log.info("httpRetryMaxDelay = " + httpRetryMaxDelay);
+		NakamuraHttpUtils.setRetryPolicy(new RetryPolicy(httpRetryMax, httpRetryDelay, httpRetryMaxDelay));
+
+		httpBreakerFailures = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_BREAKER_FAILURES, CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+		log.info("httpBreakerFailures = " + httpBreakerFailures);
+		httpBreakerOpen = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_HTTP_BREAKER_OPEN, (int)CircuitBreaker.DEFAULT_OPEN_DURATION);
+		log.info("httpBreakerOpen = " + httpBreakerOpen);
+		NakamuraHttpUtils.configureCircuitBreakers(httpBreakerFailures, httpBreakerOpen);
+
+		prefetchExistence = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_PREFETCH_EXISTENCE, DEFAULT_PREFETCH_EXISTENCE);
+		log.info("prefetchExistence = " + prefetchExistence);
+		prefetchBatchSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PREFETCH_BATCH_SIZE, HttpNakamuraManagerImpl.DEFAULT_PREFETCH_BATCH_SIZE);
+		log.info("prefetchBatchSize = " + prefetchBatchSize);
+		userBatchSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_USER_BATCH_SIZE, HttpNakamuraManagerImpl.DEFAULT_USER_BATCH_SIZE);
+		log.info("userBatchSize = " + userBatchSize);
+		prefetchSubjects = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_PREFETCH_SUBJECTS, DEFAULT_PREFETCH_SUBJECTS);
+		log.info("prefetchSubjects = " + prefetchSubjects);
+
+		groupCacheSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_GROUP_CACHE_SIZE, GroupLookupCache.DEFAULT_MAX_SIZE);
+		log.info("groupCacheSize = " + groupCacheSize);
+		groupCacheTtl = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_GROUP_CACHE_TTL, (int)GroupLookupCache.DEFAULT_TTL);
+		log.info("groupCacheTtl = " + groupCacheTtl);
+		groupLookupCache = new GroupLookupCache(groupCacheSize, groupCacheTtl);
+		memberPageSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_MEMBER_PAGE_SIZE, ImmediateMemberPages.DEFAULT_PAGE_SIZE);
+		log.info("memberPageSize = " + memberPageSize);
+		provisionEnumerators = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PROVISION_ENUMERATORS, ProvisioningPipeline.DEFAULT_ENUMERATORS);
+		log.info("provisionEnumerators = " + provisionEnumerators);
+		provisionUserWorkers = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PROVISION_USER_WORKERS, ProvisioningPipeline.DEFAULT_USER_WORKERS);
+		log.info("provisionUserWorkers = " + provisionUserWorkers);
+		provisionWriters = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PROVISION_WRITERS, ProvisioningPipeline.DEFAULT_WRITERS);
+		log.info("provisionWriters = " + provisionWriters);
+		provisionQueueSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PROVISION_QUEUE_SIZE, ProvisioningPipeline.DEFAULT_QUEUE_SIZE);
+		log.info("provisionQueueSize = " + provisionQueueSize);
+		stemAttributeCacheTtl = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_STEM_ATTRIBUTE_CACHE_TTL, (int)StemAttributeResolver.DEFAULT_TTL);
+		log.info("stemAttributeCacheTtl = " + stemAttributeCacheTtl);
+		templatePathResolver = new StemAttributeResolver(PROP_WORLD_TEMPLATE_PATH, StemAttributeResolver.DEFAULT_MAX_SIZE, stemAttributeCacheTtl);
+
+		existenceCacheSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_EXISTENCE_CACHE_SIZE, ExistenceCache.DEFAULT_MAX_SIZE);
+		log.info("existenceCacheSize = " + existenceCacheSize);
+		existenceCacheTtl = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_EXISTENCE_CACHE_TTL, (int)ExistenceCache.DEFAULT_POSITIVE_TTL);
+		log.info("existenceCacheTtl = " + existenceCacheTtl);
+		existenceCacheNegativeTtl = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_EXISTENCE_CACHE_NEGATIVE_TTL, (int)ExistenceCache.DEFAULT_NEGATIVE_TTL);
+		log.info("existenceCacheNegativeTtl = " + existenceCacheNegativeTtl);
+
+		groupIdCacheSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_GROUP_ID_CACHE_SIZE, CachingGroupIdManager.DEFAULT_MAX_SIZE);
+		log.info("groupIdCacheSize = " + groupIdCacheSize);
+
+		idStoreDirectory = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_ID_STORE_DIRECTORY, false);
+		log.info("idStoreDirectory = " + idStoreDirectory);
+		idStoreVersion = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_ID_STORE_VERSION, DEFAULT_ID_STORE_VERSION);
+		log.info("idStoreVersion = " + idStoreVersion);
+
+		coalesceMemberships = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_COALESCE_MEMBERSHIPS, DEFAULT_COALESCE_MEMBERSHIPS);
+		log.info("coalesceMemberships = " + coalesceMemberships);
+		membershipDeltas = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_MEMBERSHIP_DELTAS, DEFAULT_MEMBERSHIP_DELTAS);
+		log.info("membershipDeltas = " + membershipDeltas);
+		coalesceMaxSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_COALESCE_MAX_SIZE, HttpNakamuraManagerImpl.DEFAULT_COALESCE_MAX_SIZE);
+		log.info("coalesceMaxSize = " + coalesceMaxSize);
+		coalesceLinger = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_COALESCE_LINGER, (int)HttpNakamuraManagerImpl.DEFAULT_COALESCE_LINGER);
+		log.info("coalesceLinger = " + coalesceLinger);
+
+		rateWorldCreate = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RATE_WORLD_CREATE, 0);
+		log.info("rateWorldCreate = " + rateWorldCreate);
+		rateUserCreate = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RATE_USER_CREATE, 0);
+		log.info("rateUserCreate = " + rateUserCreate);
+		rateMembershipWrite = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RATE_MEMBERSHIP_WRITE, 0);
+		log.info("rateMembershipWrite = " + rateMembershipWrite);
+		rateRead = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RATE_READ, 0);
+		log.info("rateRead = " + rateRead);
+		rateLatencyThreshold = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RATE_LATENCY_THRESHOLD, (int)RateGovernor.DEFAULT_LATENCY_THRESHOLD);
+		log.info("rateLatencyThreshold = " + rateLatencyThreshold);
+
+		chunkMinSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_CHUNK_MIN_SIZE, AdaptiveChunkSizer.DEFAULT_MIN_SIZE);
+		log.info("chunkMinSize = " + chunkMinSize);
+		chunkMaxSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_CHUNK_MAX_SIZE, AdaptiveChunkSizer.DEFAULT_MAX_SIZE);
+		log.info("chunkMaxSize = " + chunkMaxSize);
+		chunkTargetLatency = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_CHUNK_TARGET_LATENCY, (int)AdaptiveChunkSizer.DEFAULT_TARGET_LATENCY);
+		log.info("chunkTargetLatency = " + chunkTargetLatency);
+		chunkParallelism = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_CHUNK_PARALLELISM, HttpNakamuraManagerImpl.DEFAULT_CHUNK_PARALLELISM);
+		log.info("chunkParallelism = " + chunkParallelism);
+
+		asyncWindow = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_ASYNC_WINDOW, DEFAULT_ASYNC_WINDOW);
+		log.info("asyncWindow = " + asyncWindow);
+
+		parallelWorkers = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PARALLEL_WORKERS, DEFAULT_PARALLEL_WORKERS);
+		log.info("parallelWorkers = " + parallelWorkers);
+
+		compactBatches = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_COMPACT_BATCHES, DEFAULT_COMPACT_BATCHES);
+		log.info("compactBatches = " + compactBatches);
+
+		parkingDirectory = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_PARKING_DIRECTORY, false);
+		log.info("parkingDirectory = " + parkingDirectory);
+		parkingMaxFailures = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_PARKING_MAX_FAILURES, DEFAULT_PARKING_MAX_FAILURES);
+		log.info("parkingMaxFailures = " + parkingMaxFailures);
+
 		dryrun = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_DRYRUN, DEFAULT_DRYRUN);
 		log.info("dryrun = " + dryrun);
 		deleteGroups = GrouperLoaderConfig.getPropertyBoolean(cfgPrefix + PROP_DELETE_GROUPS, DEFAULT_DELETE_GROUPS);
@@ -236,28 +544,41 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 * @throws UserModificationException if there's an error creating a user in Sakai OAE
 	 */
 	protected void processChangeLogEntry(ChangeLogEntry entry) throws IllegalStateException, GroupModificationException, UserModificationException {
+		processEvent(ChangeLogEvent.fromEntry(entry));
+	}
 
-		String grouperName = ChangeLogUtils.getGrouperNameFromChangelogEntry(entry);
+	/**
+	 * Process a decoded changelog entry
+	 * @param event the changelog entry to process
+	 * @throws IllegalStateException
+	 * @throws GroupModificationException if there's an error saving group data to Sakai OAE
+	 * @throws UserModificationException if there's an error creating a user in Sakai OAE
+	 */
+	protected void processEvent(ChangeLogEvent event) throws IllegalStateException, GroupModificationException, UserModificationException {
+
+		String grouperName = event.grouperName;
 		String nakamuraGroupId = groupIdManager.getGroupId(grouperName);
 		String parentGroupId = groupIdManager.getWorldId(nakamuraGroupId);
 
-		if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
-			processGroupAdd(grouperName, nakamuraGroupId, parentGroupId);
+		if (event.type == null){
+			return;
 		}
-		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+		switch (event.type){
+		case GROUP_ADD:
+			processGroupAdd(grouperName, nakamuraGroupId, parentGroupId);
+			break;
+		case GROUP_DELETE:
 			processGroupDelete(grouperName, parentGroupId);
-		}
-		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
-			String subjectId = entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId);
-			processMembershipAdd(grouperName, nakamuraGroupId, subjectId);
-		}
-		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
-			String subjectId = entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId);
-			processMembershipDelete(grouperName, nakamuraGroupId, subjectId);
-		}
-		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_TYPE_ASSIGN)) {
-			String groupTypeName = entry.retrieveValueForLabel(ChangeLogLabels.GROUP_TYPE_ASSIGN.typeName);
-			processGroupTypeAssign(grouperName, nakamuraGroupId, parentGroupId, groupTypeName);
+			break;
+		case MEMBERSHIP_ADD:
+			processMembershipAdd(grouperName, nakamuraGroupId, event.subjectId);
+			break;
+		case MEMBERSHIP_DELETE:
+			processMembershipDelete(grouperName, nakamuraGroupId, event.subjectId);
+			break;
+		case GROUP_TYPE_ASSIGN:
+			processGroupTypeAssign(grouperName, nakamuraGroupId, parentGroupId, event.groupTypeName);
+			break;
 		}
 	}
 
@@ -273,7 +594,7 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 			String parentGroupId) throws GroupModificationException, UserModificationException {
 
 		log.info("START GROUP_ADD : " + grouperName);
-		Group group = GroupFinder.findByName(getGrouperSession(), grouperName, false);
+		Group group = findGroup(grouperName);
 
 		if (group != null) {
 			// Do this even if the group already exists in Sakai OAE
@@ -351,16 +672,16 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		}
 
 		// Check the application tree first
-		Group appGroup = GroupFinder.findByName(getGrouperSession(), appName, false);
+		Group appGroup = findGroup(appName);
 		if (appGroup != null){
-			templatePath = getInheritedProperty(appGroup, PROP_WORLD_TEMPLATE_PATH);
+			templatePath = templatePathResolver.resolve(appGroup);
 		}
 
 		// Try the institutional tree if its an inst group
 		if (templatePath == null && instName != null){
-			Group instGroup = GroupFinder.findByName(getGrouperSession(), instName, false);
+			Group instGroup = findGroup(instName);
 			if (instGroup != null){
-				templatePath = getInheritedProperty(instGroup, PROP_WORLD_TEMPLATE_PATH);
+				templatePath = templatePathResolver.resolve(instGroup);
 			}
 		}
 
@@ -372,26 +693,6 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		return templatePath;
 	}
 
-	/**
-	 * Fetch the property from a group or one of its parent stems
-	 * @param group where to start looking for the property
-	 * @param propertyName the name of the property to look for
-	 * @return the value of the property if found or null
-	 */
-	private String getInheritedProperty(Group group, String propertyName){
-		String value = null;
-		if (group != null){
-			value = group.getAttributeOrFieldValue(propertyName, false, false);
-			// Walk up the parent tree to find a template
-			Stem parent = group.getParentStem();
-			while (parent != null && value == null){
-				value = group.getAttributeOrFieldValue(propertyName, false, false);
-				parent = parent.getParentStem();
-			}
-		}
-		return value;
-	}
-
 	/**
 	 * Create the app:course:all group with the correct membership.
 	 * @param grouperName
@@ -402,15 +703,16 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 			applicationAllGroupName = groupIdManager.getApplicationGroupName(applicationAllGroupName);
 		}
 		// Create app:sakaioae:provisioned:course:X:all if it doesn't exist
-		Group applicationAllGroup = GroupFinder.findByName(getGrouperSession(), applicationAllGroupName, false);
+		Group applicationAllGroup = findGroup(applicationAllGroupName);
 		if (applicationAllGroup == null){
 			applicationAllGroup = Group.saveGroup(getGrouperSession(), null, null,
 					applicationAllGroupName, AbstractGroupIdAdapter.ALL_GROUP_EXTENSION,
 					null, SaveMode.INSERT, true);
+			groupLookupCache.put(applicationAllGroupName, applicationAllGroup);
 			log.debug("Created " + applicationAllGroupName);
 		}
 		// Add the inst:sis:course:X:ROLE as a member of app:sakaoae:provisioned:course:X:all
-		Subject institutionalRoleGroupSubject = SubjectFinder.findByIdOrIdentifier(grouperName, false);
+		Subject institutionalRoleGroupSubject = subjectResolver.find(grouperName);
 		applicationAllGroup.addMember(institutionalRoleGroupSubject, false);
 		log.debug("Added " + institutionalRoleGroupSubject.getName() + " as a member of " + applicationAllGroupName);
 	}
@@ -423,7 +725,10 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 */
 	private void processGroupDelete(String grouperName, String nakamuraGroupId) throws GroupModificationException {
 		log.info("START GROUP_DELETE : " + grouperName);
+		groupLookupCache.invalidate(grouperName);
 		if (deleteGroups && grouperName.endsWith(triggerRole)){
+			// Changes from earlier entries have to land before the group goes away
+			sendPendingMemberships();
 			if (nakamuraManager.groupExists(nakamuraGroupId)){
 				nakamuraManager.deleteGroup(nakamuraGroupId, grouperName);
 			}
@@ -434,6 +739,45 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		log.info("DONE GROUP_DELETE : " + grouperName);
 	}
 
+	/**
+	 * Create the user in OAE if it doesn't exist.
+	 *
+	 * When the partitions of a batch run in parallel only the first to need a user
+	 * creates it. The others wait for it so a membership is never written before
+	 * its user exists, and they fail if it couldn't be created.
+	 */
+	private void createUser(final String subjectId) throws UserModificationException {
+		ConcurrentHashMap<String, FutureTask<Void>> created = createdUsers;
+		if (created == null){
+			nakamuraManager.createUser(subjectId);
+			return;
+		}
+		FutureTask<Void> mine = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws UserModificationException {
+				nakamuraManager.createUser(subjectId);
+				return null;
+			}
+		});
+		FutureTask<Void> existing = created.putIfAbsent(subjectId, mine);
+		if (existing == null){
+			mine.run();
+			existing = mine;
+		}
+		try {
+			existing.get();
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new UserModificationException("Interrupted waiting for " + subjectId + " to be created.");
+		}
+		catch (ExecutionException ee){
+			if (ee.getCause() instanceof UserModificationException){
+				throw (UserModificationException)ee.getCause();
+			}
+			throw new UserModificationException(String.valueOf(ee.getCause()));
+		}
+	}
+
 	/**
 	 * Process a MEMBERSHIP_ADD event.
 	 * @param grouperName the full grouper name
@@ -444,18 +788,18 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 */
 	private void processMembershipAdd(String grouperName, String nakamuraGroupId, String subjectId) throws UserModificationException, GroupModificationException {
 
-		Subject member = SubjectFinder.findByIdOrIdentifier(subjectId, false);
+		Subject member = subjectResolver.find(subjectId);
 		log.info("START MEMBERSHIP_ADD, group: " + grouperName + " subjectId: " + subjectId);
 
 		if (member != null && "person".equals(member.getTypeName())
 				&& !groupIdManager.isIncludeExcludeSubGroup(grouperName)){
 
 			if (createUsers){
-				nakamuraManager.createUser(subjectId);
+				createUser(subjectId);
 			}
 
 			if (nakamuraManager.groupExists(nakamuraGroupId)) {
-				nakamuraManager.addMembership(nakamuraGroupId, subjectId);
+				writeMembership(nakamuraGroupId, subjectId, true);
 			}
 			else {
 				log.info(nakamuraGroupId + " does not exist. Cannot add membership");
@@ -482,14 +826,14 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 */
 	private void processMembershipDelete(String grouperName,
 			String nakamuraGroupId, String subjectId) throws GroupModificationException {
-		Subject member = SubjectFinder.findByIdOrIdentifier(subjectId, false);
+		Subject member = subjectResolver.find(subjectId);
 		log.info("START MEMBERSHIP_DELETE, group: " + grouperName + " subjectId: " + subjectId);
 
 		if (member != null
 				&& "person".equals(member.getTypeName())
 				&& !groupIdManager.isIncludeExcludeSubGroup(grouperName)){
 			if (nakamuraManager.groupExists(nakamuraGroupId)) {
-				nakamuraManager.deleteMembership(nakamuraGroupId, subjectId);
+				writeMembership(nakamuraGroupId, subjectId, false);
 			}
 			else {
 				log.info(nakamuraGroupId + " does not exist. Cannot remove membership");
@@ -506,6 +850,79 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		log.info("END MEMBERSHIP_DELETE, group: " + grouperName + " subjectId: " + subjectId);
 	}
 
+	/**
+	 * Add or remove a member in OAE, or hold the change until the end of the batch
+	 * if this thread is collecting them.
+	 */
+	private void writeMembership(String nakamuraGroupId, String subjectId, boolean add) throws GroupModificationException {
+		PendingMemberships pending = pendingMemberships.get();
+		if (pending != null){
+			pending.put(nakamuraGroupId, subjectId, add);
+		}
+		else if (add){
+			nakamuraManager.addMembership(nakamuraGroupId, subjectId);
+		}
+		else {
+			nakamuraManager.deleteMembership(nakamuraGroupId, subjectId);
+		}
+	}
+
+	/**
+	 * Send the membership changes this thread has collected. A group with only adds or only
+	 * deletes gets a single add or delete, or a bulk one for several. A group with both gets
+	 * them all in one request, see {@link NakamuraManager#applyMembershipDelta(String, List, List)}.
+	 *
+	 * Every group is tried. The collected changes are cleared whether or not they succeeded.
+	 * @throws MembershipFlushException naming the groups whose changes failed
+	 */
+	protected void sendPendingMemberships() throws GroupModificationException {
+		PendingMemberships pending = pendingMemberships.get();
+		if (pending == null || pending.isEmpty()){
+			return;
+		}
+		Set<String> failedGroupIds = new HashSet<String>();
+		String lastError = null;
+		try {
+			for (String groupId : pending.getGroupIds()){
+				List<String> adds = pending.getAdds(groupId);
+				List<String> removes = pending.getRemoves(groupId);
+				try {
+					if (removes.isEmpty()){
+						if (adds.size() == 1){
+							nakamuraManager.addMembership(groupId, adds.get(0));
+						}
+						else {
+							nakamuraManager.addMemberships(groupId, adds);
+						}
+					}
+					else if (adds.isEmpty()){
+						if (removes.size() == 1){
+							nakamuraManager.deleteMembership(groupId, removes.get(0));
+						}
+						else {
+							nakamuraManager.deleteMemberships(groupId, removes);
+						}
+					}
+					else {
+						nakamuraManager.applyMembershipDelta(groupId, adds, removes);
+					}
+				}
+				catch (Exception e){
+					log.error("Unable to change the members of " + groupId + " : " + e.getMessage());
+					failedGroupIds.add(groupId);
+					lastError = e.getMessage();
+				}
+			}
+		}
+		finally {
+			pending.clear();
+		}
+		if (!failedGroupIds.isEmpty()){
+			throw new MembershipFlushException(failedGroupIds, Collections.<String>emptySet(),
+					"Membership changes failed for " + failedGroupIds.size() + " groups. Last error: " + lastError);
+		}
+	}
+
 	/**
 	 * Remove a subject from the _includes and _excludes group.
 	 * @param grouperName
@@ -516,7 +933,7 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 		for (String gName : new String[] {
 				 grouperName + AbstractGroupIdAdapter.DEFAULT_INCLUDES_SUFFIX,
 				 grouperName + AbstractGroupIdAdapter.DEFAULT_EXCLUDES_SUFFIX } ){
-			g = GroupFinder.findByName(getGrouperSession(), gName, false);
+			g = findGroup(gName);
 			log.debug("finding " + gName + " : " + (g == null? "null" : "found"));
 			if (g != null && g.hasMember(member)){
 				log.debug("deleting " + member + " from " + gName);
@@ -547,6 +964,9 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 
 	/**
 	 * Create the group in Sakai and sync all of the role groups.
+	 *
+	 * The role groups are read, their users created and their memberships written
+	 * by a {@link ProvisioningPipeline}, all at once.
 	 * @param grouperName
 	 * @param nakamuraGroupId
 	 * @param parentGroupId
@@ -554,51 +974,272 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 * @throws UserModificationException
 	 */
 	private void provisionGroup(String grouperName, String nakamuraGroupId, String parentGroupId) throws GroupModificationException, UserModificationException {
-		Group group = GroupFinder.findByName(getGrouperSession(), grouperName, false);
+		Group group = findGroup(grouperName);
 		if (group == null){
 			return;
 		}
 		// Provision the course
 		processGroupAdd(grouperName, nakamuraGroupId, parentGroupId);
 
-		// Sync the memberships for each of the role groups
-		Stem courseStem = group.getParentStem();
-		// List the sibling groups
-		for (Group child : courseStem.getChildGroups(Scope.ONE)){
-
-			// Sync the memberships for each group except the :all group
+		// Sync the memberships for each of the role groups except the :all group
+		Map<String, Iterator<List<String>>> roleGroupPages = new LinkedHashMap<String, Iterator<List<String>>>();
+		List<String> roleGroupNames = new ArrayList<String>();
+		for (Group child : group.getParentStem().getChildGroups(Scope.ONE)){
 			if (!child.getExtension().equals(AbstractGroupIdAdapter.ALL_GROUP_EXTENSION)){
-
-				// Ensure the users exist in OAE
-				List<String> memberIds = getMembersPersonSubjectIds(child);
-				for (String memberId : memberIds){
-					nakamuraManager.createUser(memberId);
-				}
-				// We can send one request with all of the membership adds for this group
-				// Users who are already in members will have no effect in OAE
 				String childGroupId = groupIdManager.getGroupId(child.getName());
-				log.info("Syncing " + memberIds.size() + " memberships from " + child.getName() + " to " + childGroupId);
-				nakamuraManager.addMemberships(childGroupId, memberIds);
+				log.info("Syncing memberships from " + child.getName() + " to " + childGroupId);
+				// One page of immediate person members at a time
+				roleGroupPages.put(childGroupId, new ImmediateMemberPages(child, memberPageSize));
+				roleGroupNames.add(child.getName());
+			}
+		}
+
+		ProvisioningPipeline pipeline = createProvisioningPipeline(nakamuraGroupId);
+		pipeline.start(roleGroupPages);
+		try {
+			// The roll up groups only touch the registry. Do them while OAE is busy.
+			for (String roleGroupName : roleGroupNames){
+				handleAllRollUpGroup(roleGroupName);
+			}
+		}
+		finally {
+			awaitProvisioning(pipeline);
+		}
+		log.info(pipeline);
+	}
+
+	/**
+	 * @param nakamuraGroupId the course being provisioned
+	 * @return a pipeline that creates the users and memberships in OAE.
+	 */
+	protected ProvisioningPipeline createProvisioningPipeline(String nakamuraGroupId){
+		return new ProvisioningPipeline(nakamuraGroupId, provisionEnumerators,
+				provisionUserWorkers, provisionWriters, provisionQueueSize) {
+
+			// Every stage reads the registry: members, subjects, groups. Like the partition workers,
+			// each pipeline thread gets its own session.
+			@Override
+			protected void startThread() throws Exception {
+				workerSession.set(GrouperSession.startRootSession());
+			}
+
+			@Override
+			protected void stopThread(){
+				GrouperSession.stopQuietly(workerSession.get());
+				workerSession.remove();
+			}
+
+			@Override
+			protected void ensureUsers(List<String> userIds) throws Exception {
+				nakamuraManager.createUsers(userIds);
+			}
+
+			// Users who are already members will have no effect in OAE
+			@Override
+			protected void addMemberships(String groupId, List<String> memberIds) throws Exception {
+				nakamuraManager.addMemberships(groupId, memberIds);
+			}
+		};
+	}
+
+	/**
+	 * Wait for the pipeline and rethrow its failure as one of ours.
+	 */
+	private void awaitProvisioning(ProvisioningPipeline pipeline) throws GroupModificationException, UserModificationException {
+		try {
+			pipeline.await();
+		}
+		catch (GroupModificationException gme){
+			throw gme;
+		}
+		catch (UserModificationException ume){
+			throw ume;
+		}
+		catch (RuntimeException re){
+			throw re;
+		}
+		catch (Exception e){
+			throw new GroupModificationException("Provisioning failed : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param groupIdManager maps grouper names to OAE
+	 * @return the groupIdManager behind a cache, unless the cache is turned off.
+	 */
+	protected GroupIdManager cacheGroupIds(GroupIdManager groupIdManager){
+		if (groupIdCacheSize <= 0){
+			return groupIdManager;
+		}
+		return new CachingGroupIdManager(groupIdManager, groupIdCacheSize);
+	}
+
+	/**
+	 * Open the file of OAE ids we've seen before.
+	 * @return the store, or null if it's not configured or can't be opened.
+	 */
+	protected PersistentIdStore openIdStore(){
+		if (StringUtils.trimToNull(idStoreDirectory) == null || dryrun){
+			return null;
+		}
+		try {
+			return PersistentIdStore.open(new File(idStoreDirectory), url, idStoreVersion);
+		}
+		catch (IOException ioe){
+			log.error("Unable to open the OAE id store in " + idStoreDirectory + ". Continuing without it.", ioe);
+			return null;
+		}
+	}
 
-				// handle the roll up group or each role.
-				handleAllRollUpGroup(child.getName());
+	/**
+	 * Open the file of entries that keep failing.
+	 * @return the parking lot, or null if it's not configured or can't be opened.
+	 */
+	protected ParkingLot openParkingLot(String consumerName){
+		if (StringUtils.trimToNull(parkingDirectory) == null || dryrun){
+			return null;
+		}
+		try {
+			return ParkingLot.open(new File(parkingDirectory), consumerName);
+		}
+		catch (IOException ioe){
+			log.error("Unable to open the parking lot in " + parkingDirectory + ". Continuing without it.", ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Count a failure for an entry and park it if it has failed too many times.
+	 *
+	 * Failures while OAE is down don't count. They say nothing about the entry.
+	 *
+	 * @param entry the entry that failed
+	 * @param error why it failed
+	 * @return true if the entry was parked and the caller should move on to the next one.
+	 */
+	protected boolean parkIfPoisoned(ChangeLogEntry entry, Exception error){
+		if (parkingLot == null){
+			return false;
+		}
+		if (url != null && NakamuraHttpUtils.getCircuitBreaker(url).getState() != CircuitBreaker.State.CLOSED){
+			log.info("Not counting the failure of " + entry.getSequenceNumber() + ". Sakai OAE is unavailable.");
+			return false;
+		}
+		try {
+			int failures = parkingLot.recordFailure(entry.getSequenceNumber());
+			if (failures < parkingMaxFailures){
+				log.info("Changelog entry " + entry.getSequenceNumber() + " has failed " + failures + " times.");
+				return false;
 			}
+			ChangeLogEvent event = ChangeLogEvent.fromEntry(entry);
+			parkingLot.park(event, error);
+			log.error("PARKED changelog entry " + event + " after " + failures + " failures : " + error);
+			return true;
+		}
+		catch (Exception e){
+			log.error("Unable to park changelog entry " + entry.getSequenceNumber(), e);
+			return false;
 		}
 	}
 
 	/**
-	 * @param group
-	 * @return a List of subject Ids for immediate members who are persons
+	 * Forget earlier failures of an entry that succeeded.
 	 */
-	private List<String> getMembersPersonSubjectIds(Group group){
-		List<String> users = new ArrayList<String>();
-		for (Member member : group.getMembers()){
-			if (member.isImmediateMember(group)
-					&& member.getSubjectType().equals(SubjectTypeEnum.PERSON)){
-				users.add(member.getSubjectId());
+	protected void clearFailures(ChangeLogEntry entry){
+		if (parkingLot != null){
+			parkingLot.recordSuccess(entry.getSequenceNumber());
+		}
+	}
+
+	/**
+	 * Log the state of the shared HTTP connection pool and the caches for this consumer's OAE server.
+	 */
+	protected void logBatchStats(){
+		if (url != null && log.isInfoEnabled()){
+			log.info(HttpConnectionPool.getPool(url, username, password));
+			log.info(NakamuraHttpUtils.getCircuitBreaker(url));
+			log.info(NakamuraHttpUtils.getRetryPolicy());
+		}
+		if (nakamuraManager instanceof HttpNakamuraManagerImpl && log.isInfoEnabled()){
+			HttpNakamuraManagerImpl httpManager = (HttpNakamuraManagerImpl)nakamuraManager;
+			log.info(httpManager.getGroupExistenceCache());
+			log.info(httpManager.getUserExistenceCache());
+			if (httpManager.idStore != null){
+				log.info(httpManager.idStore);
+			}
+			log.info(httpManager.getChunkSizer());
+			if (httpManager.governor != null){
+				log.info(httpManager.governor);
+			}
+			// The dispatcher logs itself when the batch's writes are flushed
+		}
+		if (groupIdManager instanceof CachingGroupIdManager && log.isInfoEnabled()){
+			log.info(groupIdManager);
+		}
+		if (parkingLot != null && log.isInfoEnabled()){
+			log.info(parkingLot);
+		}
+		if (log.isInfoEnabled()){
+			log.info(subjectResolver);
+			log.info(groupLookupCache);
+			log.info(templatePathResolver);
+		}
+		long saved = groupLookupCache.resetBatchStats();
+		log.debug("The group cache saved " + saved + " registry queries this batch");
+	}
+
+	/**
+	 * @return a governor with the configured rates, or null if none of them are limited.
+	 */
+	protected RateGovernor createRateGovernor(){
+		if (rateWorldCreate <= 0 && rateUserCreate <= 0 && rateMembershipWrite <= 0 && rateRead <= 0){
+			return null;
+		}
+		Map<RateGovernor.Operation, Double> rates = new EnumMap<RateGovernor.Operation, Double>(RateGovernor.Operation.class);
+		rates.put(RateGovernor.Operation.WORLD_CREATE, (double)rateWorldCreate);
+		rates.put(RateGovernor.Operation.USER_CREATE, (double)rateUserCreate);
+		rates.put(RateGovernor.Operation.MEMBERSHIP_WRITE, (double)rateMembershipWrite);
+		rates.put(RateGovernor.Operation.READ, (double)rateRead);
+		return new RateGovernor(rates, rateLatencyThreshold);
+	}
+
+	/**
+	 * @return whether writes to OAE may still be on their way when processChangeLogEntry returns.
+	 */
+	protected boolean isDeferringWrites(){
+		return coalesceMemberships || asyncWindow > 0;
+	}
+
+	/**
+	 * @param grouperName the full name of a group
+	 * @return the group from the cache or the registry, null if it doesn't exist.
+	 */
+	protected Group findGroup(String grouperName){
+		return groupLookupCache.findByName(getGrouperSession(), grouperName);
+	}
+
+	/**
+	 * Forget the groups that were added or deleted in this batch.
+	 * The cache may think they still don't exist, or still do.
+	 * Forget the inherited attributes of stems that were updated or deleted.
+	 * @param entries the batch of changelog entries
+	 */
+	protected void invalidateCaches(List<ChangeLogEntry> entries){
+		for (ChangeLogEntry entry : entries){
+			if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)
+					|| entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)){
+				String grouperName = ChangeLogUtils.getGrouperNameFromChangelogEntry(entry);
+				if (grouperName != null){
+					groupLookupCache.invalidate(grouperName);
+				}
+			}
+			else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)){
+				templatePathResolver.invalidate(entry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.name));
+			}
+			else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)){
+				templatePathResolver.invalidate(entry.retrieveValueForLabel(ChangeLogLabels.STEM_DELETE.name));
 			}
 		}
-		return users;
 	}
 
 	/**
@@ -606,6 +1247,10 @@ public abstract class AbstractWorldEsbConsumer extends ChangeLogConsumerBase {
 	 * @return
 	 */
 	protected GrouperSession getGrouperSession(){
+		GrouperSession session = workerSession.get();
+		if (session != null){
+			return session;
+		}
 		if ( grouperSession == null) {
 			try {
 				grouperSession = GrouperSession.startRootSession();
@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.grouper.changelog.esb;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -30,6 +31,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.nakamura.grouper.changelog.util.ChangeLogUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.RestrictionMatcher;
 
 import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
 import edu.internet2.middleware.grouper.app.loader.db.GrouperLoaderDb;
@@ -53,22 +55,60 @@ import edu.internet2.middleware.grouper.changeLog.ChangeLogProcessorMetadata;
  * We query this table where SAKAIOAE=1 and then sort the expressions in REVERSE
  * order of their length. In that way we match more specific restrictions before
  * more general expressions.
+ *
+ * The compiled restrictions are kept between batches and only reloaded every
+ * restriction.refresh.interval seconds. If restriction.change.query is set it
+ * is run first and the table is only reloaded when its result changes.
  */
 public class RestrictedWorldEsbConsumer extends WorldEsbConsumer {
 
 	private static final String PROP_RESTRICTION_QUERY = "restriction.query";
+	private static final String PROP_RESTRICTION_CHANGE_QUERY = "restriction.change.query";
+	private static final String PROP_RESTRICTION_REFRESH_INTERVAL = "restriction.refresh.interval";
+	private static final String PROP_RESTRICTION_CACHE_SIZE = "restriction.cache.size";
 	private static final String PROP_DB_PROFILE = "db.profile";
 
 	private static final String DEFAULT_DB_PROFILE = "warehouse";
+	private static final int DEFAULT_RESTRICTION_REFRESH_INTERVAL = 300;
 
 	private static Log log = LogFactory.getLog(RestrictedWorldEsbConsumer.class);
 
-	// The regexes to match to the grouperName
-	private List<Pattern> enabledStems;
+	/**
+	 * The compiled restrictions. Replaced as a whole, never changed.
+	 */
+	private static class Restrictions {
+		// The regexes to match to the grouperName, longest first
+		final List<Pattern> patterns;
+		// Answers the same question as the patterns, faster
+		final RestrictionMatcher matcher;
+		// The result of the change query when these were loaded
+		final String signature;
+		final long loadedAt;
+
+		Restrictions(List<Pattern> patterns, RestrictionMatcher matcher, String signature, long loadedAt){
+			this.patterns = Collections.unmodifiableList(patterns);
+			this.matcher = matcher;
+			this.signature = signature;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private volatile Restrictions restrictions = new Restrictions(new ArrayList<Pattern>(),
+			new RestrictionMatcher(new ArrayList<String>()), null, 0);
+	// When we last checked the database for changes
+	private long lastChecked = 0;
 
-	private String restrictionQuery;
+	protected String restrictionQuery;
+	protected String restrictionChangeQuery;
+	// milliseconds
+	protected long restrictionRefreshInterval = DEFAULT_RESTRICTION_REFRESH_INTERVAL * 1000L;
+	// How many stems to remember the answer for
+	protected int restrictionCacheSize = RestrictionMatcher.DEFAULT_CACHE_SIZE;
 	private String dbProfile;
 
+	private long restrictionChecks = 0;
+	private long restrictionReloads = 0;
+
 	/**
 	 * Load up the configuration necessary to act on {@link ChangeLogEntry} objects.
 	 */
@@ -77,17 +117,18 @@ public class RestrictedWorldEsbConsumer extends WorldEsbConsumer {
 		if (!configurationLoaded){
 			restrictionQuery = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_RESTRICTION_QUERY, true);
 			log.info("restrictionQuery = " + restrictionQuery);
+			restrictionChangeQuery = StringUtils.trimToNull(GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_RESTRICTION_CHANGE_QUERY, false));
+			log.info("restrictionChangeQuery = " + restrictionChangeQuery);
+			restrictionRefreshInterval = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RESTRICTION_REFRESH_INTERVAL, DEFAULT_RESTRICTION_REFRESH_INTERVAL) * 1000L;
+			log.info("restrictionRefreshInterval = " + restrictionRefreshInterval);
+			restrictionCacheSize = GrouperLoaderConfig.getPropertyInt(cfgPrefix + PROP_RESTRICTION_CACHE_SIZE, RestrictionMatcher.DEFAULT_CACHE_SIZE);
+			log.info("restrictionCacheSize = " + restrictionCacheSize);
 			dbProfile = GrouperLoaderConfig.getPropertyString(cfgPrefix + PROP_DB_PROFILE, DEFAULT_DB_PROFILE);
 			log.info("dbProfile = " + dbProfile);
 			super.loadConfiguration(consumerName);
 		}
 
-		try {
-			loadRestrictionTable();
-		}
-		catch (SQLException sqle){
-			throw new RuntimeException(sqle);
-		}
+		refreshRestrictions();
 	}
 
 	@Override
@@ -99,25 +140,153 @@ public class RestrictedWorldEsbConsumer extends WorldEsbConsumer {
 	}
 
 	/**
-	 * Load the list of enabled stem patterns from the database.
+	 * Reload the restriction table if it's time and it changed.
+	 * Keeps the restrictions we have if the database can't be reached.
+	 */
+	protected void refreshRestrictions(){
+		long now = System.currentTimeMillis();
+		if (lastChecked != 0 && now - lastChecked < restrictionRefreshInterval){
+			return;
+		}
+		lastChecked = now;
+		restrictionChecks++;
+		try {
+			String signature = null;
+			if (restrictionChangeQuery != null){
+				signature = querySignature();
+				if (restrictions.loadedAt != 0 && signature.equals(restrictions.signature)){
+					log.debug("The restriction table hasn't changed.");
+					return;
+				}
+			}
+			loadRestrictionTable(signature);
+		}
+		catch (SQLException sqle){
+			if (restrictions.loadedAt == 0){
+				// Never loaded. We can't tell what to ignore.
+				lastChecked = 0;
+				throw new RuntimeException(sqle);
+			}
+			log.error("Unable to refresh the restriction table. Using the restrictions loaded "
+					+ ((now - restrictions.loadedAt) / 1000) + " seconds ago.", sqle);
+		}
+	}
+
+	/**
+	 * @return the first row of the change query as a string.
 	 * @throws SQLException
 	 */
-	private void loadRestrictionTable() throws SQLException{
-		String atlasEnabledQuery = restrictionQuery;
-		GrouperLoaderDb gldb = GrouperLoaderConfig.retrieveDbProfile(dbProfile);
-		Connection conn = gldb.connection();
-		PreparedStatement stmt = conn.prepareStatement(atlasEnabledQuery);
-		ResultSet results = stmt.executeQuery();
-		List<String> enabledStems = new ArrayList<String>();
-		while (results.next()){
-			enabledStems.add(results.getString(1));
+	protected String querySignature() throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet results = null;
+		try {
+			conn = retrieveConnection();
+			stmt = conn.prepareStatement(restrictionChangeQuery);
+			results = stmt.executeQuery();
+			StringBuilder signature = new StringBuilder();
+			if (results.next()){
+				ResultSetMetaData meta = results.getMetaData();
+				for (int i = 1; i <= meta.getColumnCount(); i++){
+					signature.append(results.getString(i)).append('|');
+				}
+			}
+			return signature.toString();
+		}
+		finally {
+			close(conn, stmt, results);
 		}
+	}
+
+	/**
+	 * Load the list of enabled stem patterns from the database.
+	 * An empty table keeps the restrictions we have, but remembers the signature
+	 * so it isn't reloaded until it changes again.
+	 * @param signature the result of the change query or null
+	 * @throws SQLException
+	 */
+	protected void loadRestrictionTable(String signature) throws SQLException{
+		List<String> enabledStems = queryRestrictionTable();
+		restrictionReloads++;
 		if (!enabledStems.isEmpty()){
 			log.debug("Loaded the enabled stems from the restriction table.");
-			setEnabledStems(enabledStems);
+			restrictions = compile(enabledStems, signature);
 		}
 		else {
 			log.debug("Restrictions table is empty!");
+			Restrictions current = restrictions;
+			restrictions = new Restrictions(current.patterns, current.matcher, signature, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return the enabled stem patterns in the restriction table.
+	 * @throws SQLException
+	 */
+	protected List<String> queryRestrictionTable() throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet results = null;
+		List<String> enabledStems = new ArrayList<String>();
+		try {
+			conn = retrieveConnection();
+			stmt = conn.prepareStatement(restrictionQuery);
+			results = stmt.executeQuery();
+			while (results.next()){
+				enabledStems.add(results.getString(1));
+			}
+		}
+		finally {
+			close(conn, stmt, results);
+		}
+		return enabledStems;
+	}
+
+	/**
+	 * Connections come from the pool for the grouper loader db profile.
+	 * Closing them gives them back.
+	 */
+	private Connection retrieveConnection(){
+		GrouperLoaderDb gldb = GrouperLoaderConfig.retrieveDbProfile(dbProfile);
+		return gldb.connection();
+	}
+
+	private void close(Connection conn, PreparedStatement stmt, ResultSet results){
+		if (results != null){
+			try {
+				results.close();
+			}
+			catch (SQLException e){
+				log.debug("Error closing the result set", e);
+			}
+		}
+		if (stmt != null){
+			try {
+				stmt.close();
+			}
+			catch (SQLException e){
+				log.debug("Error closing the statement", e);
+			}
+		}
+		if (conn != null){
+			try {
+				conn.close();
+			}
+			catch (SQLException e){
+				log.debug("Error closing the connection", e);
+			}
+		}
+	}
+
+	@Override
+	protected void logBatchStats(){
+		super.logBatchStats();
+		if (log.isInfoEnabled()){
+			log.info("Restrictions[patterns=" + restrictions.patterns.size() +
+					" age=" + ((System.currentTimeMillis() - restrictions.loadedAt) / 1000) + "s" +
+					" checks=" + restrictionChecks +
+					" reloads=" + restrictionReloads + "]");
+			log.info(restrictions.matcher);
 		}
 	}
 
@@ -142,19 +311,11 @@ public class RestrictedWorldEsbConsumer extends WorldEsbConsumer {
 	 * @return
 	 */
 	private boolean isEnabled(String grouperName){
-		boolean isEnabled = false;
-		if (grouperName != null){
-			for(Pattern stemPattern: enabledStems){
-				if(stemPattern.matcher(grouperName).matches()){
-					isEnabled = true;
-				}
-			}
-		}
-		return isEnabled;
+		return restrictions.matcher.matches(grouperName);
 	}
 
 	public List<Pattern> getEnabledStems(){
-		return enabledStems;
+		return restrictions.patterns;
 	}
 
 	/**
@@ -162,13 +323,20 @@ public class RestrictedWorldEsbConsumer extends WorldEsbConsumer {
 	 * @param enabled
 	 */
 	public void setEnabledStems(List<String> enabled){
-		enabledStems = new ArrayList<Pattern>();
-		sortByLengthDesc(enabled);
-		for(String e : enabled){
-			enabledStems.add(Pattern.compile(e));
+		restrictions = compile(enabled, null);
+	}
+
+	private Restrictions compile(List<String> enabled, String signature){
+		List<String> sorted = new ArrayList<String>(enabled);
+		sortByLengthDesc(sorted);
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for(String e : sorted){
+			patterns.add(Pattern.compile(e));
 		}
 		log.info("Loaded restrictions for Sakai OAE : " +
-				StringUtils.join(enabledStems.iterator(), ","));
+				StringUtils.join(patterns.iterator(), ","));
+		return new Restrictions(patterns, new RestrictionMatcher(sorted, restrictionCacheSize),
+				signature, System.currentTimeMillis());
 	}
 
 	/**
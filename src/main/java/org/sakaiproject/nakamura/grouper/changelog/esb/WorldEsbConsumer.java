@@ -16,7 +16,25 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog.esb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,10 +44,17 @@ import org.sakaiproject.nakamura.grouper.changelog.GroupIdManagerImpl;
 import org.sakaiproject.nakamura.grouper.changelog.SimpleGroupIdAdapter;
 import org.sakaiproject.nakamura.grouper.changelog.TemplateGroupIdAdapter;
 import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipFlushException;
+import org.sakaiproject.nakamura.grouper.changelog.util.ChangeLogEvent;
 import org.sakaiproject.nakamura.grouper.changelog.util.ChangeLogUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.PendingMemberships;
 
+import edu.internet2.middleware.grouper.GrouperSession;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogProcessorMetadata;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
 
 /**
  * Provision and sync Course Groups in Sakai OAE with Grouper.
@@ -60,6 +85,47 @@ public class WorldEsbConsumer extends AbstractWorldEsbConsumer {
 
 	private static Log log = LogFactory.getLog(WorldEsbConsumer.class);
 
+	// Runs the partitions of a batch when parallelWorkers > 1. Stopped at the end of the batch.
+	private ExecutorService workerPool;
+
+	/**
+	 * The first entry in a partition that couldn't be processed.
+	 */
+	protected static class PartitionFailure {
+		final long sequenceNumber;
+		final Exception exception;
+
+		PartitionFailure(long sequenceNumber, Exception exception){
+			this.sequenceNumber = sequenceNumber;
+			this.exception = exception;
+		}
+	}
+
+	/**
+	 * The entries in a batch whose membership changes were held, queued or in flight,
+	 * and why sending those changes failed.
+	 */
+	protected static class DeferredWrites {
+		final List<ChangeLogEntry> entries = new ArrayList<ChangeLogEntry>();
+		// Entries that were being processed when sending queued changes failed
+		final Set<ChangeLogEntry> interrupted = Collections.newSetFromMap(new IdentityHashMap<ChangeLogEntry, Boolean>());
+		GroupModificationException failure;
+
+		synchronized void add(ChangeLogEntry entry){
+			entries.add(entry);
+		}
+
+		synchronized void fail(GroupModificationException e){
+			failure = MembershipFlushException.combine(failure, e);
+		}
+
+		synchronized void fail(ChangeLogEntry entry, GroupModificationException e){
+			entries.add(entry);
+			interrupted.add(entry);
+			fail(e);
+		}
+	}
+
 	/**
 	 * Read the configuration from $GROUPER_HOME/conf/grouper-loader.properties.
 	 *
@@ -86,7 +152,7 @@ public class WorldEsbConsumer extends AbstractWorldEsbConsumer {
 		gidMgr.loadConfiguration(consumerName);
 		gidMgr.setSimpleGroupIdAdapter(simpleAdapter);
 		gidMgr.setTemplateGroupIdAdapter(templateAdapter);
-		groupIdManager = gidMgr;
+		groupIdManager = cacheGroupIds(gidMgr);
 
 		HttpNakamuraManagerImpl courseManager = new HttpNakamuraManagerImpl();
 		courseManager.url = url;
@@ -101,7 +167,20 @@ public class WorldEsbConsumer extends AbstractWorldEsbConsumer {
 		courseManager.lastNameAttribute = lastNameAttribute;
 		courseManager.emailAttribute = emailAttribute;
 		courseManager.defaultEmailDomain = defaultEmailDomain;
+		courseManager.prefetchBatchSize = prefetchBatchSize;
+		courseManager.userBatchSize = userBatchSize;
+		courseManager.configureExistenceCaches(existenceCacheSize, existenceCacheTtl, existenceCacheNegativeTtl);
+		courseManager.idStore = openIdStore();
+		courseManager.governor = createRateGovernor();
+		courseManager.coalesceMemberships = coalesceMemberships;
+		courseManager.coalesceMaxSize = coalesceMaxSize;
+		courseManager.coalesceLinger = coalesceLinger;
+		courseManager.asyncWindow = asyncWindow;
+		courseManager.chunkParallelism = chunkParallelism;
+		courseManager.configureChunking(chunkMinSize, chunkMaxSize, chunkTargetLatency);
+		courseManager.subjectResolver = subjectResolver;
 		nakamuraManager = courseManager;
+		parkingLot = openParkingLot(consumerName);
 	}
 
 	@Override
@@ -119,29 +198,637 @@ public class WorldEsbConsumer extends AbstractWorldEsbConsumer {
 
 		long currentId = -1;
 
+		invalidateCaches(changeLogEntryList);
+
+		// Whether or not each entry is ignored, if we've already decided.
+		Map<ChangeLogEntry, Boolean> ignored = new IdentityHashMap<ChangeLogEntry, Boolean>();
+		if (prefetchExistence && entryCount > 1){
+			prefetchExistence(changeLogEntryList, ignored);
+		}
+		if (compactBatches && entryCount > 1){
+			compactBatch(changeLogEntryList, ignored);
+		}
+		subjectResolver.clear();
+		if (prefetchSubjects && entryCount > 1){
+			prefetchSubjects(changeLogEntryList, ignored);
+		}
+
+		if (parallelWorkers > 1 && entryCount > 1){
+			return processChangeLogEntriesInParallel(changeLogEntryList, changeLogProcessorMetadata, ignored);
+		}
+
+		// Membership changes that are held until the end of the batch, queued or in flight
+		DeferredWrites deferred = isDeferringMemberships()? new DeferredWrites() : null;
+		if (membershipDeltas){
+			pendingMemberships.set(new PendingMemberships());
+		}
+		long lastProcessed = -1;
+		try {
+			try {
+				for (ChangeLogEntry entry : changeLogEntryList) {
+					currentId = entry.getSequenceNumber();
+					log.info("Processing changelog entry=" + currentId); 
+					Boolean ignore = ignored.get(entry);
+					if (ignore == null){
+						ignore = ignoreChangelogEntry(entry);
+					}
+					if (!ignore){
+						processOrPark(entry, deferred);
+					}
+				}
+				lastProcessed = currentId;
+			}
+			// Sending the queued changes failed. Settled below with the rest of the deferred changes.
+			catch (MembershipFlushException mfe){
+				lastProcessed = currentId;
+			}
+			// Stop processing changelog entries.
+			catch (Exception e) {
+				if (currentId == -1) {
+					log.error("Didn't process any records.");
+					throw new RuntimeException("Couldn't process any records");
+				}
+				changeLogProcessorMetadata.registerProblem(e, "Error processing record", currentId);
+				// The last entry we successfully processed was the one before this
+				lastProcessed = currentId - 1;
+			}
+
+			if (deferred != null){
+				// Send the changes from the entries that were processed, even if a later one failed
+				sendDeferredWrites(deferred);
+				long restart = settleDeferredWrites(deferred, changeLogEntryList.get(0).getSequenceNumber());
+				if (restart <= lastProcessed){
+					changeLogProcessorMetadata.registerProblem(deferred.failure, "Error sending membership changes", restart);
+					lastProcessed = restart - 1;
+				}
+			}
+		}
+		finally {
+			pendingMemberships.remove();
+		}
+		log.info("Finished the batch of " + entryCount + " entries : " +
+				changeLogEntryList.get(0).getSequenceNumber() + " - " +
+				changeLogEntryList.get(entryCount - 1).getSequenceNumber() + ". Processed through " + lastProcessed);
+		logBatchStats();
+		return lastProcessed;
+	}
+
+	/**
+	 * Process a batch with a pool of worker threads.
+	 *
+	 * Entries are partitioned by the OAE world they affect. Each partition is processed
+	 * in order on one worker, so the changes to a world happen in the order Grouper made them.
+	 * A failure stops its own partition but the others keep going.
+	 *
+	 * @return the highest sequence number below which every entry succeeded.
+	 */
+	protected long processChangeLogEntriesInParallel(List<ChangeLogEntry> changeLogEntryList,
+			ChangeLogProcessorMetadata changeLogProcessorMetadata, Map<ChangeLogEntry, Boolean> ignored) {
+
+		int entryCount = changeLogEntryList.size();
+		long firstId = changeLogEntryList.get(0).getSequenceNumber();
+		long lastId = changeLogEntryList.get(entryCount - 1).getSequenceNumber();
+		PartitionFailure firstFailure = null;
+
+		// Partition by world, keeping the batch order within each world
+		Map<String, List<ChangeLogEntry>> partitions = new LinkedHashMap<String, List<ChangeLogEntry>>();
+		for (ChangeLogEntry entry : changeLogEntryList){
+			try {
+				Boolean ignore = ignored.get(entry);
+				if (ignore == null){
+					ignore = ignoreChangelogEntry(entry);
+				}
+				if (ignore){
+					continue;
+				}
+				String grouperName = ChangeLogUtils.getGrouperNameFromChangelogEntry(entry);
+				String worldId = groupIdManager.getWorldId(groupIdManager.getGroupId(grouperName));
+				List<ChangeLogEntry> partition = partitions.get(worldId);
+				if (partition == null){
+					partition = new ArrayList<ChangeLogEntry>();
+					partitions.put(worldId, partition);
+				}
+				partition.add(entry);
+			}
+			catch (Exception e){
+				firstFailure = earlier(firstFailure, new PartitionFailure(entry.getSequenceNumber(), e));
+				break;
+			}
+		}
+		log.info("Processing " + partitions.size() + " worlds with " + parallelWorkers + " workers");
+
+		final DeferredWrites deferred = isDeferringMemberships()? new DeferredWrites() : null;
+		createdUsers = new ConcurrentHashMap<String, FutureTask<Void>>();
+		try {
+			List<Future<PartitionFailure>> results = new ArrayList<Future<PartitionFailure>>();
+			for (final List<ChangeLogEntry> partition : partitions.values()){
+				results.add(getWorkerPool().submit(new Callable<PartitionFailure>() {
+					public PartitionFailure call() {
+						return processPartition(partition, deferred);
+					}
+				}));
+			}
+			for (Future<PartitionFailure> result : results){
+				try {
+					firstFailure = earlier(firstFailure, result.get());
+				}
+				catch (InterruptedException ie){
+					Thread.currentThread().interrupt();
+					firstFailure = earlier(firstFailure, new PartitionFailure(firstId, ie));
+				}
+				catch (ExecutionException ee){
+					firstFailure = earlier(firstFailure, new PartitionFailure(firstId, ee));
+				}
+			}
+		}
+		finally {
+			createdUsers = null;
+			// Grouper makes a new consumer for every run. Don't leave the workers behind.
+			shutdownWorkerPool();
+		}
+
+		long lastProcessed = lastId;
+		if (firstFailure != null){
+			changeLogProcessorMetadata.registerProblem(firstFailure.exception, "Error processing record", firstFailure.sequenceNumber);
+			lastProcessed = firstFailure.sequenceNumber - 1;
+		}
+		if (deferred != null){
+			// The workers sent their own groups' changes. Send what's still queued or in flight.
+			if (isDeferringWrites()){
+				try {
+					nakamuraManager.flush();
+				}
+				catch (Exception e){
+					log.error("Unable to send the queued membership changes.", e);
+					deferred.fail(asModificationException(e));
+				}
+			}
+			long restart = settleDeferredWrites(deferred, firstId);
+			if (restart <= lastProcessed){
+				changeLogProcessorMetadata.registerProblem(deferred.failure, "Error sending membership changes", restart);
+				lastProcessed = restart - 1;
+			}
+		}
+
+		log.info("Finished the batch of " + entryCount + " entries : " + firstId + " - " + lastId
+				+ ". Processed through " + lastProcessed);
+		logBatchStats();
+		return lastProcessed;
+	}
+
+	/**
+	 * Process the entries for one world in order on a worker thread.
+	 * @param deferred collects the entries whose membership changes haven't been sent yet. May be null.
+	 * @return the entry that failed, or null if they all succeeded.
+	 */
+	protected PartitionFailure processPartition(List<ChangeLogEntry> partition, DeferredWrites deferred){
+		GrouperSession session = null;
+		try {
+			session = GrouperSession.startRootSession();
+			workerSession.set(session);
+			if (membershipDeltas){
+				pendingMemberships.set(new PendingMemberships());
+			}
+			PartitionFailure failure = null;
+			for (int i = 0; i < partition.size(); i++){
+				ChangeLogEntry entry = partition.get(i);
+				log.info("Processing changelog entry=" + entry.getSequenceNumber());
+				try {
+					processOrPark(entry, deferred);
+				}
+				catch (MembershipFlushException mfe){
+					// Settled with the rest of the batch. Pick up this world after this entry next time.
+					if (i + 1 < partition.size()){
+						failure = new PartitionFailure(partition.get(i + 1).getSequenceNumber(), mfe);
+					}
+					break;
+				}
+				catch (Exception e){
+					log.error("Error processing changelog entry=" + entry.getSequenceNumber()
+							+ ". Skipping the rest of this world for this batch.", e);
+					failure = new PartitionFailure(entry.getSequenceNumber(), e);
+					break;
+				}
+			}
+			// Send this world's changes from the entries that were processed
+			try {
+				sendPendingMemberships();
+			}
+			catch (GroupModificationException gme){
+				log.error("Unable to send the membership changes for this world.", gme);
+				deferred.fail(gme);
+			}
+			return failure;
+		}
+		catch (Exception e){
+			return new PartitionFailure(partition.get(0).getSequenceNumber(), e);
+		}
+		finally {
+			pendingMemberships.remove();
+			workerSession.remove();
+			GrouperSession.stopQuietly(session);
+		}
+	}
+
+	/**
+	 * Process an entry. If it fails too many times park it instead of failing the batch.
+	 *
+	 * If the entry's membership changes are deferred it goes into deferred instead of
+	 * having its failures cleared. They're cleared once its changes are sent.
+	 *
+	 * @param deferred collects the entries whose membership changes haven't been sent yet. May be null.
+	 * @throws MembershipFlushException if sending queued changes failed while processing the entry.
+	 * @throws Exception if the entry failed and wasn't parked.
+	 */
+	protected void processOrPark(ChangeLogEntry entry, DeferredWrites deferred) throws Exception {
+		try {
+			processChangeLogEntry(entry);
+		}
+		catch (MembershipFlushException mfe){
+			// The failed changes may belong to earlier entries. Find out whose they were when the batch is settled.
+			if (deferred == null){
+				throw mfe;
+			}
+			deferred.fail(entry, mfe);
+			throw mfe;
+		}
+		catch (Exception e){
+			if (parkIfPoisoned(entry, e)){
+				return;
+			}
+			throw e;
+		}
+		if (deferred == null){
+			clearFailures(entry);
+		}
+		else {
+			deferred.add(entry);
+		}
+	}
+
+	/**
+	 * @return whether membership changes are sent after the entries that made them are processed.
+	 */
+	protected boolean isDeferringMemberships(){
+		return membershipDeltas || isDeferringWrites();
+	}
+
+	/**
+	 * Send the membership changes collected for this batch and whatever nakamuraManager has queued.
+	 * Failures are recorded in deferred.
+	 */
+	private void sendDeferredWrites(DeferredWrites deferred){
+		try {
+			sendPendingMemberships();
+		}
+		catch (GroupModificationException gme){
+			log.error("Unable to send the membership changes for this batch.", gme);
+			deferred.fail(gme);
+		}
+		if (isDeferringWrites()){
+			try {
+				nakamuraManager.flush();
+			}
+			catch (Exception e){
+				log.error("Unable to send the queued membership changes.", e);
+				deferred.fail(asModificationException(e));
+			}
+		}
+	}
+
+	/**
+	 * Decide what to do with the entries whose membership changes were deferred, once they've been sent.
+	 *
+	 * When the failure names the groups or worlds whose changes failed, the entries for those
+	 * count the failure toward being parked, the same as an entry that fails by itself.
+	 * The other entries' changes made it to OAE so their earlier failures are forgotten.
+	 *
+	 * @param fallback where to start over when the failure can't be traced to an entry
+	 * @return the first entry to process again, or Long.MAX_VALUE if there isn't one.
+	 */
+	protected long settleDeferredWrites(DeferredWrites deferred, long fallback){
+		if (deferred.failure == null){
+			for (ChangeLogEntry entry : deferred.entries){
+				clearFailures(entry);
+			}
+			return Long.MAX_VALUE;
+		}
+		if (!(deferred.failure instanceof MembershipFlushException)){
+			// No telling whose changes failed. Start over from the first that could have made one.
+			return fallback;
+		}
+		MembershipFlushException mfe = (MembershipFlushException)deferred.failure;
+		Set<ChangeLogEntry> failed = Collections.newSetFromMap(new IdentityHashMap<ChangeLogEntry, Boolean>());
+		for (ChangeLogEntry entry : deferred.entries){
+			if (deferred.interrupted.contains(entry) || madeChangesTo(entry, mfe)){
+				failed.add(entry);
+			}
+		}
+		if (failed.isEmpty()){
+			return fallback;
+		}
+		long restart = Long.MAX_VALUE;
+		for (ChangeLogEntry entry : deferred.entries){
+			if (!failed.contains(entry)){
+				clearFailures(entry);
+			}
+			else if (!parkIfPoisoned(entry, mfe)){
+				restart = Math.min(restart, entry.getSequenceNumber());
+			}
+		}
+		return restart;
+	}
+
+	/**
+	 * @return whether the entry changes the members of a group or world that failed.
+	 */
+	private boolean madeChangesTo(ChangeLogEntry entry, MembershipFlushException mfe){
 		try {
-			for (ChangeLogEntry entry : changeLogEntryList) {
-				currentId = entry.getSequenceNumber();
-				log.info("Processing changelog entry=" + currentId); 
-				if (!ignoreChangelogEntry(entry)){
-					processChangeLogEntry(entry);
+			String groupId = groupIdManager.getGroupId(ChangeLogUtils.getGrouperNameFromChangelogEntry(entry));
+			return mfe.groupIds.contains(groupId) || mfe.worldIds.contains(groupIdManager.getWorldId(groupId));
+		}
+		catch (Exception e){
+			// Assume the worst
+			return true;
+		}
+	}
+
+	private GroupModificationException asModificationException(Exception e){
+		if (e instanceof GroupModificationException){
+			return (GroupModificationException)e;
+		}
+		return new GroupModificationException(e.getMessage());
+	}
+
+	/**
+	 * Process the parked entries again, oldest first.
+	 *
+	 * Entries that succeed are removed from the parking lot. The rest stay parked.
+	 *
+	 * @param consumerName the name of the changelog consumer job
+	 * @return how many entries were replayed successfully.
+	 */
+	public int replayParkedEntries(String consumerName){
+		loadConfiguration(consumerName);
+		if (parkingLot == null){
+			log.warn("No parking lot is configured for " + consumerName);
+			return 0;
+		}
+		List<ChangeLogEvent> events = parkingLot.getParked();
+		log.info("Replaying " + events.size() + " parked entries");
+		List<ChangeLogEvent> replayed = new ArrayList<ChangeLogEvent>();
+		for (ChangeLogEvent event : events){
+			try {
+				processEvent(event);
+				replayed.add(event);
+			}
+			catch (Exception e){
+				log.error("Replay failed for parked entry " + event + ". Leaving it parked.", e);
+			}
+		}
+		if (isDeferringWrites()){
+			try {
+				nakamuraManager.flush();
+			}
+			catch (Exception e){
+				log.error("Unable to send the changes from the replayed entries. Leaving them parked.", e);
+				return 0;
+			}
+		}
+		for (ChangeLogEvent event : replayed){
+			parkingLot.remove(event.sequenceNumber);
+		}
+		log.info("Replayed " + replayed.size() + " of " + events.size() + " parked entries");
+		logBatchStats();
+		return replayed.size();
+	}
+
+	private PartitionFailure earlier(PartitionFailure a, PartitionFailure b){
+		if (a == null){
+			return b;
+		}
+		if (b == null){
+			return a;
+		}
+		return (b.sequenceNumber < a.sequenceNumber)? b : a;
+	}
+
+	private synchronized ExecutorService getWorkerPool(){
+		if (workerPool == null){
+			final AtomicInteger threadCount = new AtomicInteger();
+			workerPool = Executors.newFixedThreadPool(parallelWorkers, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "oae-provisioning-worker-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
 				}
+			});
+		}
+		return workerPool;
+	}
+
+	/**
+	 * Stop the worker threads. The next parallel batch starts new ones.
+	 */
+	protected synchronized void shutdownWorkerPool(){
+		if (workerPool != null){
+			workerPool.shutdownNow();
+			workerPool = null;
+		}
+	}
+
+	/**
+	 * Find out which of the OAE groups and users this batch touches already exist
+	 * so processing each entry doesn't need its own round trip to OAE.
+	 *
+	 * Failures here aren't fatal. The entries will check for themselves.
+	 *
+	 * @param entries the batch of changelog entries
+	 * @param ignored filled in with the result of {@link #ignoreChangelogEntry(ChangeLogEntry)}
+	 */
+	protected void prefetchExistence(List<ChangeLogEntry> entries, Map<ChangeLogEntry, Boolean> ignored){
+		Set<String> groupIds = new LinkedHashSet<String>();
+		Set<String> userIds = new LinkedHashSet<String>();
+		try {
+			for (ChangeLogEntry entry : entries){
+				boolean ignore = ignoreChangelogEntry(entry);
+				ignored.put(entry, ignore);
+				if (ignore){
+					continue;
+				}
+				String grouperName = ChangeLogUtils.getGrouperNameFromChangelogEntry(entry);
+				String groupId = groupIdManager.getGroupId(grouperName);
+				if (groupId != null){
+					groupIds.add(groupId);
+					groupIds.add(groupIdManager.getWorldId(groupId));
+				}
+				if (createUsers && entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)){
+					userIds.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId));
+				}
+			}
+			groupIds.remove(null);
+			userIds.remove(null);
+			if (!groupIds.isEmpty() || !userIds.isEmpty()){
+				nakamuraManager.prefetchExistence(groupIds, userIds);
 			}
-			log.info("Finished the batch of " + entryCount + " entries : " +
-					changeLogEntryList.get(0).getSequenceNumber() + " - " +
-					changeLogEntryList.get(entryCount - 1).getSequenceNumber());
 		}
-		// Stop processing changelog entries.
-		catch (Exception e) {
-			if (currentId == -1) {
-				log.error("Didn't process any records.");
-				throw new RuntimeException("Couldn't process any records");
+		catch (Exception e){
+			log.warn("Unable to prefetch group and user existence for this batch.", e);
+		}
+	}
+
+	/**
+	 * Look up every member subject in this batch once so the membership handlers
+	 * and user creation don't each go back to the subject source.
+	 *
+	 * Failures here aren't fatal. The entries will look for themselves.
+	 *
+	 * @param entries the batch of changelog entries
+	 * @param ignored filled in with the result of {@link #ignoreChangelogEntry(ChangeLogEntry)}
+	 */
+	protected void prefetchSubjects(List<ChangeLogEntry> entries, Map<ChangeLogEntry, Boolean> ignored){
+		Set<String> subjectIds = new LinkedHashSet<String>();
+		try {
+			for (ChangeLogEntry entry : entries){
+				Boolean ignore = ignored.get(entry);
+				if (ignore == null){
+					ignore = ignoreChangelogEntry(entry);
+					ignored.put(entry, ignore);
+				}
+				if (ignore){
+					continue;
+				}
+				if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)){
+					subjectIds.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId));
+				}
+				else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)){
+					subjectIds.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId));
+				}
+			}
+			subjectIds.remove(null);
+			if (!subjectIds.isEmpty()){
+				int found = subjectResolver.resolveAll(subjectIds);
+				log.debug("Resolved " + found + " of " + subjectIds.size() + " subjects for this batch");
 			}
-			changeLogProcessorMetadata.registerProblem(e, "Error processing record", currentId);
-			// The last entry we successfully processed was the one before this
-			return currentId - 1;
 		}
-		return currentId;
+		catch (Exception e){
+			log.warn("Unable to resolve the subjects for this batch.", e);
+		}
+	}
+
+	/**
+	 * Skip the entries in this batch whose effect is undone or repeated by a later entry,
+	 * so Sakai OAE only sees the final state.
+	 *
+	 * <ul>
+	 * <li>Only the last membership add or delete for each Grouper group and subject is kept.
+	 * Several Grouper groups map to one OAE group. The _includes, _excludes and _systemOfRecord
+	 * subgroups share their role group's OAE id but change nothing in OAE themselves,
+	 * so they mustn't supersede a change to the role group.</li>
+	 * <li>A GROUP_ADD or GROUP_TYPE_ASSIGN followed by a GROUP_DELETE of the same group is dropped.
+	 * The group is gone from Grouper by the time we'd process it.</li>
+	 * <li>Repeats of a GROUP_ADD or GROUP_TYPE_ASSIGN are dropped.</li>
+	 * </ul>
+	 *
+	 * Skipped entries are marked as ignored so the sequence numbers still advance past them.
+	 * Failures here aren't fatal. The batch is processed without compaction.
+	 *
+	 * @param entries the batch of changelog entries
+	 * @param ignored filled in with the result of {@link #ignoreChangelogEntry(ChangeLogEntry)}
+	 * and set to true for the entries that can be skipped
+	 * @return how many entries were skipped.
+	 */
+	protected int compactBatch(List<ChangeLogEntry> entries, Map<ChangeLogEntry, Boolean> ignored){
+		List<ChangeLogEntry> skip = new ArrayList<ChangeLogEntry>();
+		try {
+			List<ChangeLogEntry> live = new ArrayList<ChangeLogEntry>(entries.size());
+			List<ChangeLogEvent> events = new ArrayList<ChangeLogEvent>(entries.size());
+			for (ChangeLogEntry entry : entries){
+				Boolean ignore = ignored.get(entry);
+				if (ignore == null){
+					ignore = ignoreChangelogEntry(entry);
+					ignored.put(entry, ignore);
+				}
+				if (!ignore){
+					live.add(entry);
+					events.add(ChangeLogEvent.fromEntry(entry));
+				}
+			}
+
+			// Newest first: later entries decide the fate of earlier ones
+			Set<String> memberships = new HashSet<String>();
+			Set<String> deletedGroups = new HashSet<String>();
+			Set<ChangeLogEntry> dropped = Collections.newSetFromMap(new IdentityHashMap<ChangeLogEntry, Boolean>());
+			for (int i = events.size() - 1; i >= 0; i--){
+				ChangeLogEvent event = events.get(i);
+				if (event.type == null){
+					continue;
+				}
+				switch (event.type){
+				case MEMBERSHIP_ADD:
+				case MEMBERSHIP_DELETE:
+					String key = event.grouperName + "|" + event.subjectId;
+					if (!memberships.add(key)){
+						dropped.add(live.get(i));
+					}
+					break;
+				case GROUP_DELETE:
+					deletedGroups.add(event.grouperName);
+					break;
+				case GROUP_ADD:
+				case GROUP_TYPE_ASSIGN:
+					if (deletedGroups.contains(event.grouperName)){
+						dropped.add(live.get(i));
+					}
+					break;
+				}
+			}
+
+			// Oldest first: repeats of an add or type assignment
+			Map<String, Set<String>> added = new HashMap<String, Set<String>>();
+			for (int i = 0; i < events.size(); i++){
+				ChangeLogEvent event = events.get(i);
+				if (event.type == null || dropped.contains(live.get(i))){
+					continue;
+				}
+				switch (event.type){
+				case GROUP_ADD:
+				case GROUP_TYPE_ASSIGN:
+					Set<String> seen = added.get(event.grouperName);
+					if (seen == null){
+						seen = new HashSet<String>();
+						added.put(event.grouperName, seen);
+					}
+					if (!seen.add(event.type + "|" + event.groupTypeName)){
+						dropped.add(live.get(i));
+					}
+					break;
+				case GROUP_DELETE:
+					// The group may be added again after this
+					added.remove(event.grouperName);
+					break;
+				default:
+					break;
+				}
+			}
+			for (ChangeLogEntry entry : live){
+				if (dropped.contains(entry)){
+					skip.add(entry);
+				}
+			}
+		}
+		catch (Exception e){
+			log.warn("Unable to compact this batch. Processing every entry.", e);
+			return 0;
+		}
+		for (ChangeLogEntry entry : skip){
+			log.info("compacted: " + entry.getSequenceNumber() + " is superseded by a later entry in this batch.");
+			ignored.put(entry, true);
+		}
+		if (!skip.isEmpty()){
+			log.info("Compacted " + skip.size() + " of " + entries.size() + " entries");
+		}
+		return skip.size();
 	}
 
 	/**
@@ -86,7 +86,7 @@ public class WorldTitleEsbConsumer extends AbstractWorldEsbConsumer {
 		gidMgr.loadConfiguration(consumerName);
 		gidMgr.setSimpleGroupIdAdapter(simpleAdapter);
 		gidMgr.setTemplateGroupIdAdapter(tmplAdapter);
-		groupIdManager = gidMgr;
+		groupIdManager = cacheGroupIds(gidMgr);
 
 		HttpNakamuraManagerImpl nm = new HttpNakamuraManagerImpl();
 		nm.url = url;
@@ -96,6 +96,9 @@ public class WorldTitleEsbConsumer extends AbstractWorldEsbConsumer {
 		nm.createUsers = createUsers;
 		nm.dryrun = dryrun;
 		nm.pseudoGroupSuffixes = pseudoGroupSuffixes;
+		nm.configureExistenceCaches(existenceCacheSize, existenceCacheTtl, existenceCacheNegativeTtl);
+		nm.idStore = openIdStore();
+		nm.governor = createRateGovernor();
 		this.nakamuraManager = nm;
 	}
 
@@ -125,6 +128,7 @@ public class WorldTitleEsbConsumer extends AbstractWorldEsbConsumer {
 			log.info("Finished the batch of " + entryCount + " entries : " +
 					changeLogEntryList.get(0).getSequenceNumber() + " - " +
 					changeLogEntryList.get(entryCount - 1).getSequenceNumber());
+			logBatchStats();
 		}
 		// Stop processing changelog entries.
 		catch (Exception e) {
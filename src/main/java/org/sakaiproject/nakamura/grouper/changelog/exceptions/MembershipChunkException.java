@@ -0,0 +1,41 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.exceptions;
+
+import java.util.List;
+
+/**
+ * Some of the chunks of a bulk membership change failed.
+ * The other chunks were applied.
+ */
+public class MembershipChunkException extends GroupModificationException {
+	private static final long serialVersionUID = 2714457286350738716L;
+
+	public final String groupId;
+	public final List<String> failedMemberIds;
+	public final int failedChunks;
+	public final int totalChunks;
+
+	public MembershipChunkException(String groupId, List<String> failedMemberIds, int failedChunks, int totalChunks, String lastError) {
+		super(failedChunks + " of " + totalChunks + " chunks failed for " + groupId + " ("
+				+ failedMemberIds.size() + " members). Last error: " + lastError);
+		this.groupId = groupId;
+		this.failedMemberIds = failedMemberIds;
+		this.failedChunks = failedChunks;
+		this.totalChunks = totalChunks;
+	}
+}
@@ -0,0 +1,63 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.exceptions;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sending queued or in flight membership changes failed.
+ * Says which groups and worlds the failed changes were for so they can be traced
+ * back to the changelog entries that made them.
+ */
+public class MembershipFlushException extends GroupModificationException {
+	private static final long serialVersionUID = -3177742893124469127L;
+
+	public final Set<String> groupIds;
+	public final Set<String> worldIds;
+
+	public MembershipFlushException(Set<String> groupIds, Set<String> worldIds, String message) {
+		super(message);
+		this.groupIds = Collections.unmodifiableSet(groupIds);
+		this.worldIds = Collections.unmodifiableSet(worldIds);
+	}
+
+	/**
+	 * Combine two failures into one.
+	 * @return the failure that covers both. Only a MembershipFlushException if they both are.
+	 */
+	public static GroupModificationException combine(GroupModificationException a, GroupModificationException b){
+		if (a == null){
+			return b;
+		}
+		if (b == null){
+			return a;
+		}
+		String message = a.getMessage() + " " + b.getMessage();
+		if (a instanceof MembershipFlushException && b instanceof MembershipFlushException){
+			MembershipFlushException fa = (MembershipFlushException)a;
+			MembershipFlushException fb = (MembershipFlushException)b;
+			Set<String> groupIds = new HashSet<String>(fa.groupIds);
+			groupIds.addAll(fb.groupIds);
+			Set<String> worldIds = new HashSet<String>(fa.worldIds);
+			worldIds.addAll(fb.worldIds);
+			return new MembershipFlushException(groupIds, worldIds, message);
+		}
+		return new GroupModificationException(message);
+	}
+}
@@ -0,0 +1,116 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+/**
+ * Picks how many membership changes to send to OAE in one batch request.
+ *
+ * The size grows by a fixed step after each chunk that succeeds within the target latency
+ * and is cut in half after a chunk that fails or is too slow. It always stays between
+ * minSize and maxSize.
+ */
+public class AdaptiveChunkSizer {
+
+	public static final int DEFAULT_MIN_SIZE = 10;
+	public static final int DEFAULT_MAX_SIZE = 200;
+	public static final int DEFAULT_INITIAL_SIZE = 50;
+	public static final long DEFAULT_TARGET_LATENCY = 5000;
+
+	private final int minSize;
+	private final int maxSize;
+	private final int step;
+	private final long targetLatency;
+
+	private int size;
+
+	private long chunks = 0;
+	private long increases = 0;
+	private long decreases = 0;
+
+	public AdaptiveChunkSizer(){
+		this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_INITIAL_SIZE, DEFAULT_TARGET_LATENCY);
+	}
+
+	/**
+	 * @param minSize the smallest chunk
+	 * @param maxSize the largest chunk
+	 * @param initialSize the size of the first chunk
+	 * @param targetLatency milliseconds a chunk should take. Slower chunks shrink the size.
+	 */
+	public AdaptiveChunkSizer(int minSize, int maxSize, int initialSize, long targetLatency){
+		this.minSize = Math.max(1, minSize);
+		this.maxSize = Math.max(this.minSize, maxSize);
+		this.targetLatency = targetLatency;
+		this.size = clamp(initialSize);
+		this.step = Math.max(1, this.minSize / 2);
+	}
+
+	/**
+	 * @return how many changes to put in the next chunk.
+	 */
+	public synchronized int getChunkSize(){
+		return size;
+	}
+
+	/**
+	 * Adjust the size based on how a chunk went.
+	 * @param chunkSize how many changes were in the chunk
+	 * @param elapsed milliseconds the request took
+	 * @param success whether every change in the chunk succeeded
+	 */
+	public synchronized void record(int chunkSize, long elapsed, boolean success){
+		chunks++;
+		if (!success || elapsed > targetLatency){
+			int smaller = clamp(Math.min(size, chunkSize) / 2);
+			if (smaller < size){
+				decreases++;
+			}
+			size = smaller;
+		}
+		// Only grow if the chunk was actually full. Small tails say nothing about capacity.
+		else if (chunkSize >= size && size < maxSize){
+			size = clamp(size + step);
+			increases++;
+		}
+	}
+
+	private int clamp(int value){
+		return Math.max(minSize, Math.min(maxSize, value));
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTargetLatency() {
+		return targetLatency;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "AdaptiveChunkSizer[size=" + size +
+			" min=" + minSize +
+			" max=" + maxSize +
+			" chunks=" + chunks +
+			" increases=" + increases +
+			" decreases=" + decreases + "]";
+	}
+}
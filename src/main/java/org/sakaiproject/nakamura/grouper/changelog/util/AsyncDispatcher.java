@@ -0,0 +1,269 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs operations against Sakai OAE on a pool of threads so the caller doesn't wait
+ * for each round trip.
+ *
+ * At most window operations are in flight at once. {@link #submit(String, String, Callable)}
+ * blocks when the window is full.
+ *
+ * Operations with the same key run one at a time in the order they were submitted.
+ * If one fails the rest of the operations for that key fail without running,
+ * until the next call to {@link #await()}. Use the world id as the key so a
+ * membership change never runs before its world is created.
+ */
+public class AsyncDispatcher {
+
+	private static Log log = LogFactory.getLog(AsyncDispatcher.class);
+
+	private final String name;
+	private final int window;
+	private final Semaphore permits;
+	private final ExecutorService executor;
+
+	// Operations waiting for an earlier one with the same key.
+	// A key is present while one of its operations is running.
+	private final Map<String, LinkedList<Operation>> chains = new HashMap<String, LinkedList<Operation>>();
+	// Keys with a failed operation since the last await
+	private final Set<String> failedKeys = new HashSet<String>();
+	// Everything submitted since the last await
+	private List<Operation> outstanding = new ArrayList<Operation>();
+
+	private long submitted = 0;
+	private long failed = 0;
+	private long blocked = 0;
+	private int inFlight = 0;
+	private int maxInFlight = 0;
+
+	/**
+	 * An operation and its place in line.
+	 */
+	private class Operation extends FutureTask<Void> {
+		final String key;
+		final String description;
+
+		Operation(final String key, final String description, final Callable<Void> callable){
+			super(new Callable<Void>() {
+				public Void call() throws Exception {
+					if (isFailed(key)){
+						throw new IllegalStateException("Skipped " + description + ". An earlier operation for " + key + " failed.");
+					}
+					return callable.call();
+				}
+			});
+			this.key = key;
+			this.description = description;
+		}
+
+		@Override
+		protected void done(){
+			finished(this);
+		}
+	}
+
+	/**
+	 * @param name used to name the threads and when logging the stats
+	 * @param window the most operations to have in flight at once
+	 */
+	public AsyncDispatcher(final String name, int window){
+		this.name = name;
+		this.window = window;
+		this.permits = new Semaphore(window);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(window, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-dispatch-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Start an operation. Waits for room in the window.
+	 * @param key operations with the same key run in order
+	 * @param description for log and error messages
+	 * @param callable the operation
+	 * @return the result of the operation.
+	 * @throws InterruptedException if interrupted while waiting for room in the window.
+	 */
+	public Future<Void> submit(String key, String description, Callable<Void> callable) throws InterruptedException {
+		if (!permits.tryAcquire()){
+			synchronized (this){
+				blocked++;
+			}
+			permits.acquire();
+		}
+		Operation op = new Operation(key, description, callable);
+		boolean runNow = false;
+		synchronized (this){
+			outstanding.add(op);
+			submitted++;
+			inFlight++;
+			maxInFlight = Math.max(maxInFlight, inFlight);
+			LinkedList<Operation> chain = chains.get(key);
+			if (chain == null){
+				chains.put(key, new LinkedList<Operation>());
+				runNow = true;
+			}
+			else {
+				chain.add(op);
+			}
+		}
+		if (runNow){
+			executor.execute(op);
+		}
+		return op;
+	}
+
+	/**
+	 * Start the next operation for the same key and give back the permit.
+	 */
+	private void finished(Operation op){
+		Operation next = null;
+		synchronized (this){
+			inFlight--;
+			if (failedOrCancelled(op)){
+				failed++;
+				failedKeys.add(op.key);
+			}
+			LinkedList<Operation> chain = chains.get(op.key);
+			if (chain != null){
+				next = chain.poll();
+				if (next == null){
+					chains.remove(op.key);
+				}
+			}
+		}
+		permits.release();
+		if (next != null){
+			executor.execute(next);
+		}
+	}
+
+	private boolean failedOrCancelled(Operation op){
+		if (op.isCancelled()){
+			return true;
+		}
+		try {
+			op.get();
+			return false;
+		}
+		catch (Exception e){
+			return true;
+		}
+	}
+
+	private synchronized boolean isFailed(String key){
+		return failedKeys.contains(key);
+	}
+
+	/**
+	 * Wait for everything submitted so far to finish.
+	 * @return the reasons the operations that failed failed. Empty if they all succeeded.
+	 * @throws InterruptedException
+	 */
+	public List<Throwable> await() throws InterruptedException {
+		return await(null);
+	}
+
+	/**
+	 * Wait for everything submitted so far to finish.
+	 * @param failedKeys if not null, gets the keys of the operations that failed.
+	 * @return the reasons the operations that failed failed. Empty if they all succeeded.
+	 * @throws InterruptedException
+	 */
+	public List<Throwable> await(Set<String> failedKeys) throws InterruptedException {
+		List<Operation> ops;
+		synchronized (this){
+			ops = outstanding;
+			outstanding = new ArrayList<Operation>();
+		}
+		List<Throwable> failures = new ArrayList<Throwable>();
+		for (Operation op : ops){
+			try {
+				op.get();
+			}
+			catch (ExecutionException ee){
+				log.error("Failed : " + op.description + " : " + ee.getCause().getMessage());
+				failures.add(ee.getCause());
+				if (failedKeys != null){
+					failedKeys.add(op.key);
+				}
+			}
+			catch (CancellationException ce){
+				failures.add(ce);
+				if (failedKeys != null){
+					failedKeys.add(op.key);
+				}
+			}
+		}
+		synchronized (this){
+			this.failedKeys.clear();
+		}
+		return failures;
+	}
+
+	/**
+	 * Stop the threads. Operations that haven't started are abandoned.
+	 */
+	public void shutdown(){
+		executor.shutdownNow();
+	}
+
+	public boolean isShutdown(){
+		return executor.isShutdown();
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "AsyncDispatcher[" + name +
+			" window=" + window +
+			" inFlight=" + inFlight +
+			" maxInFlight=" + maxInFlight +
+			" submitted=" + submitted +
+			" failed=" + failed +
+			" blocked=" + blocked + "]";
+	}
+}
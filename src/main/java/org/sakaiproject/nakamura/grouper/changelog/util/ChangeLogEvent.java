@@ -0,0 +1,120 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import net.sf.json.JSONObject;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+
+/**
+ * The parts of a {@link ChangeLogEntry} the world consumers act on.
+ *
+ * Unlike a ChangeLogEntry this doesn't need the Grouper database, so it can be
+ * saved to disk and processed again later.
+ */
+public class ChangeLogEvent {
+
+	public enum Type { GROUP_ADD, GROUP_DELETE, MEMBERSHIP_ADD, MEMBERSHIP_DELETE, GROUP_TYPE_ASSIGN }
+
+	private static final String SEQUENCE = "sequence";
+	private static final String TYPE = "type";
+	private static final String GROUPER_NAME = "grouperName";
+	private static final String SUBJECT_ID = "subjectId";
+	private static final String GROUP_TYPE_NAME = "groupTypeName";
+
+	public final long sequenceNumber;
+	// null if the consumers don't handle this kind of entry
+	public final Type type;
+	public final String grouperName;
+	public final String subjectId;
+	public final String groupTypeName;
+
+	public ChangeLogEvent(long sequenceNumber, Type type, String grouperName, String subjectId, String groupTypeName){
+		this.sequenceNumber = sequenceNumber;
+		this.type = type;
+		this.grouperName = grouperName;
+		this.subjectId = subjectId;
+		this.groupTypeName = groupTypeName;
+	}
+
+	/**
+	 * Decode a changelog entry.
+	 * @param entry the entry from Grouper
+	 * @return the event.
+	 */
+	public static ChangeLogEvent fromEntry(ChangeLogEntry entry){
+		Type type = null;
+		String subjectId = null;
+		String groupTypeName = null;
+		if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
+			type = Type.GROUP_ADD;
+		}
+		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+			type = Type.GROUP_DELETE;
+		}
+		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+			type = Type.MEMBERSHIP_ADD;
+			subjectId = entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId);
+		}
+		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+			type = Type.MEMBERSHIP_DELETE;
+			subjectId = entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId);
+		}
+		else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_TYPE_ASSIGN)) {
+			type = Type.GROUP_TYPE_ASSIGN;
+			groupTypeName = entry.retrieveValueForLabel(ChangeLogLabels.GROUP_TYPE_ASSIGN.typeName);
+		}
+		return new ChangeLogEvent(entry.getSequenceNumber(), type,
+				ChangeLogUtils.getGrouperNameFromChangelogEntry(entry), subjectId, groupTypeName);
+	}
+
+	public JSONObject toJSON(){
+		JSONObject json = new JSONObject();
+		json.put(SEQUENCE, sequenceNumber);
+		if (type != null){
+			json.put(TYPE, type.name());
+		}
+		putIfNotNull(json, GROUPER_NAME, grouperName);
+		putIfNotNull(json, SUBJECT_ID, subjectId);
+		putIfNotNull(json, GROUP_TYPE_NAME, groupTypeName);
+		return json;
+	}
+
+	public static ChangeLogEvent fromJSON(JSONObject json){
+		String type = json.optString(TYPE, null);
+		return new ChangeLogEvent(json.getLong(SEQUENCE),
+				(type == null)? null : Type.valueOf(type),
+				json.optString(GROUPER_NAME, null),
+				json.optString(SUBJECT_ID, null),
+				json.optString(GROUP_TYPE_NAME, null));
+	}
+
+	private static void putIfNotNull(JSONObject json, String key, String value){
+		if (value != null){
+			json.put(key, value);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return sequenceNumber + " " + type + " " + grouperName
+			+ ((subjectId == null)? "" : " subjectId=" + subjectId)
+			+ ((groupTypeName == null)? "" : " groupType=" + groupTypeName);
+	}
+}
@@ -0,0 +1,127 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops sending requests to a Sakai OAE server that looks like it's down.
+ *
+ * After failureThreshold failures in a row the breaker opens and every request fails
+ * immediately. Once it has been open for openDuration milliseconds one request is let
+ * through to try the server. If that works the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+	private static Log log = LogFactory.getLog(CircuitBreaker.class);
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = 30000;
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String name;
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private volatile long openDuration = DEFAULT_OPEN_DURATION;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+
+	private long opens = 0;
+	private long rejected = 0;
+
+	public CircuitBreaker(String name){
+		this.name = name;
+	}
+
+	/**
+	 * @return whether a request may be sent now.
+	 */
+	public synchronized boolean allowRequest(){
+		switch (state){
+		case OPEN:
+			if (now() - openedAt >= openDuration){
+				// Let one request through to see if the server is back
+				state = State.HALF_OPEN;
+				log.info(name + " : trying a request after " + (now() - openedAt) + "ms");
+				return true;
+			}
+			rejected++;
+			return false;
+		case HALF_OPEN:
+			// Only the trial request goes through
+			rejected++;
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	public synchronized void recordSuccess(){
+		if (state != State.CLOSED){
+			log.info(name + " : closing the circuit breaker. Sakai OAE is answering again.");
+		}
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+	}
+
+	public synchronized void recordFailure(){
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)){
+			state = State.OPEN;
+			openedAt = now();
+			opens++;
+			log.error(name + " : opening the circuit breaker after " + consecutiveFailures
+					+ " failures. Failing fast for " + openDuration + "ms.");
+		}
+	}
+
+	public synchronized State getState(){
+		return state;
+	}
+
+	public synchronized long getOpens() {
+		return opens;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "CircuitBreaker[" + name +
+			" state=" + state +
+			" consecutiveFailures=" + consecutiveFailures +
+			" opens=" + opens +
+			" rejected=" + rejected + "]";
+	}
+}
@@ -0,0 +1,151 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+/**
+ * Remembers whether authorizables exist in Sakai OAE.
+ *
+ * Both answers are cached. "Exists" and "doesn't exist" each have their own
+ * time to live, since a missing group is usually about to be created.
+ * The cache holds at most maxSize ids and evicts the least recently used first.
+ */
+public class ExistenceCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_POSITIVE_TTL = 30000;
+	public static final long DEFAULT_NEGATIVE_TTL = 30000;
+
+	private final String name;
+	private final long positiveTtl;
+	private final long negativeTtl;
+
+	private final LruCache<String, Boolean> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public ExistenceCache(String name){
+		this(name, DEFAULT_MAX_SIZE, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * @param name used when logging the stats
+	 * @param maxSize the most ids to remember
+	 * @param positiveTtl milliseconds to remember that an id exists
+	 * @param negativeTtl milliseconds to remember that an id doesn't exist
+	 */
+	public ExistenceCache(String name, int maxSize, long positiveTtl, long negativeTtl){
+		this.name = name;
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		this.entries = new LruCache<String, Boolean>(maxSize);
+	}
+
+	/**
+	 * @param id the id of a user or group in OAE
+	 * @return TRUE or FALSE if we know whether the id exists, null if we need to ask OAE.
+	 */
+	public synchronized Boolean get(String id){
+		Boolean exists = entries.get(id, now());
+		if (exists == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return exists;
+	}
+
+	/**
+	 * Check the cache without touching the stats or the LRU order.
+	 * @param id the id of a user or group in OAE
+	 * @return whether there's a live answer for this id.
+	 */
+	public synchronized boolean contains(String id){
+		return entries.contains(id, now());
+	}
+
+	/**
+	 * Remember whether an id exists.
+	 * @param id the id of a user or group in OAE
+	 * @param exists whether it exists
+	 */
+	public synchronized void put(String id, boolean exists){
+		long ttl = exists? positiveTtl : negativeTtl;
+		if (ttl > 0){
+			entries.put(id, Boolean.valueOf(exists), now() + ttl);
+		}
+		else {
+			entries.remove(id);
+		}
+	}
+
+	/**
+	 * Forget what we know about an id.
+	 * @param id the id of a user or group in OAE
+	 */
+	public synchronized void invalidate(String id){
+		entries.remove(id);
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public synchronized void invalidateAll(){
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return entries.getEvictions();
+	}
+
+	public int getMaxSize() {
+		return entries.getMaxSize();
+	}
+
+	public long getPositiveTtl() {
+		return positiveTtl;
+	}
+
+	public long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "ExistenceCache[" + name +
+			" size=" + entries.size() + "/" + entries.getMaxSize() +
+			" hits=" + hits +
+			" misses=" + misses +
+			" evictions=" + entries.getEvictions() + "]";
+	}
+}
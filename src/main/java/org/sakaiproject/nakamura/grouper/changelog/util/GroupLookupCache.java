@@ -0,0 +1,150 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GroupFinder;
+import edu.internet2.middleware.grouper.GrouperSession;
+
+/**
+ * Remembers the result of {@link GroupFinder#findByName(GrouperSession, String, boolean)}
+ * so the consumer doesn't query the Grouper registry for the same group over and over.
+ *
+ * Groups that don't exist are remembered too. Most groups have no _includes or
+ * _excludes group and every membership event asks. Entries expire after ttl milliseconds.
+ * The consumer invalidates the groups added and deleted in each batch before
+ * processing it.
+ */
+public class GroupLookupCache {
+
+	public static final int DEFAULT_MAX_SIZE = 5000;
+	public static final long DEFAULT_TTL = 60000;
+
+	private final long ttl;
+
+	// null if the group doesn't exist
+	private final LruCache<String, Group> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+	// Since the last call to resetBatchStats
+	private long batchHits = 0;
+	private long batchMisses = 0;
+
+	public GroupLookupCache(){
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param maxSize the most group names to remember
+	 * @param ttl milliseconds to remember a lookup. 0 turns the cache off.
+	 */
+	public GroupLookupCache(int maxSize, long ttl){
+		this.ttl = ttl;
+		this.entries = new LruCache<String, Group>(maxSize);
+	}
+
+	/**
+	 * @param session the session to query with on a miss
+	 * @param grouperName the full name of the group
+	 * @return the group or null if it doesn't exist
+	 */
+	public Group findByName(GrouperSession session, String grouperName){
+		synchronized (this){
+			long now = now();
+			if (entries.contains(grouperName, now)){
+				hits++;
+				batchHits++;
+				return entries.get(grouperName, now);
+			}
+			misses++;
+			batchMisses++;
+		}
+		Group group = GroupFinder.findByName(session, grouperName, false);
+		put(grouperName, group);
+		return group;
+	}
+
+	/**
+	 * Remember a group we just created or found some other way.
+	 * @param grouperName the full name of the group
+	 * @param group the group or null if it doesn't exist
+	 */
+	public synchronized void put(String grouperName, Group group){
+		if (ttl > 0 && grouperName != null){
+			entries.put(grouperName, group, now() + ttl);
+		}
+	}
+
+	/**
+	 * Forget what we know about a group.
+	 * @param grouperName the full name of the group
+	 */
+	public synchronized void invalidate(String grouperName){
+		if (entries.remove(grouperName)){
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public synchronized void invalidateAll(){
+		entries.clear();
+	}
+
+	/**
+	 * @return how many registry queries the cache saved since the last call, then start counting again.
+	 */
+	public synchronized long resetBatchStats(){
+		long saved = batchHits;
+		batchHits = 0;
+		batchMisses = 0;
+		return saved;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public int getMaxSize() {
+		return entries.getMaxSize();
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "GroupLookupCache[size=" + entries.size() + "/" + entries.getMaxSize() +
+			" batchSaved=" + batchHits +
+			" batchQueries=" + batchMisses +
+			" hits=" + hits +
+			" misses=" + misses +
+			" invalidations=" + invalidations + "]";
+	}
+}
@@ -0,0 +1,216 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A long-lived, keep-alive HTTP transport for one Sakai OAE server.
+ *
+ * Each OAE base URL and set of credentials gets a single {@link HttpClient} backed by a
+ * {@link MultiThreadedHttpConnectionManager}, so consecutive requests reuse the
+ * same TCP/TLS connections instead of opening a new one per changelog event.
+ * Connections that sit idle longer than the configured timeout are closed by an
+ * {@link IdleConnectionTimeoutThread}.
+ */
+public class HttpConnectionPool {
+
+	private static Log log = LogFactory.getLog(HttpConnectionPool.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+	public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+	// How often the idle connection thread wakes up
+	private static final long IDLE_CHECK_INTERVAL = 5000;
+
+	// One pool per OAE server and credentials
+	private static final ConcurrentMap<String, HttpConnectionPool> pools =
+		new ConcurrentHashMap<String, HttpConnectionPool>();
+
+	private final String key;
+	private final MultiThreadedHttpConnectionManager connectionManager;
+	private final HttpClient client;
+	private final HostConfiguration hostConfiguration;
+	private final IdleConnectionTimeoutThread idleConnectionThread;
+
+	private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	// Number of times the client was handed out to make a request
+	private final AtomicLong leases = new AtomicLong();
+
+	private HttpConnectionPool(String key, URL url, String username, String password){
+		this.key = key;
+		connectionManager = new MultiThreadedHttpConnectionManager();
+		hostConfiguration = new HostConfiguration();
+		hostConfiguration.setHost(url.getHost(), NakamuraHttpUtils.getPort(url), url.getProtocol());
+
+		client = new HttpClient(connectionManager);
+		client.getState().setCredentials(
+				new AuthScope(url.getHost(), NakamuraHttpUtils.getPort(url)),
+				new UsernamePasswordCredentials(username, password));
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getParams().setParameter("http.useragent", NakamuraHttpUtils.HTTP_USER_AGENT);
+		client.getParams().setParameter("_charset_", "utf-8");
+
+		idleConnectionThread = new IdleConnectionTimeoutThread();
+		idleConnectionThread.setName("nakamura-http-idle-" + url.getHost());
+		idleConnectionThread.setTimeoutInterval(IDLE_CHECK_INTERVAL);
+		idleConnectionThread.addConnectionManager(connectionManager);
+		applySettings();
+	}
+
+	/**
+	 * Get the shared pool for an OAE server, creating it the first time.
+	 * @param url the base url of the OAE server
+	 * @param username the account used to authenticate
+	 * @param password the password for that account
+	 * @return the pool for this server and credentials
+	 */
+	public static HttpConnectionPool getPool(URL url, String username, String password){
+		String key = poolKey(url, username);
+		// The client holds the credentials. A new password needs a new client.
+		String poolId = key + " " + password;
+		HttpConnectionPool pool = pools.get(poolId);
+		if (pool == null){
+			HttpConnectionPool created = new HttpConnectionPool(key, url, username, password);
+			pool = pools.putIfAbsent(poolId, created);
+			if (pool == null){
+				pool = created;
+				pool.idleConnectionThread.start();
+				log.info("Created an HTTP connection pool for " + key);
+			}
+			else {
+				created.connectionManager.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Configure the pool for an OAE server.
+	 * @param url the base url of the OAE server
+	 * @param username the account used to authenticate
+	 * @param password the password for that account
+	 * @param maxConnectionsPerHost the most connections to hold open to the server
+	 * @param connectTimeout milliseconds to wait for a connection to be established
+	 * @param readTimeout milliseconds to wait for data on an open connection
+	 * @param idleTimeout milliseconds before an unused connection is closed
+	 */
+	public static void configure(URL url, String username, String password,
+			int maxConnectionsPerHost, int connectTimeout, int readTimeout, int idleTimeout){
+		HttpConnectionPool pool = getPool(url, username, password);
+		synchronized (pool){
+			pool.maxConnectionsPerHost = maxConnectionsPerHost;
+			pool.connectTimeout = connectTimeout;
+			pool.readTimeout = readTimeout;
+			pool.idleTimeout = idleTimeout;
+			pool.applySettings();
+		}
+		log.info("Configured " + pool);
+	}
+
+	/**
+	 * Close all of the pooled connections and forget about the pools.
+	 */
+	public static synchronized void shutdownAll(){
+		for (HttpConnectionPool pool : pools.values()){
+			pool.idleConnectionThread.shutdown();
+			pool.connectionManager.shutdown();
+		}
+		pools.clear();
+	}
+
+	private void applySettings(){
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		params.setMaxTotalConnections(maxConnectionsPerHost);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+		idleConnectionThread.setConnectionTimeout(idleTimeout);
+	}
+
+	private static String poolKey(URL url, String username){
+		return url.getProtocol() + "://" + username + "@" + url.getHost() + ":" + NakamuraHttpUtils.getPort(url);
+	}
+
+	/**
+	 * @return the shared client for this OAE server
+	 */
+	public HttpClient getClient(){
+		leases.incrementAndGet();
+		return client;
+	}
+
+	/**
+	 * @return the number of connections currently open to this OAE server, idle or in use.
+	 */
+	public int getConnectionsInPool(){
+		return connectionManager.getConnectionsInPool(hostConfiguration);
+	}
+
+	/**
+	 * @return how many times the client has been handed out for a request.
+	 */
+	public long getLeaseCount(){
+		return leases.get();
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	@Override
+	public String toString(){
+		return "HttpConnectionPool[" + key +
+			" connections=" + getConnectionsInPool() + "/" + maxConnectionsPerHost +
+			" leases=" + leases.get() +
+			" connectTimeout=" + connectTimeout +
+			" readTimeout=" + readTimeout +
+			" idleTimeout=" + idleTimeout + "]";
+	}
+}
@@ -0,0 +1,120 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.grouper.internal.dao.QueryOptions;
+import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
+
+/**
+ * Pages through the subject ids of the immediate person members of a group.
+ *
+ * Each page is one registry query for the immediate members of the group's
+ * members list, sorted by subject id so pages don't overlap. Effective members
+ * are never loaded and there's no per member query.
+ */
+public class ImmediateMemberPages implements Iterator<List<String>> {
+
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	private final Group group;
+	private final int pageSize;
+
+	// 1 based, like QueryPaging
+	private int pageNumber = 1;
+	private boolean lastPage = false;
+	private List<String> next;
+
+	private int pages = 0;
+	private int members = 0;
+
+	/**
+	 * @param group the group to list
+	 * @param pageSize how many members to fetch with each query
+	 */
+	public ImmediateMemberPages(Group group, int pageSize){
+		this.group = group;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	public boolean hasNext() {
+		// Pages can be empty once the non-persons are filtered out. Skip those.
+		while (next == null && !lastPage){
+			Set<Member> page = fetchPage(pageNumber++);
+			pages++;
+			if (page == null || page.size() < pageSize){
+				lastPage = true;
+			}
+			if (page != null && !page.isEmpty()){
+				List<String> subjectIds = new ArrayList<String>(page.size());
+				for (Member member : page){
+					if (SubjectTypeEnum.PERSON.equals(member.getSubjectType())){
+						subjectIds.add(member.getSubjectId());
+					}
+				}
+				if (!subjectIds.isEmpty()){
+					members += subjectIds.size();
+					next = subjectIds;
+				}
+			}
+		}
+		return next != null;
+	}
+
+	public List<String> next() {
+		if (!hasNext()){
+			throw new NoSuchElementException();
+		}
+		List<String> page = next;
+		next = null;
+		return page;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @param number which page to get, starting with 1
+	 * @return the immediate members on that page
+	 */
+	protected Set<Member> fetchPage(int number){
+		QueryOptions options = new QueryOptions().paging(pageSize, number, false).sortAsc("m.subjectIdDb");
+		return group.getImmediateMembers(Group.getDefaultList(), options);
+	}
+
+	/**
+	 * @return how many queries we've sent so far.
+	 */
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	 * @return how many person subject ids we've returned so far.
+	 */
+	public int getMembers() {
+		return members;
+	}
+}
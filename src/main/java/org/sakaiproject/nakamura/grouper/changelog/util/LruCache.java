@@ -0,0 +1,149 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A map that holds at most maxSize entries and evicts the least recently used first.
+ * Each entry can have its own expiry time.
+ *
+ * The caller passes the current time in so it decides what "now" is. Values may be
+ * null. Use {@link #contains(Object, long)} to tell a cached null from a miss.
+ *
+ * Not thread safe. The caches that use it do their own locking.
+ */
+public class LruCache<K, V> {
+
+	private final int maxSize;
+
+	// Oldest first. Entries are moved to the end by hand when they're used so
+	// contains can look without changing the order.
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>();
+
+	private long evictions = 0;
+
+	private static class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(V value, long expires){
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxSize the most entries to hold
+	 */
+	public LruCache(int maxSize){
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get a value and mark it as the most recently used.
+	 * An expired entry is removed.
+	 * @param now the current time
+	 * @return the value, or null if there isn't a live one.
+	 */
+	public V get(K key, long now){
+		Entry<V> entry = entries.remove(key);
+		if (entry == null){
+			return null;
+		}
+		if (entry.expires <= now){
+			return null;
+		}
+		entries.put(key, entry);
+		return entry.value;
+	}
+
+	/**
+	 * Get a value that was put without an expiry time.
+	 * @return the value, or null if there isn't one.
+	 */
+	public V get(K key){
+		return get(key, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Check for a live value without changing which entry is evicted next.
+	 * @param now the current time
+	 * @return whether there's a value for the key that hasn't expired.
+	 */
+	public boolean contains(K key, long now){
+		Entry<V> entry = entries.get(key);
+		return entry != null && entry.expires > now;
+	}
+
+	/**
+	 * Add or replace a value and mark it as the most recently used.
+	 * Evicts the least recently used entry if the cache is over maxSize.
+	 * @param expires when the value expires
+	 */
+	public void put(K key, V value, long expires){
+		entries.remove(key);
+		entries.put(key, new Entry<V>(value, expires));
+		Iterator<K> eldest = entries.keySet().iterator();
+		while (entries.size() > maxSize && eldest.hasNext()){
+			eldest.next();
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Add or replace a value that doesn't expire.
+	 */
+	public void put(K key, V value){
+		put(key, value, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return whether there was an entry for the key, live or expired.
+	 */
+	public boolean remove(K key){
+		return entries.remove(key) != null;
+	}
+
+	/**
+	 * @return the keys, least recently used first. Removing through the iterator removes the entry.
+	 */
+	public Iterator<K> keys(){
+		return entries.keySet().iterator();
+	}
+
+	public void clear(){
+		entries.clear();
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return how many entries were dropped to make room for new ones.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+}
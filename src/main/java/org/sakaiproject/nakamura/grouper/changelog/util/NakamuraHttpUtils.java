@@ -16,20 +16,24 @@
  */
 package org.sakaiproject.nakamura.grouper.changelog.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,23 +45,54 @@ public class NakamuraHttpUtils {
 	public static Log log = LogFactory.getLog(NakamuraHttpUtils.class);
 
 	// This could be anything but I think this is explanatory
-	private static final String HTTP_REFERER = "/system/console/grouper";
-	private static final String HTTP_USER_AGENT = "Nakamura Grouper Sync";
+	static final String HTTP_REFERER = "/system/console/grouper";
+	static final String HTTP_USER_AGENT = "Nakamura Grouper Sync";
+
+	// Set on requests that are safe to retry
+	public static final String IDEMPOTENT_PARAM = "nakamura.grouper.idempotent";
+
+	private static final String UTF_8 = "utf-8";
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	public static final int DEFAULT_MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+	private static volatile int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+	private static volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+	// One circuit breaker per OAE server
+	private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private static volatile int breakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+	private static volatile long breakerOpenDuration = CircuitBreaker.DEFAULT_OPEN_DURATION;
+
+	/**
+	 * How much of a response the caller needs.
+	 */
+	public enum ResponseMode {
+		// Only the status code matters. The body is read only to report errors.
+		STATUS_ONLY,
+		// Parse the body as JSON and return it.
+		JSON
+	}
 
 	/**
-	 * Construct an {@link HttpClient} which is configured to authenticate to Nakamura.
+	 * Told how long each attempt to send a request took.
+	 * Retries are separate attempts. The backoff between them isn't counted.
+	 */
+	public interface LatencyListener {
+		/**
+		 * @param millis how long OAE took to answer, or to fail
+		 */
+		void attempted(long millis);
+	}
+
+	/**
+	 * Get the {@link HttpClient} which is configured to authenticate to Nakamura.
+	 * The client is shared by every caller for the same server and account and
+	 * keeps its connections open between requests. See {@link HttpConnectionPool}.
 	 * @return the configured client.
 	 */
 	public static HttpClient getHttpClient(URL url, String username, String password){
-		HttpClient client = new HttpClient();
-		HttpState state = client.getState();
-		state.setCredentials(
-			new AuthScope(url.getHost(), getPort(url)),
-			new UsernamePasswordCredentials(username, password));
-		client.getParams().setAuthenticationPreemptive(true);
-		client.getParams().setParameter("http.useragent", HTTP_USER_AGENT);
-		client.getParams().setParameter("_charset_", "utf-8");
-		return client;
+		return HttpConnectionPool.getPool(url, username, password).getClient();
 	}
 
 	/**
@@ -86,15 +121,60 @@ public class NakamuraHttpUtils {
 	 * @throws GroupModificationException if there was an error updating the group information.
 	 */
 	public static JSONObject http(HttpClient client, HttpMethod method) throws GroupModificationException {
+		return http(client, method, ResponseMode.JSON);
+	}
 
-		method.setRequestHeader("User-Agent", HTTP_USER_AGENT);
-		method.setRequestHeader("Referer", HTTP_REFERER);
+	/**
+	 * Prepare an HTTP request to Sakai OAE and handle the response according to the mode.
+	 * GETs and requests passed to {@link #markIdempotent(HttpMethod)} are retried.
+	 * See {@link #http(HttpClient, HttpMethod, ResponseMode, boolean)}.
+	 */
+	public static JSONObject http(HttpClient client, HttpMethod method, ResponseMode mode) throws GroupModificationException {
+		return http(client, method, mode, isIdempotent(method), null);
+	}
 
-		String errorMessage = null;
-		String responseString = null;
-		JSONObject responseJSON = null;
+	/**
+	 * Prepare an HTTP request to Sakai OAE and handle the response according to the mode.
+	 * GETs and requests passed to {@link #markIdempotent(HttpMethod)} are retried.
+	 * See {@link #http(HttpClient, HttpMethod, ResponseMode, boolean, LatencyListener)}.
+	 */
+	public static JSONObject http(HttpClient client, HttpMethod method, ResponseMode mode, LatencyListener listener) throws GroupModificationException {
+		return http(client, method, mode, isIdempotent(method), listener);
+	}
 
-		boolean isJSONRequest = ! method.getPath().toString().endsWith(".html");
+	/**
+	 * See {@link #http(HttpClient, HttpMethod, ResponseMode, boolean, LatencyListener)}.
+	 */
+	public static JSONObject http(HttpClient client, HttpMethod method, ResponseMode mode, boolean idempotent) throws GroupModificationException {
+		return http(client, method, mode, idempotent, null);
+	}
+
+	/**
+	 * Prepare an HTTP request to Sakai OAE and handle the response according to the mode.
+	 *
+	 * With {@link ResponseMode#STATUS_ONLY} a successful response body is never read into memory.
+	 * It is drained when the connection goes back to the pool. The body of an error response is
+	 * still read so the status.message from OAE can be reported.
+	 *
+	 * Response bodies are never read past {@link #getMaxResponseSize()} characters.
+	 *
+	 * Idempotent requests that fail with an IO error or a 5xx response are retried according to
+	 * the {@link RetryPolicy}. While the {@link CircuitBreaker} for the server is open requests
+	 * fail right away without being sent.
+	 *
+	 * @param client an {@link HttpClient} to execute the request.
+	 * @param method an HTTP method to send
+	 * @param mode how much of the response the caller needs
+	 * @param idempotent whether it's safe to send the request again
+	 * @param listener told how long each attempt took. Requests the breaker stops aren't attempts. May be null.
+	 * @return a JSONObject of the response in JSON mode, null for STATUS_ONLY.
+	 * @throws GroupModificationException if there was an error updating the group information.
+	 */
+	public static JSONObject http(HttpClient client, HttpMethod method, ResponseMode mode, boolean idempotent,
+			LatencyListener listener) throws GroupModificationException {
+
+		method.setRequestHeader("User-Agent", HTTP_USER_AGENT);
+		method.setRequestHeader("Referer", HTTP_REFERER);
 
 		if (log.isDebugEnabled() && method instanceof PostMethod){
 			log.debug(method.getName() + " " + method.getPath() + " params:");
@@ -103,19 +183,87 @@ public class NakamuraHttpUtils {
 			}
 		}
 
+		CircuitBreaker breaker = getCircuitBreaker(method);
+		int retry = 0;
+		while (true){
+			if (!breaker.allowRequest()){
+				String errorMessage = "Not sending " + method.getName() + " " + method.getPath()
+						+ ". Sakai OAE is not answering. " + breaker;
+				log.error(errorMessage);
+				throw new GroupModificationException(HttpStatus.SC_SERVICE_UNAVAILABLE, errorMessage);
+			}
+
+			long start = System.currentTimeMillis();
+			Response response = send(client, method, mode);
+			if (listener != null){
+				listener.attempted(System.currentTimeMillis() - start);
+			}
+			if (response.serverDown){
+				breaker.recordFailure();
+			}
+			else {
+				breaker.recordSuccess();
+			}
+
+			if (response.errorMessage == null){
+				return (mode == ResponseMode.JSON)? response.json : null;
+			}
+			if (idempotent && response.retryable && retry < retryPolicy.getMaxRetries()){
+				log.warn(response.errorMessage + " Retrying " + method.getName() + " " + method.getPath());
+				try {
+					retryPolicy.backoff(retry++);
+					continue;
+				}
+				catch (InterruptedException ie){
+					Thread.currentThread().interrupt();
+				}
+			}
+			log.error(response.errorMessage);
+			errorToException(response.responseCode, response.errorMessage);
+			// errorToException always throws for a message
+			return null;
+		}
+	}
+
+	/**
+	 * The outcome of sending a request once.
+	 */
+	private static class Response {
 		int responseCode = -1;
+		String errorMessage;
+		JSONObject json;
+		// Worth trying again
+		boolean retryable = false;
+		// The server didn't answer or said it's unavailable
+		boolean serverDown = false;
+	}
+
+	/**
+	 * Send the request once and read as much of the response as the mode needs.
+	 */
+	private static Response send(HttpClient client, HttpMethod method, ResponseMode mode){
+		Response response = new Response();
+		String responseString = null;
+
+		boolean isJSONRequest = ! method.getPath().toString().endsWith(".html");
+
 		try{
-			responseCode = client.executeMethod(method);
-			responseString = StringUtils.trimToNull(IOUtils.toString(method.getResponseBodyAsStream()));
+			int responseCode = client.executeMethod(method);
+			response.responseCode = responseCode;
+			boolean success = (responseCode == HttpStatus.SC_OK || responseCode == HttpStatus.SC_CREATED);
 
-			if(isJSONRequest){
-				responseJSON = parseJSONResponse(responseString);
+			// Only buffer the body if someone is going to look at it.
+			if (mode == ResponseMode.JSON || !success){
+				responseString = StringUtils.trimToNull(readResponseBody(method));
+				if(isJSONRequest){
+					response.json = parseJSONResponse(responseString);
+				}
 			}
 
 			if(log.isDebugEnabled()){
 				log.debug(responseCode + " " + method.getName() + " " + method.getPath());
 			}
-			if (log.isTraceEnabled()){
+			if (log.isTraceEnabled() && responseString != null){
 				log.trace("reponse: " + responseString);
 			}
 
@@ -128,30 +276,149 @@ public class NakamuraHttpUtils {
 			case HttpStatus.SC_UNAUTHORIZED: // 401
 			case HttpStatus.SC_NOT_FOUND: // 404
 			case HttpStatus.SC_INTERNAL_SERVER_ERROR: // 500
-				if (isJSONRequest && responseJSON != null){
-					errorMessage = responseJSON.getString("status.message");
+				if (isJSONRequest && response.json != null){
+					response.errorMessage = StringUtils.trimToNull(response.json.optString("status.message", null));
 				}
-				if (errorMessage == null){
-					errorMessage = "Empty "+ responseCode + " error. Check the logs on the Sakai OAE server.";
+				if (response.errorMessage == null){
+					response.errorMessage = "Empty "+ responseCode + " error. Check the logs on the Sakai OAE server.";
 				}
 				break;
 			default:
-				errorMessage = "Unknown HTTP response " + responseCode;
+				response.errorMessage = "Unknown HTTP response " + responseCode;
 				break;
 			}
+			response.retryable = (responseCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR);
+			response.serverDown = (responseCode == HttpStatus.SC_BAD_GATEWAY
+					|| responseCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+					|| responseCode == HttpStatus.SC_GATEWAY_TIMEOUT);
+		}
+		catch (ResponseTooLargeException rtle){
+			// Don't drain the rest of a huge body just to reuse the connection.
+			method.abort();
+			response.errorMessage = rtle.getMessage();
 		}
 		catch (Exception e) {
-			errorMessage = "An exception occurred communicatingSakai OAE. " + e.toString();
+			response.errorMessage = "An exception occurred communicatingSakai OAE. " + e.toString();
+			response.retryable = true;
+			response.serverDown = true;
 		}
 		finally {
 			method.releaseConnection();
 		}
+		return response;
+	}
+
+	/**
+	 * Mark a request as safe to send more than once, like adding a member who may already be there.
+	 * @param method the request
+	 */
+	public static void markIdempotent(HttpMethod method){
+		method.getParams().setBooleanParameter(IDEMPOTENT_PARAM, true);
+	}
+
+	/**
+	 * @return whether the method can be sent again without changing the result.
+	 */
+	protected static boolean isIdempotent(HttpMethod method){
+		return "GET".equals(method.getName())
+			|| method.getParams().getBooleanParameter(IDEMPOTENT_PARAM, false);
+	}
+
+	/**
+	 * @return the circuit breaker for the server this request goes to.
+	 */
+	protected static CircuitBreaker getCircuitBreaker(HttpMethod method){
+		HostConfiguration hostConfiguration = method.getHostConfiguration();
+		String host = (hostConfiguration == null || hostConfiguration.getHost() == null)? "default"
+				: hostConfiguration.getHost() + ":" + hostConfiguration.getPort();
+		return getCircuitBreaker(host);
+	}
+
+	/**
+	 * @param url a Sakai OAE server
+	 * @return the circuit breaker for the server, for monitoring.
+	 */
+	public static CircuitBreaker getCircuitBreaker(URL url){
+		return getCircuitBreaker(url.getHost() + ":" + getPort(url));
+	}
 
-		if (errorMessage != null){
-			log.error(errorMessage);
-			errorToException(responseCode, errorMessage);
+	private static CircuitBreaker getCircuitBreaker(String host){
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null){
+			breaker = new CircuitBreaker(host);
+			breaker.setFailureThreshold(breakerFailureThreshold);
+			breaker.setOpenDuration(breakerOpenDuration);
+			CircuitBreaker existing = breakers.putIfAbsent(host, breaker);
+			if (existing != null){
+				breaker = existing;
+			}
 		}
-		return responseJSON;
+		return breaker;
+	}
+
+	/**
+	 * @param failureThreshold failures in a row before the breaker opens
+	 * @param openDuration milliseconds to fail fast before trying the server again
+	 */
+	public static void configureCircuitBreakers(int failureThreshold, long openDuration){
+		breakerFailureThreshold = failureThreshold;
+		breakerOpenDuration = openDuration;
+		for (CircuitBreaker breaker : breakers.values()){
+			breaker.setFailureThreshold(failureThreshold);
+			breaker.setOpenDuration(openDuration);
+		}
+	}
+
+	public static RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public static void setRetryPolicy(RetryPolicy retryPolicy) {
+		NakamuraHttpUtils.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Read the response body, refusing to buffer more than {@link #maxResponseSize} characters.
+	 * @param method an executed method
+	 * @return the body of the response
+	 * @throws IOException
+	 * @throws ResponseTooLargeException if the body is larger than the limit
+	 */
+	protected static String readResponseBody(HttpMethod method) throws IOException, ResponseTooLargeException {
+		long contentLength = (method instanceof HttpMethodBase)? ((HttpMethodBase)method).getResponseContentLength() : -1;
+		if (contentLength > maxResponseSize){
+			throw new ResponseTooLargeException(method, contentLength);
+		}
+		InputStream in = method.getResponseBodyAsStream();
+		if (in == null){
+			return null;
+		}
+		String charset = (method instanceof HttpMethodBase)? ((HttpMethodBase)method).getResponseCharSet() : UTF_8;
+		Reader reader = new InputStreamReader(in, charset);
+		StringBuilder body = new StringBuilder((contentLength > 0)? (int)contentLength : READ_BUFFER_SIZE);
+		char[] buffer = new char[READ_BUFFER_SIZE];
+		int read;
+		while ((read = reader.read(buffer)) != -1){
+			if (body.length() + read > maxResponseSize){
+				throw new ResponseTooLargeException(method, body.length() + read);
+			}
+			body.append(buffer, 0, read);
+		}
+		return body.toString();
+	}
+
+	/**
+	 * @return the largest response body, in characters, that will be read from OAE.
+	 */
+	public static int getMaxResponseSize() {
+		return maxResponseSize;
+	}
+
+	/**
+	 * @param maxResponseSize the largest response body, in characters, that will be read from OAE.
+	 */
+	public static void setMaxResponseSize(int maxResponseSize) {
+		NakamuraHttpUtils.maxResponseSize = maxResponseSize;
 	}
 
 	/**
@@ -177,6 +444,18 @@ public class NakamuraHttpUtils {
 		return json;
 	}
 
+	/**
+	 * Thrown when OAE sends back more than we're willing to read.
+	 */
+	protected static class ResponseTooLargeException extends Exception {
+		private static final long serialVersionUID = 4196640785283329183L;
+
+		public ResponseTooLargeException(HttpMethod method, long size){
+			super("The response to " + method.getName() + " " + method.getPath() + " is larger than "
+					+ maxResponseSize + " (" + size + ")");
+		}
+	}
+
 	/**
 	 * Throw a specific exception given a JSON response from a Sakai OAE server.
 	 * @param response
@@ -0,0 +1,321 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A file on local disk of the changelog entries that keep failing.
+ *
+ * The consumer counts the failures for each entry here. Once an entry has failed
+ * too many times it's parked: the decoded event and the error are saved and the
+ * consumer moves on to the next entry instead of retrying it forever.
+ * Parked entries are processed again in bulk with
+ * {@link org.sakaiproject.nakamura.grouper.changelog.esb.WorldEsbConsumer#replayParkedEntries(String)}
+ * once the problem has been fixed.
+ *
+ * The file is an append-only log with one JSON object per line:
+ *
+ * {"op":"fail","seq":N}
+ * {"op":"park","seq":N,"event":{...},"error":"...","parkedAt":T}
+ * {"op":"clear","seq":N}
+ *
+ * It's rewritten with just the live records every time it's opened.
+ */
+public class ParkingLot {
+
+	private static Log log = LogFactory.getLog(ParkingLot.class);
+
+	private static final String OP = "op";
+	private static final String FAIL = "fail";
+	private static final String PARK = "park";
+	private static final String CLEAR = "clear";
+	private static final String SEQUENCE = "seq";
+	private static final String EVENT = "event";
+	private static final String ERROR = "error";
+	private static final String PARKED_AT = "parkedAt";
+
+	// One parking lot per file
+	private static final Map<String, ParkingLot> lots = new HashMap<String, ParkingLot>();
+
+	private final File file;
+
+	// Failures for entries that haven't been parked
+	private final Map<Long, Integer> failures = new HashMap<Long, Integer>();
+	// Parked entries in sequence order
+	private final TreeMap<Long, JSONObject> parked = new TreeMap<Long, JSONObject>();
+
+	private Writer out;
+
+	private ParkingLot(File file){
+		this.file = file;
+	}
+
+	/**
+	 * Open the parking lot for a consumer, creating it if necessary.
+	 * @param directory where to keep the files
+	 * @param consumerName the name of the changelog consumer
+	 * @return the parking lot for this consumer.
+	 * @throws IOException if the file can't be read or written
+	 */
+	public static synchronized ParkingLot open(File directory, String consumerName) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Unable to create " + directory);
+		}
+		File file = new File(directory, consumerName + ".parked").getCanonicalFile();
+		ParkingLot lot = lots.get(file.getPath());
+		if (lot == null){
+			lot = new ParkingLot(file);
+			lot.load();
+			lots.put(file.getPath(), lot);
+		}
+		return lot;
+	}
+
+	/**
+	 * Read the file into memory. Lines that can't be parsed are skipped.
+	 */
+	private void load() throws IOException {
+		if (file.exists()){
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null){
+					if (line.trim().length() == 0){
+						continue;
+					}
+					try {
+						apply(JSONObject.fromObject(line));
+					}
+					catch (JSONException je){
+						log.warn("Skipping a damaged record in " + file + " : " + line);
+					}
+				}
+			}
+			finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		compact();
+		log.info("Loaded " + this);
+	}
+
+	private void apply(JSONObject record){
+		String op = record.getString(OP);
+		Long seq = record.getLong(SEQUENCE);
+		if (FAIL.equals(op)){
+			Integer count = failures.get(seq);
+			failures.put(seq, (count == null)? 1 : count + 1);
+		}
+		else if (PARK.equals(op)){
+			failures.remove(seq);
+			parked.put(seq, record);
+		}
+		else if (CLEAR.equals(op)){
+			failures.remove(seq);
+			parked.remove(seq);
+		}
+		else {
+			log.warn("Unknown record type " + op + " in " + file);
+		}
+	}
+
+	/**
+	 * Rewrite the file with only the live records.
+	 */
+	private void compact() throws IOException {
+		IOUtils.closeQuietly(out);
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer tmpOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			for (Map.Entry<Long, Integer> failure : failures.entrySet()){
+				for (int i = 0; i < failure.getValue(); i++){
+					write(tmpOut, failRecord(failure.getKey()));
+				}
+			}
+			for (JSONObject record : parked.values()){
+				write(tmpOut, record);
+			}
+		}
+		finally {
+			tmpOut.close();
+		}
+		if (file.exists() && !file.delete()){
+			throw new IOException("Unable to replace " + file);
+		}
+		if (!tmp.renameTo(file)){
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	private static void write(Writer writer, JSONObject record) throws IOException {
+		writer.write(record.toString());
+		writer.write('\n');
+	}
+
+	private static JSONObject failRecord(long seq){
+		JSONObject record = new JSONObject();
+		record.put(OP, FAIL);
+		record.put(SEQUENCE, seq);
+		return record;
+	}
+
+	/**
+	 * Append a record. Problems writing are logged, not thrown.
+	 * The counts and parked entries are still kept in memory.
+	 */
+	private void append(JSONObject record){
+		if (out == null){
+			return;
+		}
+		try {
+			write(out, record);
+			out.flush();
+		}
+		catch (IOException ioe){
+			log.error("Unable to write to " + file + ". Parked entries will not survive a restart.", ioe);
+			IOUtils.closeQuietly(out);
+			out = null;
+		}
+	}
+
+	/**
+	 * Count another failure for an entry.
+	 * @param sequenceNumber the changelog entry
+	 * @return how many times it has failed.
+	 */
+	public synchronized int recordFailure(long sequenceNumber){
+		Integer count = failures.get(sequenceNumber);
+		count = (count == null)? 1 : count + 1;
+		failures.put(sequenceNumber, count);
+		append(failRecord(sequenceNumber));
+		return count;
+	}
+
+	/**
+	 * Forget the failures for an entry that finally succeeded.
+	 * @param sequenceNumber the changelog entry
+	 */
+	public synchronized void recordSuccess(long sequenceNumber){
+		if (failures.remove(sequenceNumber) != null){
+			append(clearRecord(sequenceNumber));
+		}
+	}
+
+	/**
+	 * Save an entry that should no longer block the changelog.
+	 * @param event the decoded entry
+	 * @param error why it failed
+	 */
+	public synchronized void park(ChangeLogEvent event, Throwable error){
+		JSONObject record = new JSONObject();
+		record.put(OP, PARK);
+		record.put(SEQUENCE, event.sequenceNumber);
+		record.put(EVENT, event.toJSON());
+		record.put(ERROR, String.valueOf(error));
+		record.put(PARKED_AT, System.currentTimeMillis());
+		failures.remove(event.sequenceNumber);
+		parked.put(event.sequenceNumber, record);
+		append(record);
+	}
+
+	/**
+	 * @return the parked entries in sequence order.
+	 */
+	public synchronized List<ChangeLogEvent> getParked(){
+		List<ChangeLogEvent> events = new ArrayList<ChangeLogEvent>(parked.size());
+		for (JSONObject record : parked.values()){
+			events.add(ChangeLogEvent.fromJSON(record.getJSONObject(EVENT)));
+		}
+		return events;
+	}
+
+	/**
+	 * @param sequenceNumber a parked entry
+	 * @return the error that parked it, or null if it isn't parked.
+	 */
+	public synchronized String getError(long sequenceNumber){
+		JSONObject record = parked.get(sequenceNumber);
+		return (record == null)? null : record.optString(ERROR, null);
+	}
+
+	/**
+	 * Remove a parked entry. Use after it's been replayed successfully.
+	 * @param sequenceNumber the changelog entry
+	 */
+	public synchronized void remove(long sequenceNumber){
+		if (parked.remove(sequenceNumber) != null){
+			append(clearRecord(sequenceNumber));
+		}
+	}
+
+	private static JSONObject clearRecord(long seq){
+		JSONObject record = new JSONObject();
+		record.put(OP, CLEAR);
+		record.put(SEQUENCE, seq);
+		return record;
+	}
+
+	public synchronized int size(){
+		return parked.size();
+	}
+
+	/**
+	 * Close all of the open parking lots.
+	 */
+	public static synchronized void closeAll(){
+		for (ParkingLot lot : lots.values()){
+			synchronized (lot){
+				IOUtils.closeQuietly(lot.out);
+				lot.out = null;
+			}
+		}
+		lots.clear();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "ParkingLot[" + file +
+			" parked=" + parked.size() +
+			" failing=" + failures.size() + "]";
+	}
+}
@@ -0,0 +1,101 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The membership changes a batch of changelog entries makes, grouped by OAE group.
+ *
+ * Only each member's last change to a group is kept, so a member is never both
+ * added to and removed from the same group.
+ */
+public class PendingMemberships {
+
+	// OAE group id -> member id -> true to add, false to remove. In the order they were first seen.
+	private final Map<String, Map<String, Boolean>> changes = new LinkedHashMap<String, Map<String, Boolean>>();
+
+	/**
+	 * Record a change, replacing any earlier change for the same group and member.
+	 */
+	public void put(String groupId, String memberId, boolean add){
+		Map<String, Boolean> group = changes.get(groupId);
+		if (group == null){
+			group = new LinkedHashMap<String, Boolean>();
+			changes.put(groupId, group);
+		}
+		group.put(memberId, add);
+	}
+
+	/**
+	 * @return the groups with changes waiting, in the order they were first changed.
+	 */
+	public Set<String> getGroupIds(){
+		return changes.keySet();
+	}
+
+	/**
+	 * @return the members to add to a group.
+	 */
+	public List<String> getAdds(String groupId){
+		return select(groupId, true);
+	}
+
+	/**
+	 * @return the members to remove from a group.
+	 */
+	public List<String> getRemoves(String groupId){
+		return select(groupId, false);
+	}
+
+	private List<String> select(String groupId, boolean add){
+		List<String> members = new ArrayList<String>();
+		Map<String, Boolean> group = changes.get(groupId);
+		if (group != null){
+			for (Entry<String, Boolean> change : group.entrySet()){
+				if (change.getValue() == add){
+					members.add(change.getKey());
+				}
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * @return how many changes are waiting for all of the groups.
+	 */
+	public int size(){
+		int size = 0;
+		for (Map<String, Boolean> group : changes.values()){
+			size += group.size();
+		}
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return changes.isEmpty();
+	}
+
+	public void clear(){
+		changes.clear();
+	}
+}
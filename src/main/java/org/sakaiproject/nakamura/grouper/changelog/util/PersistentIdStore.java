@@ -0,0 +1,325 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A file on local disk of the user and group ids we know exist in one Sakai OAE server.
+ *
+ * The caches in memory start empty every time the loader restarts. This store lets
+ * us skip asking OAE about the users and worlds we've already seen.
+ *
+ * The file is an append-only log:
+ *
+ * header: MAGIC, FORMAT_VERSION, OAE url, version stamp
+ * records: a one byte operation followed by the id
+ *
+ * The whole file is read into memory when it's opened. Once the log is much larger
+ * than the set of live ids it's rewritten with just the live ids.
+ *
+ * Changing the version stamp throws the old file away. Do that if the OAE data is reset.
+ */
+public class PersistentIdStore {
+
+	private static Log log = LogFactory.getLog(PersistentIdStore.class);
+
+	private static final String MAGIC = "OAEIDS";
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte ADD_USER = 1;
+	private static final byte REMOVE_USER = 2;
+	private static final byte ADD_GROUP = 3;
+	private static final byte REMOVE_GROUP = 4;
+
+	// Don't bother compacting small files
+	private static final int MIN_RECORDS_TO_COMPACT = 10000;
+	// Compact when there are this many records for each live id
+	private static final int COMPACT_RATIO = 2;
+
+	// One store per file
+	private static final Map<String, PersistentIdStore> stores = new HashMap<String, PersistentIdStore>();
+
+	private final File file;
+	private final String url;
+	private final String version;
+
+	private final Set<String> users = new HashSet<String>();
+	private final Set<String> groups = new HashSet<String>();
+
+	private DataOutputStream out;
+	private int records = 0;
+
+	private PersistentIdStore(File file, String url, String version){
+		this.file = file;
+		this.url = url;
+		this.version = version;
+	}
+
+	/**
+	 * Open the store for an OAE server, creating it if necessary.
+	 * @param directory where to keep the files
+	 * @param url the base url of the OAE server
+	 * @param version the version stamp for the data in this OAE server
+	 * @return the store for this server.
+	 * @throws IOException if the file can't be read or written
+	 */
+	public static synchronized PersistentIdStore open(File directory, URL url, String version) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Unable to create " + directory);
+		}
+		String fileName = url.getHost() + "_" + NakamuraHttpUtils.getPort(url) + ".ids";
+		File file = new File(directory, fileName).getCanonicalFile();
+		PersistentIdStore store = stores.get(file.getPath());
+		if (store == null){
+			store = new PersistentIdStore(file, url.toString(), version);
+			store.load();
+			stores.put(file.getPath(), store);
+		}
+		else if (!store.version.equals(version)){
+			throw new IOException(file + " is already open with version " + store.version);
+		}
+		return store;
+	}
+
+	/**
+	 * Read the file into memory. Start over if it's missing, damaged or for a different
+	 * server or version.
+	 */
+	private void load() throws IOException {
+		long start = System.currentTimeMillis();
+		boolean rewrite = true;
+		if (file.exists()){
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			try {
+				if (readHeader(in)){
+					// Rewrite the file if the last record was cut off
+					rewrite = !readRecords(in);
+				}
+				else {
+					log.info("Discarding " + file + ". It was written for a different server or version.");
+				}
+			}
+			catch (IOException ioe){
+				log.warn("Discarding " + file + ". Unable to read it. " + ioe.getMessage());
+				users.clear();
+				groups.clear();
+				rewrite = true;
+			}
+			finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+
+		if (rewrite || needsCompaction()){
+			compact();
+		}
+		else {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		log.info("Loaded " + this + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private boolean readHeader(DataInputStream in) throws IOException {
+		return MAGIC.equals(in.readUTF())
+			&& in.readInt() == FORMAT_VERSION
+			&& url.equals(in.readUTF())
+			&& version.equals(in.readUTF());
+	}
+
+	/**
+	 * @return false if the file ends in the middle of a record.
+	 */
+	private boolean readRecords(DataInputStream in) throws IOException {
+		while (true){
+			byte op;
+			try {
+				op = in.readByte();
+			}
+			catch (EOFException eof){
+				return true;
+			}
+			String id;
+			try {
+				id = in.readUTF();
+			}
+			catch (EOFException eof){
+				log.info(file + " ends with a partial record.");
+				return false;
+			}
+			apply(op, id);
+			records++;
+		}
+	}
+
+	private void apply(byte op, String id){
+		switch (op){
+		case ADD_USER:
+			users.add(id);
+			break;
+		case REMOVE_USER:
+			users.remove(id);
+			break;
+		case ADD_GROUP:
+			groups.add(id);
+			break;
+		case REMOVE_GROUP:
+			groups.remove(id);
+			break;
+		default:
+			log.warn("Unknown record type " + op + " in " + file);
+		}
+	}
+
+	/**
+	 * Rewrite the file with only the live ids.
+	 */
+	private void compact() throws IOException {
+		IOUtils.closeQuietly(out);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+		try {
+			tmpOut.writeUTF(MAGIC);
+			tmpOut.writeInt(FORMAT_VERSION);
+			tmpOut.writeUTF(url);
+			tmpOut.writeUTF(version);
+			for (String user : users){
+				tmpOut.writeByte(ADD_USER);
+				tmpOut.writeUTF(user);
+			}
+			for (String group : groups){
+				tmpOut.writeByte(ADD_GROUP);
+				tmpOut.writeUTF(group);
+			}
+		}
+		finally {
+			tmpOut.close();
+		}
+		if (file.exists() && !file.delete()){
+			throw new IOException("Unable to replace " + file);
+		}
+		if (!tmp.renameTo(file)){
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		records = users.size() + groups.size();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		log.debug("Compacted " + this);
+	}
+
+	private boolean needsCompaction(){
+		return records > MIN_RECORDS_TO_COMPACT
+			&& records > COMPACT_RATIO * (users.size() + groups.size());
+	}
+
+	/**
+	 * Append a record. Problems writing are logged, not thrown. This is only a cache.
+	 */
+	private void append(byte op, String id){
+		if (out == null){
+			return;
+		}
+		try {
+			out.writeByte(op);
+			out.writeUTF(id);
+			out.flush();
+			records++;
+			if (needsCompaction()){
+				compact();
+			}
+		}
+		catch (IOException ioe){
+			log.error("Unable to write to " + file + ". No longer saving ids.", ioe);
+			IOUtils.closeQuietly(out);
+			out = null;
+		}
+	}
+
+	public synchronized boolean containsUser(String userId){
+		return users.contains(userId);
+	}
+
+	public synchronized boolean containsGroup(String groupId){
+		return groups.contains(groupId);
+	}
+
+	public synchronized void addUser(String userId){
+		if (users.add(userId)){
+			append(ADD_USER, userId);
+		}
+	}
+
+	public synchronized void removeUser(String userId){
+		if (users.remove(userId)){
+			append(REMOVE_USER, userId);
+		}
+	}
+
+	public synchronized void addGroup(String groupId){
+		if (groups.add(groupId)){
+			append(ADD_GROUP, groupId);
+		}
+	}
+
+	public synchronized void removeGroup(String groupId){
+		if (groups.remove(groupId)){
+			append(REMOVE_GROUP, groupId);
+		}
+	}
+
+	/**
+	 * Close all of the open stores.
+	 */
+	public static synchronized void closeAll(){
+		for (PersistentIdStore store : stores.values()){
+			synchronized (store){
+				IOUtils.closeQuietly(store.out);
+				store.out = null;
+			}
+		}
+		stores.clear();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "PersistentIdStore[" + file +
+			" version=" + version +
+			" users=" + users.size() +
+			" groups=" + groups.size() +
+			" records=" + records + "]";
+	}
+}
@@ -0,0 +1,335 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Syncs the members of several groups to Sakai OAE in three concurrent stages.
+ *
+ * Enumerators read pages of member ids, one group at a time each.
+ * User workers make sure the members of a page exist in OAE. Each user is only
+ * ensured once, even if they're in more than one group.
+ * Writers add the page's members to the group in OAE.
+ *
+ * The stages hand pages to each other through bounded queues, so a slow stage
+ * holds back the ones before it instead of piling up pages in memory.
+ *
+ * The first failure stops the pipeline. {@link #await()} throws it.
+ */
+public abstract class ProvisioningPipeline {
+
+	private static Log log = LogFactory.getLog(ProvisioningPipeline.class);
+
+	public static final int DEFAULT_ENUMERATORS = 4;
+	public static final int DEFAULT_USER_WORKERS = 4;
+	public static final int DEFAULT_WRITERS = 2;
+	public static final int DEFAULT_QUEUE_SIZE = 4;
+
+	/**
+	 * Some of the members of a group.
+	 */
+	private static class Page {
+		final String groupId;
+		final List<String> memberIds;
+
+		Page(String groupId, List<String> memberIds){
+			this.groupId = groupId;
+			this.memberIds = memberIds;
+		}
+	}
+
+	// Tells the next stage there are no more pages
+	private static final Page END = new Page(null, null);
+
+	private final String name;
+	private final int enumerators;
+	private final int userWorkers;
+	private final int writers;
+	private final int queueSize;
+
+	private ExecutorService pool;
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+	// Users that have been ensured or are being ensured. Counted down once they're done.
+	private final ConcurrentHashMap<String, CountDownLatch> ensuredUsers = new ConcurrentHashMap<String, CountDownLatch>();
+	private long started;
+
+	private final AtomicInteger groups = new AtomicInteger();
+	private final AtomicLong pages = new AtomicLong();
+	private final AtomicLong users = new AtomicLong();
+	private final AtomicLong memberships = new AtomicLong();
+	private long elapsed = -1;
+
+	/**
+	 * @param name used to name the threads and when logging the stats
+	 * @param enumerators how many groups to read at once
+	 * @param userWorkers how many pages of users to ensure at once
+	 * @param writers how many pages of memberships to write at once
+	 * @param queueSize how many pages may wait between two stages
+	 */
+	public ProvisioningPipeline(String name, int enumerators, int userWorkers, int writers, int queueSize){
+		this.name = name;
+		this.enumerators = Math.max(1, enumerators);
+		this.userWorkers = Math.max(1, userWorkers);
+		this.writers = Math.max(1, writers);
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/**
+	 * Called on each pipeline thread before it does any work.
+	 * Set up whatever the stages need to read the registry.
+	 */
+	protected void startThread() throws Exception {
+	}
+
+	/**
+	 * Called on each pipeline thread when it's done, even if it failed.
+	 */
+	protected void stopThread(){
+	}
+
+	/**
+	 * Make sure a page of users exist in OAE.
+	 */
+	protected abstract void ensureUsers(List<String> userIds) throws Exception;
+
+	/**
+	 * Add a page of members to a group in OAE.
+	 */
+	protected abstract void addMemberships(String groupId, List<String> memberIds) throws Exception;
+
+	/**
+	 * Start syncing. Returns right away.
+	 * @param groupPages the pages of member ids for each OAE group id
+	 */
+	public void start(Map<String, Iterator<List<String>>> groupPages){
+		started = System.currentTimeMillis();
+		final ConcurrentLinkedQueue<Entry<String, Iterator<List<String>>>> todo =
+			new ConcurrentLinkedQueue<Entry<String, Iterator<List<String>>>>(groupPages.entrySet());
+		final BlockingQueue<Page> userQueue = new ArrayBlockingQueue<Page>(queueSize);
+		final BlockingQueue<Page> writeQueue = new ArrayBlockingQueue<Page>(queueSize);
+
+		int enumeratorCount = Math.max(1, Math.min(enumerators, groupPages.size()));
+		final AtomicInteger enumeratorsLeft = new AtomicInteger(enumeratorCount);
+		final AtomicInteger userWorkersLeft = new AtomicInteger(userWorkers);
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(enumeratorCount + userWorkers + writers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-provision-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		for (int i = 0; i < enumeratorCount; i++){
+			pool.execute(new Stage(userQueue, enumeratorsLeft, userWorkers) {
+				void work() throws Exception {
+					Entry<String, Iterator<List<String>>> group;
+					while (!isStopped() && (group = todo.poll()) != null){
+						groups.incrementAndGet();
+						Iterator<List<String>> it = group.getValue();
+						while (!isStopped() && it.hasNext()){
+							pages.incrementAndGet();
+							out.put(new Page(group.getKey(), it.next()));
+						}
+					}
+				}
+			});
+		}
+		for (int i = 0; i < userWorkers; i++){
+			pool.execute(new Stage(writeQueue, userWorkersLeft, writers) {
+				void work() throws Exception {
+					Page page;
+					while (!isStopped() && (page = userQueue.take()) != END){
+						ensureOnce(page.memberIds);
+						out.put(page);
+					}
+				}
+			});
+		}
+		for (int i = 0; i < writers; i++){
+			pool.execute(new Stage(null, null, 0) {
+				void work() throws Exception {
+					Page page;
+					while (!isStopped() && (page = writeQueue.take()) != END){
+						addMemberships(page.groupId, page.memberIds);
+						memberships.addAndGet(page.memberIds.size());
+					}
+				}
+			});
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * One thread of a stage. The last thread of a stage to finish tells
+	 * every thread of the next stage there's nothing more coming.
+	 */
+	private abstract class Stage implements Runnable {
+		final BlockingQueue<Page> out;
+		final AtomicInteger left;
+		final int nextStageThreads;
+
+		Stage(BlockingQueue<Page> out, AtomicInteger left, int nextStageThreads){
+			this.out = out;
+			this.left = left;
+			this.nextStageThreads = nextStageThreads;
+		}
+
+		abstract void work() throws Exception;
+
+		public void run(){
+			try {
+				startThread();
+				work();
+				if (out != null && left.decrementAndGet() == 0){
+					for (int i = 0; i < nextStageThreads; i++){
+						out.put(END);
+					}
+				}
+			}
+			catch (InterruptedException ie){
+				// Stopped because another thread failed
+				if (!isStopped()){
+					fail(ie);
+				}
+			}
+			catch (Exception e){
+				fail(e);
+			}
+			catch (Error err){
+				// Don't leave the other stages waiting on this one
+				fail(new RuntimeException(err));
+				throw err;
+			}
+			finally {
+				stopThread();
+			}
+		}
+	}
+
+	/**
+	 * Ensure the users in a page that no other worker has taken yet, then wait
+	 * for the ones another worker is still ensuring. A membership is never
+	 * written before its user exists.
+	 */
+	private void ensureOnce(List<String> userIds) throws Exception {
+		CountDownLatch mine = new CountDownLatch(1);
+		List<String> newUsers = new ArrayList<String>();
+		List<CountDownLatch> others = new ArrayList<CountDownLatch>();
+		for (String userId : userIds){
+			CountDownLatch existing = ensuredUsers.putIfAbsent(userId, mine);
+			if (existing == null){
+				newUsers.add(userId);
+			}
+			else if (existing != mine){
+				others.add(existing);
+			}
+		}
+		try {
+			if (!newUsers.isEmpty()){
+				ensureUsers(newUsers);
+				users.addAndGet(newUsers.size());
+			}
+		}
+		finally {
+			mine.countDown();
+		}
+		for (CountDownLatch other : others){
+			other.await();
+		}
+	}
+
+	private boolean isStopped(){
+		return failure.get() != null;
+	}
+
+	/**
+	 * Remember the first failure and interrupt everything else.
+	 */
+	private void fail(Exception e){
+		if (failure.compareAndSet(null, e)){
+			log.error(name + " : provisioning failed. Stopping the pipeline. " + e.getMessage());
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for every page to be written.
+	 * @throws Exception the first failure in any stage.
+	 */
+	public void await() throws Exception {
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ie){
+			fail(ie);
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this){
+			elapsed = System.currentTimeMillis() - started;
+		}
+		Exception e = failure.get();
+		if (e != null){
+			throw e;
+		}
+	}
+
+	/**
+	 * @return how many memberships were written to OAE.
+	 */
+	public long getMemberships(){
+		return memberships.get();
+	}
+
+	/**
+	 * @return how many pages of members were read.
+	 */
+	public long getPages(){
+		return pages.get();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "ProvisioningPipeline[" + name +
+			" groups=" + groups.get() +
+			" pages=" + pages.get() +
+			" users=" + users.get() +
+			" memberships=" + memberships.get() +
+			" elapsed=" + elapsed + "ms]";
+	}
+}
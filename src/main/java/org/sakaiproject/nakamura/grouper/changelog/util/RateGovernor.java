@@ -0,0 +1,221 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Paces the requests we send to Sakai OAE so a big provisioning run doesn't swamp it.
+ *
+ * Each kind of operation has its own token bucket with a rate in requests per second.
+ * A request waits for a token instead of being dropped. A rate of 0 doesn't limit that operation.
+ *
+ * The governor keeps a moving average of how long OAE takes to answer. While it's above the
+ * latency threshold every rate is cut in half, down to a tenth of the configured rate.
+ * Once OAE speeds up again the rates climb back.
+ */
+public class RateGovernor {
+
+	private static Log log = LogFactory.getLog(RateGovernor.class);
+
+	public static final long DEFAULT_LATENCY_THRESHOLD = 2000;
+
+	public enum Operation {
+		// Creating, updating and deleting worlds and their pseudoGroups
+		WORLD_CREATE,
+		USER_CREATE,
+		// Adding and removing members, one at a time or in batches
+		MEMBERSHIP_WRITE,
+		// Checking whether groups and users exist, reading roles
+		READ
+	}
+
+	// Weight of the newest sample in the latency average
+	private static final double LATENCY_ALPHA = 0.2;
+	// Don't change the rates more often than this
+	private static final long ADJUST_INTERVAL = 1000;
+	private static final double MIN_SCALE = 0.1;
+	private static final double RECOVERY_STEP = 0.1;
+
+	private final Map<Operation, Bucket> buckets = new EnumMap<Operation, Bucket>(Operation.class);
+	private final long latencyThreshold;
+
+	private double averageLatency = 0;
+	private double scale = 1.0;
+	private long lastAdjusted = 0;
+	private long tightenings = 0;
+
+	/**
+	 * One token bucket.
+	 */
+	private class Bucket {
+		final double rate;
+		double tokens;
+		long lastRefill;
+		int waiting = 0;
+		long acquired = 0;
+
+		Bucket(double rate){
+			this.rate = rate;
+			// Allow a one second burst
+			this.tokens = Math.max(1, rate);
+			this.lastRefill = now();
+		}
+
+		double effectiveRate(){
+			return rate * scale;
+		}
+
+		/**
+		 * Take a token if there is one.
+		 * @return 0 if we got a token, otherwise milliseconds to wait for the next one.
+		 */
+		long tryAcquire(){
+			long now = now();
+			double effective = effectiveRate();
+			tokens = Math.min(Math.max(1, effective), tokens + (now - lastRefill) * effective / 1000.0);
+			lastRefill = now;
+			if (tokens >= 1){
+				tokens -= 1;
+				acquired++;
+				return 0;
+			}
+			return Math.max(1, (long)Math.ceil((1 - tokens) * 1000.0 / effective));
+		}
+	}
+
+	/**
+	 * @param rates requests per second for each operation. Missing or 0 means no limit.
+	 * @param latencyThreshold milliseconds. Slow down when OAE takes longer than this on average.
+	 */
+	public RateGovernor(Map<Operation, Double> rates, long latencyThreshold){
+		for (Map.Entry<Operation, Double> rate : rates.entrySet()){
+			if (rate.getValue() != null && rate.getValue() > 0){
+				buckets.put(rate.getKey(), new Bucket(rate.getValue()));
+			}
+		}
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	/**
+	 * Wait until the operation may be sent.
+	 * @param operation the kind of request about to be sent
+	 * @throws InterruptedException
+	 */
+	public void acquire(Operation operation) throws InterruptedException {
+		Bucket bucket = buckets.get(operation);
+		if (bucket == null){
+			return;
+		}
+		boolean waited = false;
+		try {
+			while (true){
+				long wait;
+				synchronized (this){
+					wait = bucket.tryAcquire();
+					if (wait == 0){
+						return;
+					}
+					if (!waited){
+						bucket.waiting++;
+						waited = true;
+					}
+				}
+				sleep(wait);
+			}
+		}
+		finally {
+			if (waited){
+				synchronized (this){
+					bucket.waiting--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tell the governor how long a request took.
+	 * @param millis how long OAE took to answer
+	 */
+	public synchronized void recordLatency(long millis){
+		averageLatency = (averageLatency == 0)? millis : LATENCY_ALPHA * millis + (1 - LATENCY_ALPHA) * averageLatency;
+		long now = now();
+		if (now - lastAdjusted < ADJUST_INTERVAL){
+			return;
+		}
+		if (averageLatency > latencyThreshold && scale > MIN_SCALE){
+			scale = Math.max(MIN_SCALE, scale / 2);
+			lastAdjusted = now;
+			tightenings++;
+			log.warn("Sakai OAE is answering in " + (long)averageLatency + "ms on average. Slowing down to "
+					+ (int)(scale * 100) + "% of the configured rates.");
+		}
+		else if (averageLatency <= latencyThreshold && scale < 1.0){
+			scale = Math.min(1.0, scale + RECOVERY_STEP);
+			lastAdjusted = now;
+		}
+	}
+
+	/**
+	 * @return requests per second allowed for the operation right now. 0 if unlimited.
+	 */
+	public synchronized double getCurrentRate(Operation operation){
+		Bucket bucket = buckets.get(operation);
+		return (bucket == null)? 0 : bucket.effectiveRate();
+	}
+
+	/**
+	 * @return how many threads are waiting to send the operation.
+	 */
+	public synchronized int getQueueDepth(Operation operation){
+		Bucket bucket = buckets.get(operation);
+		return (bucket == null)? 0 : bucket.waiting;
+	}
+
+	public synchronized double getScale(){
+		return scale;
+	}
+
+	public synchronized long getAverageLatency(){
+		return (long)averageLatency;
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	protected void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	@Override
+	public synchronized String toString(){
+		StringBuilder sb = new StringBuilder("RateGovernor[scale=" + scale
+				+ " averageLatency=" + (long)averageLatency + "ms"
+				+ " tightenings=" + tightenings);
+		for (Map.Entry<Operation, Bucket> entry : buckets.entrySet()){
+			Bucket bucket = entry.getValue();
+			sb.append(" " + entry.getKey() + "={rate=" + String.format("%.1f", bucket.effectiveRate())
+					+ "/s waiting=" + bucket.waiting + " acquired=" + bucket.acquired + "}");
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,261 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides if a grouper name matches any of a list of restriction regexes.
+ *
+ * Most restrictions are a literal stem followed by .* so those are kept in a
+ * character trie and checked in one walk down the name. Restrictions with no
+ * regex syntax at all are exact matches and go in the same trie. The rest are
+ * joined into one alternation.
+ *
+ * Names in the same stem usually get the same answer. When the answer can't depend
+ * on the last segment of the name it's cached by stem so the other groups in a
+ * course don't have to be checked again.
+ */
+public class RestrictionMatcher {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final String META = "\\^$.|?*+()[]{}";
+
+	private static class Node {
+		Map<Character, Node> children;
+		// A literal.* restriction ends here
+		boolean prefix;
+		// A literal restriction ends here
+		boolean exact;
+	}
+
+	private final Node root = new Node();
+	// null if every restriction is a literal or a literal prefix
+	private final Pattern others;
+	private final int size;
+
+	private final LruCache<String, Boolean> decisions;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long uncacheable = 0;
+
+	public RestrictionMatcher(List<String> restrictions){
+		this(restrictions, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param restrictions regular expressions that must match the whole grouper name
+	 * @param cacheSize how many stems to remember answers for. 0 turns the cache off.
+	 */
+	public RestrictionMatcher(List<String> restrictions, int cacheSize){
+		List<String> regexes = new ArrayList<String>();
+		for (String restriction : restrictions){
+			if (restriction == null){
+				continue;
+			}
+			if (!index(restriction)){
+				// Make sure it's valid on its own so a bad row names itself
+				Pattern.compile(restriction);
+				regexes.add(restriction);
+			}
+		}
+		this.size = restrictions.size();
+		this.others = combine(regexes);
+		this.decisions = (cacheSize <= 0)? null : new LruCache<String, Boolean>(cacheSize);
+	}
+
+	/**
+	 * Put the restriction in the trie if it's a literal or a literal followed by .*
+	 * @return false if it needs the regex engine.
+	 */
+	private boolean index(String restriction){
+		int end = restriction.length();
+		boolean prefix = false;
+		if (restriction.endsWith(".*") && !isEscaped(restriction, end - 2)){
+			prefix = true;
+			end -= 2;
+		}
+		int start = restriction.startsWith("^")? 1 : 0;
+		StringBuilder literal = new StringBuilder();
+		for (int i = start; i < end; i++){
+			char c = restriction.charAt(i);
+			if (c == '\\'){
+				// Only escaped punctuation is a literal. \d, \w and friends aren't.
+				if (i + 1 >= end || Character.isLetterOrDigit(restriction.charAt(i + 1))){
+					return false;
+				}
+				literal.append(restriction.charAt(++i));
+			}
+			else if (META.indexOf(c) >= 0){
+				return false;
+			}
+			else {
+				literal.append(c);
+			}
+		}
+		Node node = root;
+		for (int i = 0; i < literal.length(); i++){
+			Character c = Character.valueOf(literal.charAt(i));
+			if (node.children == null){
+				node.children = new HashMap<Character, Node>();
+			}
+			Node child = node.children.get(c);
+			if (child == null){
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		if (prefix){
+			node.prefix = true;
+		}
+		else {
+			node.exact = true;
+		}
+		return true;
+	}
+
+	private static boolean isEscaped(String s, int index){
+		int backslashes = 0;
+		for (int i = index - 1; i >= 0 && s.charAt(i) == '\\'; i--){
+			backslashes++;
+		}
+		return backslashes % 2 == 1;
+	}
+
+	/**
+	 * @return one pattern that matches if any of the regexes match, or null if there are none.
+	 */
+	private static Pattern combine(List<String> regexes){
+		if (regexes.isEmpty()){
+			return null;
+		}
+		StringBuilder alternation = new StringBuilder();
+		for (String regex : regexes){
+			if (alternation.length() > 0){
+				alternation.append('|');
+			}
+			alternation.append("(?:").append(regex).append(')');
+		}
+		return Pattern.compile(alternation.toString());
+	}
+
+	/**
+	 * @return true if the name matches at least one of the restrictions.
+	 */
+	public boolean matches(String grouperName){
+		if (grouperName == null){
+			return false;
+		}
+		int stemEnd = grouperName.lastIndexOf(':');
+		String stem = (stemEnd > 0)? grouperName.substring(0, stemEnd) : null;
+		if (stem != null && decisions != null){
+			synchronized (decisions){
+				Boolean decision = decisions.get(stem);
+				if (decision != null){
+					hits++;
+					return decision;
+				}
+			}
+		}
+
+		// How many characters of the name a prefix needed to match, -1 if none did
+		int matchedAt = -1;
+		Node node = root;
+		int i = 0;
+		while (node != null){
+			if (node.prefix){
+				matchedAt = i;
+				break;
+			}
+			if (i == grouperName.length()){
+				if (node.exact){
+					matchedAt = i;
+				}
+				break;
+			}
+			node = (node.children == null)? null : node.children.get(Character.valueOf(grouperName.charAt(i)));
+			i++;
+		}
+
+		boolean matches = matchedAt >= 0 || (others != null && others.matcher(grouperName).matches());
+		if (stem != null && decisions != null){
+			Boolean decision = null;
+			if (matchedAt >= 0 && matchedAt <= stemEnd + 1 && node.prefix){
+				// The prefix is all stem. Every name in the stem matches.
+				decision = Boolean.TRUE;
+			}
+			else if (!matches && others == null && !continuesPast(stem)){
+				// Nothing in the trie is longer than the stem. No name in the stem matches.
+				decision = Boolean.FALSE;
+			}
+			synchronized (decisions){
+				if (decision != null){
+					misses++;
+					decisions.put(stem, decision);
+				}
+				else {
+					uncacheable++;
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @return if any literal restriction goes past the stem and its separator.
+	 */
+	private boolean continuesPast(String stem){
+		Node node = root;
+		for (int i = 0; i < stem.length() && node != null; i++){
+			node = (node.children == null)? null : node.children.get(Character.valueOf(stem.charAt(i)));
+		}
+		if (node != null && node.children != null){
+			node = node.children.get(Character.valueOf(':'));
+			return node != null;
+		}
+		return false;
+	}
+
+	/**
+	 * @return how many restrictions this was built from.
+	 */
+	public int size(){
+		return size;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder("RestrictionMatcher[restrictions=" + size +
+			" regex=" + (others != null));
+		if (decisions != null){
+			synchronized (decisions){
+				sb.append(" cached=" + decisions.size() +
+					" hits=" + hits +
+					" misses=" + misses +
+					" uncacheable=" + uncacheable);
+			}
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,111 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.Random;
+
+/**
+ * How many times to retry a request to Sakai OAE and how long to wait in between.
+ *
+ * The wait doubles after each attempt up to maxDelay. A random jitter of up to half
+ * the wait is taken off so a group of loaders don't all retry at the same moment.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_BASE_DELAY = 500;
+	public static final long DEFAULT_MAX_DELAY = 10000;
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random random = new Random();
+
+	private long retries = 0;
+	private long waited = 0;
+
+	public RetryPolicy(){
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param maxRetries how many times to retry after the first attempt
+	 * @param baseDelay milliseconds to wait before the first retry
+	 * @param maxDelay the longest to wait between attempts
+	 */
+	public RetryPolicy(int maxRetries, long baseDelay, long maxDelay){
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param retry which retry this is, starting at 0
+	 * @return milliseconds to wait before it.
+	 */
+	public long getDelay(int retry){
+		long delay = baseDelay << Math.min(retry, 30);
+		if (delay <= 0 || delay > maxDelay){
+			delay = maxDelay;
+		}
+		long jitter;
+		synchronized (random){
+			jitter = (long)(random.nextDouble() * (delay / 2));
+		}
+		return delay - jitter;
+	}
+
+	/**
+	 * Wait before a retry.
+	 * @param retry which retry this is, starting at 0
+	 * @throws InterruptedException
+	 */
+	public void backoff(int retry) throws InterruptedException {
+		long delay = getDelay(retry);
+		synchronized (this){
+			retries++;
+			waited += delay;
+		}
+		sleep(delay);
+	}
+
+	protected void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public synchronized long getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return the total milliseconds spent waiting to retry.
+	 */
+	public synchronized long getWaited() {
+		return waited;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "RetryPolicy[maxRetries=" + maxRetries +
+			" retries=" + retries +
+			" waited=" + waited + "ms]";
+	}
+}
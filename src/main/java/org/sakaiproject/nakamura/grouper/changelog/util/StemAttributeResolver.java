@@ -0,0 +1,181 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Stem;
+
+/**
+ * Finds the value of an attribute on a group or the closest stem above it that has one.
+ *
+ * Each stem's attribute is read once. The inherited value is remembered for every
+ * stem on the way up, so the sibling courses in a department find their value
+ * with a map lookup. Stems with no value anywhere above them are remembered too.
+ *
+ * Call {@link #invalidate(String)} when a stem changes. It forgets the stem and
+ * everything under it. Entries also expire after ttl milliseconds since attribute
+ * assignments don't always show up as stem updates.
+ */
+public class StemAttributeResolver {
+
+	private static Log log = LogFactory.getLog(StemAttributeResolver.class);
+
+	public static final int DEFAULT_MAX_SIZE = 5000;
+	public static final long DEFAULT_TTL = 300000;
+
+	private final String attributeName;
+	private final long ttl;
+
+	// stem name -> the value it has or inherits. null if neither the stem nor any stem above it has a value.
+	private final LruCache<String, String> inherited;
+
+	private long hits = 0;
+	private long reads = 0;
+	private long invalidations = 0;
+
+	public StemAttributeResolver(String attributeName){
+		this(attributeName, DEFAULT_MAX_SIZE, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param attributeName the attribute to look for
+	 * @param maxSize the most stems to remember
+	 * @param ttl milliseconds to remember a stem's value. 0 turns off the cache.
+	 */
+	public StemAttributeResolver(String attributeName, int maxSize, long ttl){
+		this.attributeName = attributeName;
+		this.ttl = ttl;
+		this.inherited = new LruCache<String, String>(maxSize);
+	}
+
+	/**
+	 * @param group where to start looking
+	 * @return the value on the group, or inherited from its stems, or null.
+	 */
+	public String resolve(Group group){
+		if (group == null){
+			return null;
+		}
+		String value = group.getAttributeOrFieldValue(attributeName, false, false);
+		if (value == null){
+			value = resolve(group.getParentStem());
+		}
+		return value;
+	}
+
+	/**
+	 * @param stem where to start looking
+	 * @return the value on the stem or inherited from the stems above it, or null.
+	 */
+	public String resolve(Stem stem){
+		// Stems we read on the way up. They all inherit the value we find.
+		List<String> walked = new ArrayList<String>();
+		String value = null;
+		Stem current = stem;
+		while (current != null){
+			String name = current.getName();
+			synchronized (this){
+				long now = now();
+				if (inherited.contains(name, now)){
+					hits++;
+					value = inherited.get(name, now);
+					break;
+				}
+				reads++;
+			}
+			walked.add(name);
+			value = readStem(current);
+			if (value != null || current.isRootStem()){
+				break;
+			}
+			current = current.getParentStem();
+		}
+		if (ttl > 0){
+			synchronized (this){
+				long expires = now() + ttl;
+				for (String name : walked){
+					inherited.put(name, value, expires);
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @return the value of the attribute on this stem only.
+	 */
+	protected String readStem(Stem stem){
+		try {
+			return stem.getAttributeValueDelegate().retrieveValueString(attributeName);
+		}
+		catch (RuntimeException e){
+			// The attribute isn't defined or assigned here
+			log.debug("Unable to read " + attributeName + " from " + stem.getName() + " : " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Forget a stem and everything under it.
+	 * @param stemName the full name of the stem
+	 */
+	public synchronized void invalidate(String stemName){
+		if (stemName == null){
+			return;
+		}
+		String prefix = stemName + ":";
+		Iterator<String> names = inherited.keys();
+		while (names.hasNext()){
+			String name = names.next();
+			if (stemName.length() == 0 || name.equals(stemName) || name.startsWith(prefix)){
+				names.remove();
+				invalidations++;
+			}
+		}
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public synchronized void invalidateAll(){
+		inherited.clear();
+	}
+
+	public synchronized int size(){
+		return inherited.size();
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "StemAttributeResolver[" + attributeName +
+			" size=" + inherited.size() + "/" + inherited.getMaxSize() +
+			" hits=" + hits +
+			" reads=" + reads +
+			" invalidations=" + invalidations + "]";
+	}
+}
@@ -0,0 +1,224 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Figures out which configured stem a grouper name lives in.
+ *
+ * The stems are stored in a trie keyed on the : separated segments of the stem
+ * so classifying a name is one walk down its segments no matter how many stems
+ * are configured. The longest matching stem wins.
+ *
+ * A name only matches a stem at a segment boundary and only if there is
+ * something after the stem. a:b:cd:x is not in the stem a:b:c and a:b:c is not in
+ * the stem a:b:c.
+ *
+ * Classifying doesn't lock. Add the stems before sharing the classifier between threads.
+ */
+public class StemClassifier {
+
+	public static final char SEPARATOR = ':';
+
+	public enum Origin { ADHOC, PROVISIONED, INSTITUTIONAL }
+
+	public enum Kind { COURSE, SIMPLE }
+
+	/**
+	 * What we know about a grouper name from its stem.
+	 */
+	public static class Classification {
+		public final Origin origin;
+		public final Kind kind;
+		// The configured stem the name is in
+		public final String stem;
+		// The part of the name after the stem and the separator
+		public final String remainder;
+
+		public Classification(Origin origin, Kind kind, String stem, String remainder){
+			this.origin = origin;
+			this.kind = kind;
+			this.stem = stem;
+			this.remainder = remainder;
+		}
+
+		public boolean isAdhoc(){
+			return origin == Origin.ADHOC;
+		}
+
+		public boolean isProvisioned(){
+			return origin == Origin.PROVISIONED;
+		}
+
+		public boolean isInstitutional(){
+			return origin == Origin.INSTITUTIONAL;
+		}
+
+		public boolean isCourse(){
+			return kind == Kind.COURSE;
+		}
+
+		public boolean isSimple(){
+			return kind == Kind.SIMPLE;
+		}
+
+		@Override
+		public String toString(){
+			return "Classification[" + origin + " " + kind + " stem=" + stem + " remainder=" + remainder + "]";
+		}
+	}
+
+	private static class Node {
+		Map<String, Node> children;
+		// Set if a configured stem ends here
+		Origin origin;
+		Kind kind;
+		String stem;
+	}
+
+	private Node root = new Node();
+	private int size = 0;
+
+	/**
+	 * Add a stem. Replaces the origin and kind if the stem is already there.
+	 * @param stem the full stem name, a:b:c
+	 */
+	public synchronized void addStem(String stem, Origin origin, Kind kind){
+		stem = normalize(stem);
+		if (stem == null){
+			return;
+		}
+		Node node = root;
+		int start = 0;
+		while (start <= stem.length()){
+			int end = stem.indexOf(SEPARATOR, start);
+			if (end < 0){
+				end = stem.length();
+			}
+			String segment = stem.substring(start, end);
+			if (node.children == null){
+				node.children = new HashMap<String, Node>();
+			}
+			Node child = node.children.get(segment);
+			if (child == null){
+				child = new Node();
+				node.children.put(segment, child);
+			}
+			node = child;
+			start = end + 1;
+		}
+		if (node.stem == null){
+			size++;
+		}
+		node.origin = origin;
+		node.kind = kind;
+		node.stem = stem;
+	}
+
+	/**
+	 * Remove a stem. Does nothing if it isn't there.
+	 */
+	public synchronized void removeStem(String stem){
+		Node node = find(stem);
+		if (node != null && node.stem != null){
+			node.stem = null;
+			node.origin = null;
+			node.kind = null;
+			size--;
+		}
+	}
+
+	public synchronized void clear(){
+		root = new Node();
+		size = 0;
+	}
+
+	/**
+	 * @return the classification of the name or null if it isn't in any of the stems.
+	 */
+	public Classification classify(String grouperName){
+		if (grouperName == null){
+			return null;
+		}
+		Node node = root;
+		Node match = null;
+		int matchEnd = -1;
+		int start = 0;
+		int length = grouperName.length();
+		while (start < length && node.children != null){
+			int end = grouperName.indexOf(SEPARATOR, start);
+			if (end < 0){
+				// The last segment is the group extension. It can't be part of a stem.
+				break;
+			}
+			node = node.children.get(grouperName.substring(start, end));
+			if (node == null){
+				break;
+			}
+			if (node.stem != null){
+				match = node;
+				matchEnd = end;
+			}
+			start = end + 1;
+		}
+		if (match == null){
+			return null;
+		}
+		return new Classification(match.origin, match.kind, match.stem, grouperName.substring(matchEnd + 1));
+	}
+
+	private Node find(String stem){
+		stem = normalize(stem);
+		if (stem == null){
+			return null;
+		}
+		Node node = root;
+		int start = 0;
+		while (node != null && start <= stem.length()){
+			int end = stem.indexOf(SEPARATOR, start);
+			if (end < 0){
+				end = stem.length();
+			}
+			node = (node.children == null)? null : node.children.get(stem.substring(start, end));
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the stem without a trailing separator or null if there's nothing left.
+	 */
+	private static String normalize(String stem){
+		if (stem == null){
+			return null;
+		}
+		int end = stem.length();
+		while (end > 0 && stem.charAt(end - 1) == SEPARATOR){
+			end--;
+		}
+		return (end == 0)? null : stem.substring(0, end);
+	}
+
+	/**
+	 * @return how many stems are configured.
+	 */
+	public synchronized int size(){
+		return size;
+	}
+}
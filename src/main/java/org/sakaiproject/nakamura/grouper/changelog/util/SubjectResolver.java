@@ -0,0 +1,130 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.internet2.middleware.grouper.SubjectFinder;
+import edu.internet2.middleware.subject.Subject;
+
+/**
+ * Looks up Grouper subjects once per batch.
+ *
+ * The consumer resolves every subject in a batch up front with {@link #resolveAll(Collection)}
+ * and the membership handlers and user creation share the results. Each lookup can go
+ * to LDAP or the subject database so a course with the same person in several roles
+ * only pays for it once.
+ *
+ * Subjects that aren't found are not remembered. Call {@link #clear()} between batches
+ * so changes in the subject source are picked up.
+ */
+public class SubjectResolver {
+
+	private static Log log = LogFactory.getLog(SubjectResolver.class);
+
+	public static final int DEFAULT_MAX_SIZE = 20000;
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String, Subject> subjects = new ConcurrentHashMap<String, Subject>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long notFound = 0;
+
+	public SubjectResolver(){
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize the most subjects to hold. Lookups past that aren't cached.
+	 */
+	public SubjectResolver(int maxSize){
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Look up all of these subjects that we don't already have.
+	 * @param idsOrIdentifiers subject ids or identifiers
+	 * @return how many were found
+	 */
+	public int resolveAll(Collection<String> idsOrIdentifiers){
+		int found = 0;
+		for (String idOrIdentifier : idsOrIdentifiers){
+			try {
+				if (find(idOrIdentifier) != null){
+					found++;
+				}
+			}
+			catch (RuntimeException e){
+				// Let the handler for the entry run into it and decide
+				log.debug("Unable to resolve " + idOrIdentifier + " : " + e.getMessage());
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param idOrIdentifier a subject id or identifier
+	 * @return the subject or null if it wasn't found
+	 */
+	public Subject find(String idOrIdentifier){
+		if (idOrIdentifier == null){
+			return null;
+		}
+		Subject subject = subjects.get(idOrIdentifier);
+		if (subject != null){
+			synchronized (this){
+				hits++;
+			}
+			return subject;
+		}
+		subject = SubjectFinder.findByIdOrIdentifier(idOrIdentifier, false);
+		synchronized (this){
+			misses++;
+			if (subject == null){
+				notFound++;
+			}
+		}
+		if (subject != null && subjects.size() < maxSize){
+			subjects.put(idOrIdentifier, subject);
+		}
+		return subject;
+	}
+
+	/**
+	 * Forget everything. Call this at the start of each batch.
+	 */
+	public void clear(){
+		subjects.clear();
+	}
+
+	public int size(){
+		return subjects.size();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "SubjectResolver[size=" + subjects.size() +
+			" hits=" + hits +
+			" misses=" + misses +
+			" notFound=" + notFound + "]";
+	}
+}
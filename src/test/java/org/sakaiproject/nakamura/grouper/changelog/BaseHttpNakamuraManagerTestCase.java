@@ -18,12 +18,14 @@ package org.sakaiproject.nakamura.grouper.changelog;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 import static org.powermock.api.support.membermodification.MemberMatcher.method;
 import static org.powermock.api.support.membermodification.MemberModifier.suppress;
@@ -31,22 +33,39 @@ import static org.powermock.api.support.membermodification.MemberModifier.suppre
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.sf.json.JSONObject;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipChunkException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipFlushException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserCreationException;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.util.AsyncDispatcher;
 import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils.LatencyListener;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils.ResponseMode;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 import edu.internet2.middleware.grouper.GroupFinder;
 import edu.internet2.middleware.grouper.GrouperSession;
@@ -104,6 +123,23 @@ public class BaseHttpNakamuraManagerTestCase extends TestCase {
 		verifyNoMoreInteractions(httpClient);
 	}
 
+	@Test
+	public void testUserExistsIsCached() throws HttpException, IOException, GroupModificationException, UserModificationException{
+		when(httpClient.executeMethod(any(HttpMethod.class))).thenReturn(200);
+		nakamuraManager.createUser(userId);
+		nakamuraManager.createUser(userId);
+		verify(httpClient, times(1)).executeMethod(any(GetMethod.class));
+		verifyNoMoreInteractions(httpClient);
+	}
+
+	@Test
+	public void testMissingGroupIsCached() throws HttpException, IOException{
+		when(httpClient.executeMethod(any(HttpMethod.class))).thenReturn(404);
+		assertFalse(nakamuraManager.groupExists("course1"));
+		assertFalse(nakamuraManager.groupExists("course1"));
+		verify(httpClient, times(1)).executeMethod(any(GetMethod.class));
+	}
+
 	@Test(expected=UserModificationException.class)
 	public void testUserDoesntExsistInSakaiOrGrouper() throws HttpException, IOException, GroupModificationException, UserModificationException{
 		when(httpClient.executeMethod(any(HttpMethod.class))).thenReturn(404);
@@ -142,4 +178,304 @@ public class BaseHttpNakamuraManagerTestCase extends TestCase {
 		nakamuraManager.createUser(userId);
 		verifyNoMoreInteractions(httpClient);
 	}
-}
\ No newline at end of file
+
+	public void testPrefetchExistence() throws Exception{
+		JSONObject response = JSONObject.fromObject("{\"results\":["
+				+ "{\"url\":\"/system/userManager/group/course1.json\",\"status\":200},"
+				+ "{\"url\":\"/system/userManager/group/course2.json\",\"status\":404},"
+				+ "{\"url\":\"/system/userManager/user/user1.json\",\"status\":200}]}");
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(response);
+
+		nakamuraManager.prefetchExistence(ImmutableList.of("course1", "course2"), ImmutableList.of(userId));
+		assertTrue(nakamuraManager.groupExists("course1"));
+		assertFalse(nakamuraManager.groupExists("course2"));
+		nakamuraManager.createUser(userId);
+		verifyNoMoreInteractions(httpClient);
+	}
+
+	public void testCoalescedMembershipsWaitForFlush() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.coalesceMemberships = true;
+		nakamuraManager.coalesceLinger = 60000;
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		nakamuraManager.addMembership("course1-student", "user1");
+		nakamuraManager.addMembership("course1-student", "user2");
+		nakamuraManager.deleteMembership("course1-student", "user1");
+		verifyStatic(times(0));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class));
+
+		nakamuraManager.flush();
+		verifyStatic(times(1));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class));
+	}
+
+	public void testCoalescedMembershipsFlushWhenFull() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.coalesceMemberships = true;
+		nakamuraManager.coalesceMaxSize = 2;
+		nakamuraManager.coalesceLinger = 60000;
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		nakamuraManager.addMembership("course1-student", "user1");
+		nakamuraManager.addMembership("course1-student", "user2");
+		verifyStatic(times(1));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class));
+	}
+
+	public void testCoalescedMembershipsWithoutResultsFailTheFlush() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.coalesceMemberships = true;
+		nakamuraManager.coalesceLinger = 60000;
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		nakamuraManager.addMembership("course1-student", "user1");
+		nakamuraManager.addMembership("course2-student", "user1");
+		try {
+			nakamuraManager.flush();
+			fail("OAE didn't say whether course2-student was updated");
+		}
+		catch (MembershipFlushException mfe){
+			assertEquals(ImmutableSet.of("course2-student"), mfe.groupIds);
+		}
+	}
+
+	public void testAsyncFailureIsReportedByFlush() throws Exception{
+		GroupIdManager groupIdManager = mock(GroupIdManager.class);
+		when(groupIdManager.getWorldId("course1-student")).thenReturn("course1");
+		nakamuraManager.groupIdAdapter = groupIdManager;
+		nakamuraManager.asyncWindow = 2;
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.STATUS_ONLY), any(LatencyListener.class)))
+				.thenThrow(new GroupModificationException(500, "boom"));
+
+		// Doesn't wait for OAE
+		nakamuraManager.addMembership("course1-student", "user1");
+		nakamuraManager.addMembership("course1-student", "user2");
+		try {
+			nakamuraManager.flush();
+			fail("The failed request should be reported by flush");
+		}
+		catch (GroupModificationException gme){
+			// The second add was skipped after the first failed
+			assertTrue(gme.getMessage().startsWith("2 requests"));
+		}
+		verifyStatic(times(1));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.STATUS_ONLY), any(LatencyListener.class));
+	}
+
+	public void testFlushStopsTheDispatcher() throws Exception{
+		GroupIdManager groupIdManager = mock(GroupIdManager.class);
+		when(groupIdManager.getWorldId("course1-student")).thenReturn("course1");
+		nakamuraManager.groupIdAdapter = groupIdManager;
+		nakamuraManager.asyncWindow = 2;
+
+		nakamuraManager.addMembership("course1-student", "user1");
+		AsyncDispatcher first = nakamuraManager.getDispatcher();
+		assertNotNull(first);
+		nakamuraManager.flush();
+		assertTrue(first.isShutdown());
+		assertNull(nakamuraManager.getDispatcher());
+
+		// The next write gets a new one
+		nakamuraManager.addMembership("course1-student", "user2");
+		assertNotSame(first, nakamuraManager.getDispatcher());
+		nakamuraManager.flush();
+		verifyStatic(times(2));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.STATUS_ONLY), any(LatencyListener.class));
+	}
+
+	public void testFailedChunkIsReported() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.chunkParallelism = 1;
+		nakamuraManager.configureChunking(2, 2, 60000);
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200},{\"status\":200}]}"))
+				.thenThrow(new GroupModificationException(500, "boom"))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		try {
+			nakamuraManager.addMemberships("course1-student", ImmutableList.of("user1", "user2", "user3", "user4", "user5"));
+			fail("The failed chunk should be reported");
+		}
+		catch (MembershipChunkException mce){
+			assertEquals(1, mce.failedChunks);
+			assertEquals(3, mce.totalChunks);
+			assertEquals(ImmutableList.of("user3", "user4"), mce.failedMemberIds);
+		}
+		verifyStatic(times(3));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class));
+	}
+
+	public void testChunkWithoutResultsFails() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.chunkParallelism = 1;
+		nakamuraManager.configureChunking(2, 2, 60000);
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{}"))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		try {
+			nakamuraManager.addMemberships("course1-student", ImmutableList.of("user1", "user2", "user3"));
+			fail("OAE didn't say whether the first chunk worked");
+		}
+		catch (MembershipChunkException mce){
+			assertEquals(1, mce.failedChunks);
+			assertEquals(2, mce.totalChunks);
+			assertEquals(ImmutableList.of("user1", "user2"), mce.failedMemberIds);
+		}
+	}
+
+	public void testShortChunkResultsFail() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		nakamuraManager.chunkParallelism = 1;
+		nakamuraManager.configureChunking(2, 2, 60000);
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(JSONObject.fromObject("{\"results\":[{\"status\":200}]}"));
+
+		try {
+			nakamuraManager.addMemberships("course1-student", ImmutableList.of("user1", "user2"));
+			fail("OAE didn't say whether user2 was added");
+		}
+		catch (MembershipChunkException mce){
+			assertEquals(ImmutableList.of("user2"), mce.failedMemberIds);
+		}
+	}
+
+	public void testEveryDeleteChunkIsAccountedFor() throws Exception{
+		HttpNakamuraManagerImpl nm = new HttpNakamuraManagerImpl(){
+			@Override
+			protected void sendChunk(String nakamuraGroupId, MembershipChunk chunk, boolean add){
+				assertFalse(add);
+				if (chunk.memberIds.contains("user3")){
+					throw new IllegalStateException("boom");
+				}
+			}
+		};
+		nm.url = url;
+		nm.groupIdAdapter = mock(GroupIdManager.class);
+		nm.chunkParallelism = 2;
+		nm.configureChunking(2, 2, 60000);
+
+		try {
+			nm.deleteMemberships("course1-student", ImmutableList.of("user1", "user2", "user3", "user4", "user5"));
+			fail("The failed chunk should be reported");
+		}
+		catch (MembershipChunkException mce){
+			assertEquals(1, mce.failedChunks);
+			assertEquals(3, mce.totalChunks);
+			assertEquals(ImmutableList.of("user3", "user4"), mce.failedMemberIds);
+		}
+	}
+
+	public void testManagersForOneServerShareTheChunkThreads() throws Exception{
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		for (int run = 0; run < 3; run++){
+			HttpNakamuraManagerImpl nm = new HttpNakamuraManagerImpl(){
+				@Override
+				protected void sendChunk(String nakamuraGroupId, MembershipChunk chunk, boolean add){
+					threads.add(Thread.currentThread());
+				}
+			};
+			nm.url = url;
+			nm.groupIdAdapter = mock(GroupIdManager.class);
+			nm.chunkParallelism = 2;
+			nm.configureChunking(1, 1, 60000);
+			nm.addMemberships("course1-student", ImmutableList.of("user1", "user2", "user3", "user4"));
+		}
+		// A new manager every run doesn't mean new threads every run
+		assertTrue(threads.size() <= 2);
+	}
+
+	public void testMembershipDeltaIsOneRequest() throws Exception{
+		nakamuraManager.groupIdAdapter = mock(GroupIdManager.class);
+		ArgumentCaptor<HttpMethod> captor = ArgumentCaptor.forClass(HttpMethod.class);
+
+		nakamuraManager.applyMembershipDelta("course1-student", ImmutableList.of("user1", "user2"), ImmutableList.of("user3"));
+		verifyStatic(times(1));
+		NakamuraHttpUtils.http(any(HttpClient.class), captor.capture(), eq(ResponseMode.STATUS_ONLY), any(LatencyListener.class));
+
+		int members = 0;
+		int viewers = 0;
+		for (NameValuePair param : ((PostMethod)captor.getValue()).getParameters()){
+			if (HttpNakamuraManagerImpl.MEMBER_PARAM.equals(param.getName())){
+				members++;
+			}
+			else if (HttpNakamuraManagerImpl.VIEWER_PARAM.equals(param.getName())){
+				viewers++;
+			}
+			else if (HttpNakamuraManagerImpl.MEMBER_DELETE_PARAM.equals(param.getName())){
+				assertEquals("user3", param.getValue());
+			}
+		}
+		assertEquals(2, members);
+		assertEquals(2, viewers);
+	}
+
+	public void testCreateUsersOnlyCreatesMissingUsers() throws Exception{
+		JSONObject exists = JSONObject.fromObject("{\"results\":["
+				+ "{\"url\":\"/system/userManager/user/user1.json\",\"status\":200},"
+				+ "{\"url\":\"/system/userManager/user/user2.json\",\"status\":404}]}");
+		JSONObject created = JSONObject.fromObject("{\"results\":[{\"status\":200}]}");
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(exists, created);
+		when(SubjectFinder.findByIdOrIdentifier("user2", true)).thenReturn(user1);
+
+		nakamuraManager.createUsers(ImmutableList.of(userId, "user2", "user2"));
+		// One batch to check existence, one to create user2
+		verifyStatic(times(2));
+		NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class));
+
+		// Both are known to exist now
+		nakamuraManager.createUser(userId);
+		nakamuraManager.createUser("user2");
+		verifyNoMoreInteractions(httpClient);
+	}
+
+	public void testCreateUsersReportsEachFailure() throws Exception{
+		JSONObject exists = JSONObject.fromObject("{\"results\":["
+				+ "{\"url\":\"/system/userManager/user/user1.json\",\"status\":404},"
+				+ "{\"url\":\"/system/userManager/user/user2.json\",\"status\":404},"
+				+ "{\"url\":\"/system/userManager/user/user3.json\",\"status\":404}]}");
+		JSONObject created = JSONObject.fromObject("{\"results\":[{\"status\":200},{\"status\":500}]}");
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(exists, created);
+		when(SubjectFinder.findByIdOrIdentifier(userId, true)).thenReturn(user1);
+		when(SubjectFinder.findByIdOrIdentifier("user2", true)).thenReturn(user1);
+		when(SubjectFinder.findByIdOrIdentifier("user3", true)).thenThrow(new SubjectNotFoundException("user3"));
+
+		try {
+			nakamuraManager.createUsers(ImmutableList.of(userId, "user2", "user3"));
+			fail("user2 and user3 weren't created");
+		}
+		catch (UserCreationException uce){
+			assertEquals(1, uce.created);
+			assertEquals(ImmutableSet.of("user2", "user3"), uce.failures.keySet());
+		}
+	}
+
+	public void testCreateUsersWithoutResultsFails() throws Exception{
+		JSONObject exists = JSONObject.fromObject("{\"results\":["
+				+ "{\"url\":\"/system/userManager/user/user1.json\",\"status\":404},"
+				+ "{\"url\":\"/system/userManager/user/user2.json\",\"status\":404}]}");
+		JSONObject created = JSONObject.fromObject("{\"results\":[{\"status\":200}]}");
+		when(NakamuraHttpUtils.http(any(HttpClient.class), any(HttpMethod.class), eq(ResponseMode.JSON), any(LatencyListener.class)))
+				.thenReturn(exists, created);
+		when(SubjectFinder.findByIdOrIdentifier(userId, true)).thenReturn(user1);
+		when(SubjectFinder.findByIdOrIdentifier("user2", true)).thenReturn(user1);
+
+		try {
+			nakamuraManager.createUsers(ImmutableList.of(userId, "user2"));
+			fail("OAE didn't say whether user2 was created");
+		}
+		catch (UserCreationException uce){
+			assertEquals(1, uce.created);
+			assertEquals(ImmutableSet.of("user2"), uce.failures.keySet());
+		}
+		assertEquals(Boolean.TRUE, nakamuraManager.getUserExistenceCache().get(userId));
+		assertFalse(Boolean.TRUE.equals(nakamuraManager.getUserExistenceCache().get("user2")));
+	}
+}
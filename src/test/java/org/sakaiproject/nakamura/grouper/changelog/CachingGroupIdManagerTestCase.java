@@ -0,0 +1,76 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
+
+public class CachingGroupIdManagerTestCase extends TestCase {
+
+	private static final String GROUPER_NAME = "inst:sis:groups:2011:fall:math:101:001:students";
+
+	private GroupIdManager delegate;
+	private CachingGroupIdManager cache;
+
+	@Override
+	public void setUp(){
+		delegate = mock(GroupIdManager.class);
+		when(delegate.getGroupId(GROUPER_NAME)).thenReturn("course_math_101-student");
+		when(delegate.isInstitutional(GROUPER_NAME)).thenReturn(true);
+		cache = new CachingGroupIdManager(delegate, 2);
+	}
+
+	public void testAnswersAreRemembered(){
+		assertEquals("course_math_101-student", cache.getGroupId(GROUPER_NAME));
+		assertEquals("course_math_101-student", cache.getGroupId(GROUPER_NAME));
+		assertTrue(cache.isInstitutional(GROUPER_NAME));
+		assertTrue(cache.isInstitutional(GROUPER_NAME));
+		verify(delegate, times(1)).getGroupId(GROUPER_NAME);
+		verify(delegate, times(1)).isInstitutional(GROUPER_NAME);
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testNullAnswersAreRemembered(){
+		assertNull(cache.getApplicationGroupName(GROUPER_NAME));
+		assertNull(cache.getApplicationGroupName(GROUPER_NAME));
+		verify(delegate, times(1)).getApplicationGroupName(GROUPER_NAME);
+	}
+
+	public void testLeastRecentlyUsedIsEvicted(){
+		cache.getGroupId(GROUPER_NAME);
+		cache.getGroupId("a");
+		cache.getGroupId("b");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		cache.getGroupId(GROUPER_NAME);
+		verify(delegate, times(2)).getGroupId(GROUPER_NAME);
+	}
+
+	public void testInvalidateAll(){
+		cache.getGroupId(GROUPER_NAME);
+		cache.invalidateAll();
+		cache.getGroupId(GROUPER_NAME);
+		verify(delegate, times(2)).getGroupId(GROUPER_NAME);
+	}
+}
@@ -280,4 +280,17 @@ public class GroupIdManagerTestCase extends TestCase {
 
 		assertEquals(PROV_COURSEGROUPS_STEM + ":X:lecturers",manager.getApplicationGroupName(PROV_COURSEGROUPS_STEM + ":X:instructors"));
 	}
+
+	public void testMoreThanOneStem(){
+		manager.setInstitutionalCourseGroupsStem(INST_COURSEGROUPS_STEM + ", inst:other:groups");
+		assertTrue(manager.isInstitutional("inst:other:groups:X:students"));
+		assertTrue(manager.isCourseGroup("inst:other:groups:X:students"));
+		assertEquals(PROV_COURSEGROUPS_STEM + ":X:students", manager.getApplicationGroupName("inst:other:groups:X:students"));
+		assertEquals(PROV_COURSEGROUPS_STEM + ":X:students", manager.getApplicationGroupName(INST_COURSEGROUPS_STEM + ":X:students"));
+	}
+
+	public void testStemMatchesWholeSegments(){
+		assertNull(manager.getWorldType(INST_COURSEGROUPS_STEM + "X:some:group:role"));
+		assertFalse(manager.isInstitutional(INST_COURSEGROUPS_STEM + "X:some:group:role"));
+	}
 }
@@ -0,0 +1,69 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class IdTemplateTestCase extends TestCase {
+
+	private static final Pattern PATTERN = Pattern.compile("([^:]+):([^:]+):([^:]+):([^:]+)");
+
+	private String apply(IdTemplate template, String grouperName){
+		Matcher matcher = PATTERN.matcher(grouperName);
+		assertTrue(matcher.find());
+		return template.apply(matcher);
+	}
+
+	public void testConcatenationIsCompiled(){
+		IdTemplate template = IdTemplate.compile("'course_' + g[1] + '_' + g[ 3 ]", 4);
+		assertTrue(template.isCompiled());
+		assertEquals("course_2011_students", apply(template, "inst:2011:math:students"));
+	}
+
+	public void testCaptureFirstIsCompiled(){
+		IdTemplate template = IdTemplate.compile("g[0] + \"_\" + g[1]", 4);
+		assertTrue(template.isCompiled());
+		assertEquals("inst_2011", apply(template, "inst:2011:math:students"));
+	}
+
+	public void testEscapedQuote(){
+		IdTemplate template = IdTemplate.compile("'it\\'s_' + g[2]", 4);
+		assertTrue(template.isCompiled());
+		assertEquals("it's_math", apply(template, "inst:2011:math:students"));
+	}
+
+	public void testNumbersMightBeAddedSoUseJexl(){
+		// Jexl would add 2011 + 1 as numbers
+		assertFalse(IdTemplate.compile("g[1] + g[2]", 4).isCompiled());
+		assertFalse(IdTemplate.compile("'course' + g[1]", 4).isCompiled());
+	}
+
+	public void testExpressionsUseJexl(){
+		IdTemplate template = IdTemplate.compile("'course_' + g[1].toUpperCase()", 4);
+		assertFalse(template.isCompiled());
+		assertNull(IdTemplate.parse("g[0] +"));
+		assertNull(IdTemplate.parse("'unterminated"));
+		assertNull(IdTemplate.parse("x[0]"));
+	}
+
+	public void testCaptureOutOfRangeUsesJexl(){
+		assertFalse(IdTemplate.compile("'course_' + g[4]", 4).isCompiled());
+	}
+}
@@ -0,0 +1,106 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.jexl2.Expression;
+import org.apache.commons.jexl2.JexlContext;
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares the cost of filling in a group id template the old way, with a new
+ * Jexl engine and a fresh parse for every call, to the compiled {@link IdTemplate}.
+ *
+ * Not a unit test. Run it by hand with the test classpath:
+ *
+ * java org.sakaiproject.nakamura.grouper.changelog.TemplateGroupIdAdapterBenchmark [iterations]
+ */
+public class TemplateGroupIdAdapterBenchmark {
+
+	private static final Pattern PATTERN = Pattern.compile(
+			"edu:apps:sakaioae:provisioned:courses:([^:]+):([^:]+):([^:]+):([^:]+):([^:]+):([^:]+):([^:]+)");
+	private static final String TEMPLATE = "'course_' + g[2] + '_' + g[3] + '_' + g[4] + '_' + g[5] + '_' + g[1] + '_' + g[6]";
+	private static final String NAME = "edu:apps:sakaioae:provisioned:courses:2011:fall:math:101:001:lec:students";
+
+	public static void main(String[] args){
+		int iterations = (args.length > 0)? Integer.parseInt(args[0]) : 100000;
+
+		IdTemplate compiled = IdTemplate.compile(TEMPLATE, PATTERN.matcher("").groupCount());
+		IdTemplate jexl = new IdTemplate.JexlTemplate(TEMPLATE);
+		if (!uncompiled(NAME).equals(compiled.apply(match(NAME)))
+				|| !uncompiled(NAME).equals(jexl.apply(match(NAME)))){
+			throw new IllegalStateException("The templates disagree");
+		}
+
+		// Warm up
+		for (int i = 0; i < iterations / 10; i++){
+			uncompiled(NAME);
+			compiled.apply(match(NAME));
+			jexl.apply(match(NAME));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++){
+			uncompiled(NAME);
+		}
+		report("new JexlEngine per call", start, iterations);
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++){
+			jexl.apply(match(NAME));
+		}
+		report("Jexl parsed once", start, iterations);
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++){
+			compiled.apply(match(NAME));
+		}
+		report("compiled concatenation", start, iterations);
+	}
+
+	private static Matcher match(String grouperName){
+		Matcher matcher = PATTERN.matcher(grouperName);
+		matcher.find();
+		return matcher;
+	}
+
+	/**
+	 * How TemplateGroupIdAdapter used to apply the template.
+	 */
+	private static String uncompiled(String grouperName){
+		Matcher matcher = match(grouperName);
+		List<String> g = new ArrayList<String>();
+		for (int i = 1; i <= matcher.groupCount(); i++){
+			g.add(matcher.group(i));
+		}
+		Expression e = new JexlEngine().createExpression(TEMPLATE);
+		JexlContext jc = new MapContext(ImmutableMap.of("g", (Object)g));
+		return (String)e.evaluate(jc);
+	}
+
+	private static void report(String name, long start, int iterations){
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-28s %8.2f us/call", name, elapsed / 1000.0 / iterations));
+	}
+}
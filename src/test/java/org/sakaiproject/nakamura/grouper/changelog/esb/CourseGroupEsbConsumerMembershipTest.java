@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.grouper.changelog.esb;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -26,6 +28,9 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.support.membermodification.MemberMatcher.method;
 import static org.powermock.api.support.membermodification.MemberModifier.suppress;
+
+import java.io.File;
+
 import junit.framework.TestCase;
 
 import org.junit.runner.RunWith;
@@ -36,9 +41,12 @@ import org.sakaiproject.nakamura.grouper.changelog.GroupIdManagerImpl;
 import org.sakaiproject.nakamura.grouper.changelog.api.GroupIdManager;
 import org.sakaiproject.nakamura.grouper.changelog.api.NakamuraManager;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.MembershipFlushException;
 import org.sakaiproject.nakamura.grouper.changelog.exceptions.UserModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.util.ParkingLot;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 import edu.internet2.middleware.grouper.Group;
 import edu.internet2.middleware.grouper.GroupFinder;
@@ -168,6 +176,246 @@ public class CourseGroupEsbConsumerMembershipTest extends TestCase {
 		verify(nakamuraManager).addMembership("some_course-student", subjectId);
 	}
 
+	public void testCoalescedMembershipsAreFlushed() throws GroupModificationException, UserModificationException{
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+
+		consumer.coalesceMemberships = true;
+		assertEquals(SEQUENCE_NUMBER, consumer.processChangeLogEntries(ImmutableList.of(addEntry), metadata));
+		verify(nakamuraManager).addMembership(groupId, subjectId);
+		verify(nakamuraManager).flush();
+	}
+
+	public void testFailedFlushRewindsSequence() throws GroupModificationException, UserModificationException{
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		doThrow(new GroupModificationException()).when(nakamuraManager).flush();
+
+		consumer.coalesceMemberships = true;
+		assertEquals(SEQUENCE_NUMBER - 1, consumer.processChangeLogEntries(ImmutableList.of(addEntry), metadata));
+	}
+
+	public void testParallelFailureDoesntBlockOtherWorlds() throws GroupModificationException, UserModificationException{
+		String otherGrouperName = "edu:apps:sakaiaoe:provisioned:courses:other:course:students";
+		String otherGroupId = "other_course-student";
+		ChangeLogEntry otherEntry = mock(ChangeLogEntry.class);
+		when(otherEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)).thenReturn(true);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(otherGrouperName);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId)).thenReturn(subjectId);
+		when(otherEntry.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+		when(groupIdManager.getWorldType(otherGrouperName)).thenReturn(GroupIdManager.COURSE);
+		when(groupIdManager.getGroupId(otherGrouperName)).thenReturn(otherGroupId);
+		when(groupIdManager.getWorldId(otherGroupId)).thenReturn("other_course");
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(groupIdManager.isIncludeExcludeSubGroup(otherGrouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(nakamuraManager.groupExists(otherGroupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		doThrow(new GroupModificationException()).when(nakamuraManager).addMembership(groupId, subjectId);
+
+		consumer.parallelWorkers = 2;
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, otherEntry), metadata);
+		assertEquals(SEQUENCE_NUMBER - 1, last);
+		verify(nakamuraManager).addMembership(otherGroupId, subjectId);
+	}
+
+	public void testParallelWorldsCreateAUserOnce() throws GroupModificationException, UserModificationException{
+		String otherGrouperName = "edu:apps:sakaiaoe:provisioned:courses:other:course:students";
+		String otherGroupId = "other_course-student";
+		ChangeLogEntry otherEntry = mock(ChangeLogEntry.class);
+		when(otherEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)).thenReturn(true);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(otherGrouperName);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId)).thenReturn(subjectId);
+		when(otherEntry.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+		when(groupIdManager.getWorldType(otherGrouperName)).thenReturn(GroupIdManager.COURSE);
+		when(groupIdManager.getGroupId(otherGrouperName)).thenReturn(otherGroupId);
+		when(groupIdManager.getWorldId(otherGroupId)).thenReturn("other_course");
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(groupIdManager.isIncludeExcludeSubGroup(otherGrouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(nakamuraManager.groupExists(otherGroupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+
+		consumer.createUsers = true;
+		consumer.parallelWorkers = 2;
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, otherEntry), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager, times(1)).createUser(subjectId);
+		verify(nakamuraManager).addMembership(groupId, subjectId);
+		verify(nakamuraManager).addMembership(otherGroupId, subjectId);
+		assertNull(consumer.createdUsers);
+	}
+
+	public void testAddThenDeleteIsCompacted() throws GroupModificationException, UserModificationException{
+		ChangeLogEntry laterDelete = mock(ChangeLogEntry.class);
+		when(laterDelete.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)).thenReturn(true);
+		when(laterDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName)).thenReturn(grouperName);
+		when(laterDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId)).thenReturn(subjectId);
+		when(laterDelete.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, laterDelete), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager, never()).addMembership(groupId, subjectId);
+		verify(nakamuraManager).deleteMembership(groupId, subjectId);
+	}
+
+	public void testSubGroupChangeDoesntSupersedeRoleGroupAdd() throws GroupModificationException, UserModificationException{
+		String systemOfRecordName = grouperName + AbstractGroupIdAdapter.DEFAULT_SYSTEM_OF_RECORD_SUFFIX;
+		ChangeLogEntry laterDelete = mock(ChangeLogEntry.class);
+		when(laterDelete.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)).thenReturn(true);
+		when(laterDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName)).thenReturn(systemOfRecordName);
+		when(laterDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId)).thenReturn(subjectId);
+		when(laterDelete.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+		when(groupIdManager.getWorldType(systemOfRecordName)).thenReturn(GroupIdManager.COURSE);
+		// The subgroup maps to the same OAE group as the role group
+		when(groupIdManager.getGroupId(systemOfRecordName)).thenReturn(groupId);
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(groupIdManager.isIncludeExcludeSubGroup(systemOfRecordName)).thenReturn(true);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, laterDelete), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager).addMembership(groupId, subjectId);
+		verify(nakamuraManager, never()).deleteMembership(groupId, subjectId);
+	}
+
+	public void testAddsToOneGroupAreSentTogether() throws GroupModificationException, UserModificationException{
+		String otherSubjectId = "unittest456";
+		Subject otherSubject = mock(Subject.class);
+		when(otherSubject.getTypeName()).thenReturn("person");
+		when(otherSubject.getName()).thenReturn(otherSubjectId);
+		ChangeLogEntry otherAdd = mock(ChangeLogEntry.class);
+		when(otherAdd.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)).thenReturn(true);
+		when(otherAdd.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(grouperName);
+		when(otherAdd.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId)).thenReturn(otherSubjectId);
+		when(otherAdd.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		when(SubjectFinder.findByIdOrIdentifier(otherSubjectId, false)).thenReturn(otherSubject);
+
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, otherAdd), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager).addMemberships(groupId, ImmutableList.of(subjectId, otherSubjectId));
+		verify(nakamuraManager, never()).addMembership(eq(groupId), any(String.class));
+	}
+
+	public void testDeletesFromOneGroupAreSentTogether() throws GroupModificationException{
+		String otherSubjectId = "unittest456";
+		Subject otherSubject = mock(Subject.class);
+		when(otherSubject.getTypeName()).thenReturn("person");
+		when(otherSubject.getName()).thenReturn(otherSubjectId);
+		ChangeLogEntry otherDelete = mock(ChangeLogEntry.class);
+		when(otherDelete.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)).thenReturn(true);
+		when(otherDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName)).thenReturn(grouperName);
+		when(otherDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId)).thenReturn(otherSubjectId);
+		when(otherDelete.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		when(SubjectFinder.findByIdOrIdentifier(otherSubjectId, false)).thenReturn(otherSubject);
+
+		long last = consumer.processChangeLogEntries(ImmutableList.of(deleteEntry, otherDelete), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager).deleteMemberships(groupId, ImmutableList.of(subjectId, otherSubjectId));
+		verify(nakamuraManager, never()).deleteMembership(eq(groupId), any(String.class));
+	}
+
+	public void testAddsAndDeletesForOneGroupAreSentAsADelta() throws GroupModificationException, UserModificationException{
+		String otherSubjectId = "unittest456";
+		Subject otherSubject = mock(Subject.class);
+		when(otherSubject.getTypeName()).thenReturn("person");
+		when(otherSubject.getName()).thenReturn(otherSubjectId);
+		ChangeLogEntry otherDelete = mock(ChangeLogEntry.class);
+		when(otherDelete.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)).thenReturn(true);
+		when(otherDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName)).thenReturn(grouperName);
+		when(otherDelete.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.subjectId)).thenReturn(otherSubjectId);
+		when(otherDelete.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		when(SubjectFinder.findByIdOrIdentifier(otherSubjectId, false)).thenReturn(otherSubject);
+
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, otherDelete), metadata);
+		assertEquals(SEQUENCE_NUMBER + 1, last);
+		verify(nakamuraManager).applyMembershipDelta(groupId, ImmutableList.of(subjectId), ImmutableList.of(otherSubjectId));
+	}
+
+	public void testFailedDeltaRewindsSequence() throws GroupModificationException, UserModificationException{
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		doThrow(new GroupModificationException()).when(nakamuraManager).addMembership(groupId, subjectId);
+
+		assertEquals(SEQUENCE_NUMBER - 1, consumer.processChangeLogEntries(ImmutableList.of(addEntry), metadata));
+	}
+
+	public void testFailedDeltaParksEntry() throws Exception{
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		doThrow(new GroupModificationException()).when(nakamuraManager).addMembership(groupId, subjectId);
+
+		File directory = File.createTempFile("parking", "");
+		directory.delete();
+		directory.mkdirs();
+		try {
+			consumer.parkingLot = ParkingLot.open(directory, "UnitTestConsumer");
+			consumer.parkingMaxFailures = 2;
+			// The first failure rewinds
+			assertEquals(SEQUENCE_NUMBER - 1, consumer.processChangeLogEntries(ImmutableList.of(addEntry), metadata));
+			// The second parks the entry and moves on
+			assertEquals(SEQUENCE_NUMBER, consumer.processChangeLogEntries(ImmutableList.of(addEntry), metadata));
+			assertEquals(1, consumer.parkingLot.size());
+			assertEquals(SEQUENCE_NUMBER, consumer.parkingLot.getParked().get(0).sequenceNumber);
+		}
+		finally {
+			ParkingLot.closeAll();
+			for (File f : directory.listFiles()){
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	public void testFailedFlushRewindsToTheEntryThatFailed() throws GroupModificationException, UserModificationException{
+		String otherGrouperName = "edu:apps:sakaiaoe:provisioned:courses:other:course:students";
+		String otherGroupId = "other_course-student";
+		ChangeLogEntry otherEntry = mock(ChangeLogEntry.class);
+		when(otherEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)).thenReturn(true);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(otherGrouperName);
+		when(otherEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.subjectId)).thenReturn(subjectId);
+		when(otherEntry.getSequenceNumber()).thenReturn(SEQUENCE_NUMBER + 1);
+		when(groupIdManager.getWorldType(otherGrouperName)).thenReturn(GroupIdManager.COURSE);
+		when(groupIdManager.getGroupId(otherGrouperName)).thenReturn(otherGroupId);
+		when(groupIdManager.getWorldId(otherGroupId)).thenReturn("other_course");
+
+		when(groupIdManager.isIncludeExcludeSubGroup(grouperName)).thenReturn(false);
+		when(groupIdManager.isIncludeExcludeSubGroup(otherGrouperName)).thenReturn(false);
+		when(nakamuraManager.groupExists(groupId)).thenReturn(true);
+		when(nakamuraManager.groupExists(otherGroupId)).thenReturn(true);
+		when(SubjectFinder.findByIdOrIdentifier(subjectId, false)).thenReturn(subject);
+		doThrow(new MembershipFlushException(ImmutableSet.of(otherGroupId), ImmutableSet.<String>of(), "500"))
+			.when(nakamuraManager).flush();
+
+		consumer.coalesceMemberships = true;
+		long last = consumer.processChangeLogEntries(ImmutableList.of(addEntry, otherEntry), metadata);
+		assertEquals(SEQUENCE_NUMBER, last);
+	}
+
 	public void testAddMembershipIncludeRemovesIncludeExcludes() throws GroupModificationException, UserModificationException{
 		String includesName = grouperName + AbstractGroupIdAdapter.DEFAULT_INCLUDES_SUFFIX;
 		String excludesName = grouperName + AbstractGroupIdAdapter.DEFAULT_EXCLUDES_SUFFIX;
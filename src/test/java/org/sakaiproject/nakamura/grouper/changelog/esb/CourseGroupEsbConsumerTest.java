@@ -18,7 +18,7 @@ package org.sakaiproject.nakamura.grouper.changelog.esb;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -29,11 +29,16 @@ import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.support.membermodification.MemberMatcher.method;
 import static org.powermock.api.support.membermodification.MemberModifier.suppress;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.sakaiproject.nakamura.grouper.changelog.AbstractGroupIdAdapter;
@@ -49,6 +54,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Field;
 import edu.internet2.middleware.grouper.GroupFinder;
 import edu.internet2.middleware.grouper.GrouperSession;
 import edu.internet2.middleware.grouper.Member;
@@ -59,6 +65,7 @@ import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogProcessorMetadata;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+import edu.internet2.middleware.grouper.internal.dao.QueryOptions;
 import edu.internet2.middleware.grouper.misc.SaveMode;
 import edu.internet2.middleware.grouper.util.GrouperUtil;
 import edu.internet2.middleware.subject.Subject;
@@ -373,14 +380,21 @@ public class CourseGroupEsbConsumerTest extends TestCase {
 		when(GroupFinder.findByName(session, course1StudentsInstitutionalGroupName, false)).thenReturn(group);
 		when(GroupFinder.findByName(session, course1LecturersInstitutionalGroupName, false)).thenReturn(instLecturerGroup);
 		when(stem.getChildGroups(Scope.ONE)).thenReturn(ImmutableSet.of(group, instLecturerGroup));
-		when(group.getMembers()).thenReturn(ImmutableSet.of(member1, member2));
-		when(instLecturerGroup.getMembers()).thenReturn(ImmutableSet.of(member1));
+		when(group.getImmediateMembers(any(Field.class), any(QueryOptions.class))).thenReturn(ImmutableSet.of(member1, member2));
+		when(instLecturerGroup.getImmediateMembers(any(Field.class), any(QueryOptions.class))).thenReturn(ImmutableSet.of(member1));
 
 		consumer.allowInstitutional = true;
 		consumer.groupTypeNameTrigger = AbstractWorldEsbConsumer.DEFAULT_GROUP_TYPE_NAME_TRIGGER;
 		consumer.processChangeLogEntries(ImmutableList.of(entry), metadata);
-		verify(nakamuraManager, times(2)).createUser("user1");
-		verify(nakamuraManager).createUser("user2");
+		// user1 is in both role groups but only created once
+		ArgumentCaptor<Collection> created = ArgumentCaptor.forClass(Collection.class);
+		verify(nakamuraManager, atLeastOnce()).createUsers(created.capture());
+		List<String> createdIds = new ArrayList<String>();
+		for (Collection<String> ids : created.getAllValues()){
+			createdIds.addAll(ids);
+		}
+		Collections.sort(createdIds);
+		assertEquals(ImmutableList.of("user1", "user2"), createdIds);
 		verify(nakamuraManager).createWorld(course1StudentsApplicationGroupName, courseGroupId, courseGroupId, "parent description",
 				new String[0], WorldConstants.MEMBERS_ONLY, WorldConstants.NO, "worldTemplate", "",
 				ImmutableMap.of("admin", "ta"));
@@ -21,8 +21,11 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.support.membermodification.MemberMatcher.method;
 import static org.powermock.api.support.membermodification.MemberModifier.suppress;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
 
@@ -84,6 +87,120 @@ public class RestrictedCourseEsbConsumerTest extends TestCase {
 		assertEquals("inst:sis:courses:.*",toSort.get(2));
 	}
 
+	public void testEnabledStemsAreASortedSnapshot(){
+		List<Pattern> patterns = consumer.getEnabledStems();
+		assertEquals(ENABLED_STEMS.length, patterns.size());
+		assertEquals("edu:apps:sakai:courses:FA11:SOMETHING:ELSE.*", patterns.get(0).pattern());
+		try {
+			patterns.clear();
+			fail("The restrictions should not be modifiable");
+		}
+		catch (UnsupportedOperationException expected){
+			// good
+		}
+		consumer.setEnabledStems(Arrays.asList("inst:sis:courses:.*"));
+		// The old snapshot doesn't change
+		assertEquals(ENABLED_STEMS.length, patterns.size());
+		assertEquals(1, consumer.getEnabledStems().size());
+	}
+
+	/**
+	 * Answers the restriction queries without a database.
+	 */
+	private static class StubbedRestrictionsConsumer extends RestrictedWorldEsbConsumer {
+		List<String> table = Arrays.asList("inst:sis:courses:.*");
+		String signature = "1|";
+		boolean databaseDown = false;
+		int signatureQueries = 0;
+		int tableQueries = 0;
+
+		@Override
+		protected String querySignature() throws SQLException {
+			signatureQueries++;
+			if (databaseDown){
+				throw new SQLException("down");
+			}
+			return signature;
+		}
+
+		@Override
+		protected List<String> queryRestrictionTable() throws SQLException {
+			tableQueries++;
+			if (databaseDown){
+				throw new SQLException("down");
+			}
+			return table;
+		}
+	}
+
+	public void testRefreshWaitsForTheInterval(){
+		StubbedRestrictionsConsumer restricted = new StubbedRestrictionsConsumer();
+		restricted.restrictionRefreshInterval = 60000;
+		restricted.refreshRestrictions();
+		restricted.refreshRestrictions();
+		assertEquals(1, restricted.tableQueries);
+
+		restricted.restrictionRefreshInterval = 0;
+		restricted.refreshRestrictions();
+		assertEquals(2, restricted.tableQueries);
+	}
+
+	public void testUnchangedSignatureSkipsTheReload(){
+		StubbedRestrictionsConsumer restricted = new StubbedRestrictionsConsumer();
+		restricted.restrictionChangeQuery = "select max(updated) from course_restrictions";
+		restricted.restrictionRefreshInterval = 0;
+		restricted.refreshRestrictions();
+		restricted.refreshRestrictions();
+		assertEquals(2, restricted.signatureQueries);
+		assertEquals(1, restricted.tableQueries);
+
+		restricted.signature = "2|";
+		restricted.table = Arrays.asList("inst:sis:courses:.*", "edu:apps:sakai:courses:.*");
+		restricted.refreshRestrictions();
+		assertEquals(2, restricted.tableQueries);
+		assertEquals(2, restricted.getEnabledStems().size());
+	}
+
+	public void testSnapshotSurvivesDatabaseErrors(){
+		StubbedRestrictionsConsumer restricted = new StubbedRestrictionsConsumer();
+		restricted.restrictionRefreshInterval = 0;
+		restricted.refreshRestrictions();
+		List<Pattern> loaded = restricted.getEnabledStems();
+
+		restricted.databaseDown = true;
+		restricted.refreshRestrictions();
+		assertSame(loaded, restricted.getEnabledStems());
+	}
+
+	public void testFirstLoadFailureIsFatal(){
+		StubbedRestrictionsConsumer restricted = new StubbedRestrictionsConsumer();
+		restricted.databaseDown = true;
+		try {
+			restricted.refreshRestrictions();
+			fail("We can't tell what to ignore without the restrictions");
+		}
+		catch (RuntimeException expected){
+			// good
+		}
+	}
+
+	public void testEmptyTableKeepsRestrictionsAndSignature(){
+		StubbedRestrictionsConsumer restricted = new StubbedRestrictionsConsumer();
+		restricted.restrictionChangeQuery = "select max(updated) from course_restrictions";
+		restricted.restrictionRefreshInterval = 0;
+		restricted.refreshRestrictions();
+
+		restricted.signature = "2|";
+		restricted.table = new ArrayList<String>();
+		restricted.refreshRestrictions();
+		assertEquals(2, restricted.tableQueries);
+		assertEquals(1, restricted.getEnabledStems().size());
+
+		// The empty table isn't reloaded until it changes again
+		restricted.refreshRestrictions();
+		assertEquals(2, restricted.tableQueries);
+	}
+
 	private void prepEntry(String grouperName){
 		when(entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)).thenReturn(true);
 		when(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name)).thenReturn(grouperName).thenReturn(grouperName);
@@ -0,0 +1,58 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+public class AdaptiveChunkSizerTestCase extends TestCase {
+
+	private AdaptiveChunkSizer sizer;
+
+	@Override
+	public void setUp(){
+		sizer = new AdaptiveChunkSizer(10, 40, 20, 1000);
+	}
+
+	public void testGrowsWhenFastAndFull(){
+		sizer.record(20, 100, true);
+		assertEquals(25, sizer.getChunkSize());
+	}
+
+	public void testDoesntGrowOnPartialChunk(){
+		sizer.record(3, 100, true);
+		assertEquals(20, sizer.getChunkSize());
+	}
+
+	public void testHalvesOnFailureOrSlowChunk(){
+		sizer.record(20, 100, false);
+		assertEquals(10, sizer.getChunkSize());
+		sizer = new AdaptiveChunkSizer(10, 40, 40, 1000);
+		sizer.record(40, 2000, true);
+		assertEquals(20, sizer.getChunkSize());
+	}
+
+	public void testStaysWithinBounds(){
+		for (int i = 0; i < 20; i++){
+			sizer.record(sizer.getChunkSize(), 1, true);
+		}
+		assertEquals(40, sizer.getChunkSize());
+		for (int i = 0; i < 20; i++){
+			sizer.record(sizer.getChunkSize(), 1, false);
+		}
+		assertEquals(10, sizer.getChunkSize());
+	}
+}
@@ -0,0 +1,133 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AsyncDispatcherTestCase extends TestCase {
+
+	private AsyncDispatcher dispatcher;
+
+	@Override
+	public void setUp(){
+		dispatcher = new AsyncDispatcher("test", 4);
+	}
+
+	@Override
+	public void tearDown(){
+		dispatcher.shutdown();
+	}
+
+	public void testSameKeyRunsInOrder() throws Exception {
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i < 20; i++){
+			final int n = i;
+			dispatcher.submit("world1", "op" + n, new Callable<Void>() {
+				public Void call() throws Exception {
+					Thread.sleep(1);
+					order.add(n);
+					return null;
+				}
+			});
+		}
+		assertTrue(dispatcher.await().isEmpty());
+		assertEquals(20, order.size());
+		for (int i = 0; i < 20; i++){
+			assertEquals(Integer.valueOf(i), order.get(i));
+		}
+	}
+
+	public void testFailureSkipsTheRestOfTheKey() throws Exception {
+		final AtomicInteger ran = new AtomicInteger();
+		dispatcher.submit("world1", "create", new Callable<Void>() {
+			public Void call() throws Exception {
+				throw new Exception("create failed");
+			}
+		});
+		dispatcher.submit("world1", "add", new Callable<Void>() {
+			public Void call() throws Exception {
+				ran.incrementAndGet();
+				return null;
+			}
+		});
+		dispatcher.submit("world2", "add", new Callable<Void>() {
+			public Void call() throws Exception {
+				ran.incrementAndGet();
+				return null;
+			}
+		});
+		Set<String> failedKeys = new HashSet<String>();
+		assertEquals(2, dispatcher.await(failedKeys).size());
+		assertEquals(1, ran.get());
+		assertEquals(Collections.singleton("world1"), failedKeys);
+
+		// The failure is forgotten after the await
+		dispatcher.submit("world1", "add", new Callable<Void>() {
+			public Void call() throws Exception {
+				ran.incrementAndGet();
+				return null;
+			}
+		});
+		assertTrue(dispatcher.await().isEmpty());
+		assertEquals(2, ran.get());
+	}
+
+	public void testWindowLimitsInFlight() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		Thread submitter = new Thread(){
+			public void run(){
+				try {
+					for (int i = 0; i < 8; i++){
+						dispatcher.submit("world" + i, "op" + i, new Callable<Void>() {
+							public Void call() throws Exception {
+								int now = running.incrementAndGet();
+								synchronized (maxRunning){
+									maxRunning.set(Math.max(maxRunning.get(), now));
+								}
+								release.await();
+								running.decrementAndGet();
+								return null;
+							}
+						});
+					}
+				}
+				catch (InterruptedException e){
+					// done
+				}
+			}
+		};
+		submitter.start();
+		Thread.sleep(200);
+		// The submitter is stuck waiting for room in the window
+		assertTrue(submitter.isAlive());
+		release.countDown();
+		submitter.join(5000);
+		assertTrue(dispatcher.await().isEmpty());
+		assertEquals(4, maxRunning.get());
+	}
+}
@@ -0,0 +1,76 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTestCase extends TestCase {
+
+	private long now;
+
+	private CircuitBreaker breaker;
+
+	@Override
+	public void setUp(){
+		now = 1000;
+		breaker = new CircuitBreaker("test"){
+			@Override
+			protected long now(){
+				return now;
+			}
+		};
+		breaker.setFailureThreshold(2);
+		breaker.setOpenDuration(100);
+	}
+
+	public void testOpensAfterThreshold(){
+		breaker.recordFailure();
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertEquals(1, breaker.getRejected());
+	}
+
+	public void testSuccessResetsFailures(){
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testHalfOpenTrial(){
+		breaker.recordFailure();
+		breaker.recordFailure();
+		now += 100;
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// Only one trial at a time
+		assertFalse(breaker.allowRequest());
+
+		// The trial failed
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpens());
+
+		now += 100;
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+}
@@ -0,0 +1,88 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+public class ExistenceCacheTestCase extends TestCase {
+
+	private long now;
+
+	private ExistenceCache cache;
+
+	@Override
+	public void setUp(){
+		now = 1000;
+		cache = new ExistenceCache("test", 2, 100, 10){
+			@Override
+			protected long now(){
+				return now;
+			}
+		};
+	}
+
+	public void testMiss(){
+		assertNull(cache.get("group1"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+
+	public void testPositiveAndNegative(){
+		cache.put("group1", true);
+		cache.put("group2", false);
+		assertEquals(Boolean.TRUE, cache.get("group1"));
+		assertEquals(Boolean.FALSE, cache.get("group2"));
+		assertEquals(2, cache.getHits());
+	}
+
+	public void testSeparateTtls(){
+		cache.put("group1", true);
+		cache.put("group2", false);
+		now += 50;
+		assertEquals(Boolean.TRUE, cache.get("group1"));
+		assertNull(cache.get("group2"));
+		now += 50;
+		assertNull(cache.get("group1"));
+	}
+
+	public void testLeastRecentlyUsedIsEvicted(){
+		cache.put("group1", true);
+		cache.put("group2", true);
+		cache.get("group1");
+		cache.put("group3", true);
+		assertTrue(cache.contains("group1"));
+		assertFalse(cache.contains("group2"));
+		assertTrue(cache.contains("group3"));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	public void testContainsDoesntChangeTheOrder(){
+		cache.put("group1", true);
+		cache.put("group2", true);
+		assertTrue(cache.contains("group1"));
+		cache.put("group3", true);
+		assertFalse(cache.contains("group1"));
+		assertTrue(cache.contains("group2"));
+		assertEquals(0, cache.getHits());
+	}
+
+	public void testInvalidate(){
+		cache.put("group1", true);
+		cache.invalidate("group1");
+		assertNull(cache.get("group1"));
+	}
+}
@@ -0,0 +1,89 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+import junit.framework.TestCase;
+
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GroupFinder;
+import edu.internet2.middleware.grouper.GrouperSession;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = { GroupFinder.class, GrouperSession.class })
+public class GroupLookupCacheTestCase extends TestCase {
+
+	private static final String FOUND = "inst:sis:courses:some:course:students";
+	private static final String MISSING = "inst:sis:courses:some:course:students_includes";
+
+	private GrouperSession session;
+	private Group group;
+	private GroupLookupCache cache;
+
+	public void setUp(){
+		mockStatic(GroupFinder.class);
+		session = mock(GrouperSession.class);
+		group = mock(Group.class);
+		when(GroupFinder.findByName(session, FOUND, false)).thenReturn(group);
+		when(GroupFinder.findByName(session, MISSING, false)).thenReturn(null);
+		cache = new GroupLookupCache();
+	}
+
+	public void testFoundAndMissingAreCached(){
+		assertSame(group, cache.findByName(session, FOUND));
+		assertSame(group, cache.findByName(session, FOUND));
+		assertNull(cache.findByName(session, MISSING));
+		assertNull(cache.findByName(session, MISSING));
+		verifyStatic(times(1));
+		GroupFinder.findByName(session, FOUND, false);
+		verifyStatic(times(1));
+		GroupFinder.findByName(session, MISSING, false);
+		assertEquals(2, cache.resetBatchStats());
+		assertEquals(0, cache.resetBatchStats());
+	}
+
+	public void testInvalidate(){
+		assertNull(cache.findByName(session, MISSING));
+		cache.invalidate(MISSING);
+		assertNull(cache.findByName(session, MISSING));
+		verifyStatic(times(2));
+		GroupFinder.findByName(session, MISSING, false);
+	}
+
+	public void testPut(){
+		assertNull(cache.findByName(session, MISSING));
+		Group created = mock(Group.class);
+		cache.put(MISSING, created);
+		assertSame(created, cache.findByName(session, MISSING));
+	}
+
+	public void testZeroTtlTurnsItOff(){
+		cache = new GroupLookupCache(100, 0);
+		cache.findByName(session, FOUND);
+		cache.findByName(session, FOUND);
+		verifyStatic(times(2));
+		GroupFinder.findByName(session, FOUND, false);
+	}
+}
@@ -0,0 +1,93 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+public class HttpConnectionPoolTestCase extends TestCase {
+
+	private URL url;
+
+	@Override
+	public void setUp() throws Exception {
+		url = new URL("http://localhost:8080/");
+		HttpConnectionPool.shutdownAll();
+	}
+
+	@Override
+	public void tearDown(){
+		HttpConnectionPool.shutdownAll();
+	}
+
+	public void testSameServerAndCredentialsShareAClient() throws Exception {
+		HttpClient first = HttpConnectionPool.getPool(url, "admin", "secret").getClient();
+		HttpClient second = HttpConnectionPool.getPool(new URL("http://localhost:8080/system/"), "admin", "secret").getClient();
+		assertSame(first, second);
+		assertSame(first.getHttpConnectionManager(), second.getHttpConnectionManager());
+		assertTrue(first.getHttpConnectionManager() instanceof MultiThreadedHttpConnectionManager);
+		assertEquals(2, HttpConnectionPool.getPool(url, "admin", "secret").getLeaseCount());
+	}
+
+	public void testDefaultPortIsTheSameServer() throws Exception {
+		HttpConnectionPool explicit = HttpConnectionPool.getPool(new URL("http://localhost:80/"), "admin", "secret");
+		HttpConnectionPool implicit = HttpConnectionPool.getPool(new URL("http://localhost/"), "admin", "secret");
+		assertSame(explicit, implicit);
+	}
+
+	public void testDifferentServersDontShare() throws Exception {
+		HttpClient first = HttpConnectionPool.getPool(url, "admin", "secret").getClient();
+		HttpClient other = HttpConnectionPool.getPool(new URL("http://localhost:8081/"), "admin", "secret").getClient();
+		HttpClient secure = HttpConnectionPool.getPool(new URL("https://localhost:8080/"), "admin", "secret").getClient();
+		assertNotSame(first, other);
+		assertNotSame(first.getHttpConnectionManager(), other.getHttpConnectionManager());
+		assertNotSame(first, secure);
+		assertNotSame(first.getHttpConnectionManager(), secure.getHttpConnectionManager());
+	}
+
+	public void testDifferentCredentialsDontShare() throws Exception {
+		HttpClient first = HttpConnectionPool.getPool(url, "admin", "secret").getClient();
+		HttpClient otherUser = HttpConnectionPool.getPool(url, "grouper", "secret").getClient();
+		HttpClient otherPassword = HttpConnectionPool.getPool(url, "admin", "changed").getClient();
+		assertNotSame(first, otherUser);
+		assertNotSame(first.getHttpConnectionManager(), otherUser.getHttpConnectionManager());
+		assertNotSame(first, otherPassword);
+		assertNotSame(first.getHttpConnectionManager(), otherPassword.getHttpConnectionManager());
+	}
+
+	public void testConfigureChangesTheSharedPool() throws Exception {
+		HttpConnectionPool.configure(url, "admin", "secret", 3, 1000, 2000, 4000);
+		HttpConnectionPool pool = HttpConnectionPool.getPool(url, "admin", "secret");
+		assertEquals(3, pool.getMaxConnectionsPerHost());
+		assertEquals(1000, pool.getConnectTimeout());
+		assertEquals(2000, pool.getReadTimeout());
+		assertEquals(4000, pool.getIdleTimeout());
+		MultiThreadedHttpConnectionManager manager = (MultiThreadedHttpConnectionManager)pool.getClient().getHttpConnectionManager();
+		assertEquals(3, manager.getParams().getDefaultMaxConnectionsPerHost());
+		assertEquals(2000, manager.getParams().getSoTimeout());
+	}
+
+	public void testShutdownForgetsThePools() throws Exception {
+		HttpConnectionPool first = HttpConnectionPool.getPool(url, "admin", "secret");
+		HttpConnectionPool.shutdownAll();
+		assertNotSame(first, HttpConnectionPool.getPool(url, "admin", "secret"));
+	}
+}
@@ -0,0 +1,94 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
+
+public class ImmediateMemberPagesTestCase extends TestCase {
+
+	private List<Member> members;
+
+	@Override
+	public void setUp(){
+		members = new ArrayList<Member>();
+	}
+
+	private void addMember(String subjectId, SubjectTypeEnum type){
+		Member member = mock(Member.class);
+		when(member.getSubjectId()).thenReturn(subjectId);
+		when(member.getSubjectType()).thenReturn(type);
+		members.add(member);
+	}
+
+	private ImmediateMemberPages pages(int pageSize){
+		return new ImmediateMemberPages(mock(Group.class), pageSize){
+			@Override
+			protected Set<Member> fetchPage(int number){
+				int start = Math.min((number - 1) * 2, members.size());
+				int end = Math.min(start + 2, members.size());
+				return new LinkedHashSet<Member>(members.subList(start, end));
+			}
+		};
+	}
+
+	public void testPages(){
+		addMember("user1", SubjectTypeEnum.PERSON);
+		addMember("user2", SubjectTypeEnum.PERSON);
+		addMember("group1", SubjectTypeEnum.GROUP);
+		addMember("group2", SubjectTypeEnum.GROUP);
+		addMember("user3", SubjectTypeEnum.PERSON);
+
+		ImmediateMemberPages pages = pages(2);
+		assertTrue(pages.hasNext());
+		assertEquals(ImmutableList.of("user1", "user2"), pages.next());
+		// The page of groups is skipped
+		assertTrue(pages.hasNext());
+		assertEquals(ImmutableList.of("user3"), pages.next());
+		assertFalse(pages.hasNext());
+		assertEquals(3, pages.getPages());
+		assertEquals(3, pages.getMembers());
+	}
+
+	public void testFullLastPage(){
+		addMember("user1", SubjectTypeEnum.PERSON);
+		addMember("user2", SubjectTypeEnum.PERSON);
+
+		ImmediateMemberPages pages = pages(2);
+		assertEquals(ImmutableList.of("user1", "user2"), pages.next());
+		// One more query to find out there's nothing left
+		assertFalse(pages.hasNext());
+		assertEquals(2, pages.getPages());
+	}
+
+	public void testEmpty(){
+		assertFalse(pages(2).hasNext());
+	}
+}
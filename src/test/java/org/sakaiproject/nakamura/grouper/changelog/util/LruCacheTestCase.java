@@ -0,0 +1,74 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+public class LruCacheTestCase extends TestCase {
+
+	private LruCache<String, String> cache;
+
+	@Override
+	public void setUp(){
+		cache = new LruCache<String, String>(2);
+	}
+
+	public void testLeastRecentlyUsedIsEvicted(){
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals("1", cache.get("a"));
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	public void testContainsDoesntChangeTheOrder(){
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertTrue(cache.contains("a", 0));
+		cache.put("c", "3");
+		assertFalse(cache.contains("a", 0));
+		assertTrue(cache.contains("b", 0));
+	}
+
+	public void testExpiredEntriesAreMisses(){
+		cache.put("a", "1", 100);
+		assertTrue(cache.contains("a", 99));
+		assertEquals("1", cache.get("a", 99));
+		assertFalse(cache.contains("a", 100));
+		assertNull(cache.get("a", 100));
+		assertEquals(0, cache.size());
+	}
+
+	public void testNullValuesAreCached(){
+		cache.put("a", null, 100);
+		assertTrue(cache.contains("a", 0));
+		assertNull(cache.get("a", 0));
+		assertEquals(1, cache.size());
+	}
+
+	public void testReplacingMovesToTheEnd(){
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("a", "3");
+		cache.put("c", "4");
+		assertEquals("3", cache.get("a"));
+		assertFalse(cache.contains("b", 0));
+	}
+}
@@ -0,0 +1,152 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.sakaiproject.nakamura.grouper.changelog.exceptions.GroupModificationException;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils.LatencyListener;
+import org.sakaiproject.nakamura.grouper.changelog.util.NakamuraHttpUtils.ResponseMode;
+
+public class NakamuraHttpUtilsTestCase extends TestCase {
+
+	private static final long BACKOFF = 300;
+
+	private HttpClient client;
+	private RetryPolicy originalPolicy;
+	private final List<Long> attempts = new ArrayList<Long>();
+	private final LatencyListener listener = new LatencyListener() {
+		public void attempted(long millis){
+			attempts.add(millis);
+		}
+	};
+
+	@Override
+	public void setUp(){
+		client = mock(HttpClient.class);
+		originalPolicy = NakamuraHttpUtils.getRetryPolicy();
+		NakamuraHttpUtils.setRetryPolicy(new RetryPolicy(3, BACKOFF, BACKOFF));
+	}
+
+	@Override
+	public void tearDown(){
+		NakamuraHttpUtils.setRetryPolicy(originalPolicy);
+	}
+
+	public void testIdempotentRequestIsRetried() throws Exception {
+		GetMethod method = new GetMethod("http://retry.test:8080/system/me.json");
+		when(client.executeMethod(method)).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_OK);
+
+		assertNull(NakamuraHttpUtils.http(client, method, ResponseMode.STATUS_ONLY));
+		verify(client, times(2)).executeMethod(method);
+	}
+
+	public void testMarkedPostIsRetriedAfterAnIOError() throws Exception {
+		PostMethod method = new PostMethod("http://retry-post.test:8080/system/batch");
+		NakamuraHttpUtils.markIdempotent(method);
+		when(client.executeMethod(method)).thenThrow(new IOException("reset")).thenReturn(HttpStatus.SC_OK);
+
+		NakamuraHttpUtils.http(client, method, ResponseMode.STATUS_ONLY);
+		verify(client, times(2)).executeMethod(method);
+	}
+
+	public void testNonIdempotentRequestIsNotRetried() throws Exception {
+		PostMethod method = new PostMethod("http://no-retry.test:8080/system/userManager/group.create.json");
+		when(client.executeMethod(method)).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_OK);
+
+		try {
+			NakamuraHttpUtils.http(client, method, ResponseMode.STATUS_ONLY);
+			fail("A request that isn't safe to repeat shouldn't be retried");
+		}
+		catch (GroupModificationException gme){
+			// expected
+		}
+		verify(client, times(1)).executeMethod(method);
+	}
+
+	public void testOpenBreakerFailsFast() throws Exception {
+		CircuitBreaker breaker = NakamuraHttpUtils.getCircuitBreaker(new URL("http://open.test:8080"));
+		breaker.setFailureThreshold(2);
+		GetMethod method = new GetMethod("http://open.test:8080/system/me.json");
+		when(client.executeMethod(method)).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE);
+		NakamuraHttpUtils.setRetryPolicy(new RetryPolicy(1, 1, 1));
+
+		// Two 503s in a row open the breaker
+		try {
+			NakamuraHttpUtils.http(client, method, ResponseMode.STATUS_ONLY);
+			fail("OAE is down");
+		}
+		catch (GroupModificationException gme){
+			// expected
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			NakamuraHttpUtils.http(client, method, ResponseMode.STATUS_ONLY);
+			fail("The breaker is open");
+		}
+		catch (GroupModificationException gme){
+			assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, gme.code);
+		}
+		verify(client, times(2)).executeMethod(method);
+		assertEquals(1, breaker.getRejected());
+	}
+
+	public void testLatencyIsRecordedPerAttempt() throws Exception {
+		when(client.executeMethod(any(HttpMethod.class))).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_OK);
+
+		NakamuraHttpUtils.http(client, new GetMethod("http://latency.test:8080/system/me.json"), ResponseMode.STATUS_ONLY, listener);
+		assertEquals(2, attempts.size());
+		// The backoff between the attempts isn't part of either
+		for (Long millis : attempts){
+			assertTrue(millis < BACKOFF / 2);
+		}
+	}
+
+	public void testRejectedRequestIsNotAnAttempt() throws Exception {
+		CircuitBreaker breaker = NakamuraHttpUtils.getCircuitBreaker(new URL("http://rejected.test:8080"));
+		breaker.setFailureThreshold(1);
+		breaker.recordFailure();
+
+		try {
+			NakamuraHttpUtils.http(client, new GetMethod("http://rejected.test:8080/system/me.json"), ResponseMode.STATUS_ONLY, listener);
+			fail("The breaker is open");
+		}
+		catch (GroupModificationException gme){
+			assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, gme.code);
+		}
+		verify(client, never()).executeMethod(any(HttpMethod.class));
+		assertTrue(attempts.isEmpty());
+	}
+}
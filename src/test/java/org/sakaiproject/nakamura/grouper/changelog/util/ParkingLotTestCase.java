@@ -0,0 +1,103 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ParkingLotTestCase extends TestCase {
+
+	private File directory;
+
+	@Override
+	public void setUp() throws IOException{
+		directory = File.createTempFile("parking", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	public void tearDown(){
+		ParkingLot.closeAll();
+		for (File f : directory.listFiles()){
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	public void testFailuresAreCounted() throws IOException{
+		ParkingLot lot = ParkingLot.open(directory, "courseGroups");
+		assertEquals(1, lot.recordFailure(5));
+		assertEquals(2, lot.recordFailure(5));
+		assertEquals(1, lot.recordFailure(6));
+		ParkingLot.closeAll();
+
+		lot = ParkingLot.open(directory, "courseGroups");
+		assertEquals(3, lot.recordFailure(5));
+		lot.recordSuccess(5);
+		assertEquals(1, lot.recordFailure(5));
+	}
+
+	public void testParkedSurvivesReopen() throws IOException{
+		ParkingLot lot = ParkingLot.open(directory, "courseGroups");
+		lot.recordFailure(12);
+		lot.park(new ChangeLogEvent(12, ChangeLogEvent.Type.MEMBERSHIP_ADD, "inst:sis:course:c1:students", "user1", null),
+				new IllegalStateException("bad subject"));
+		lot.park(new ChangeLogEvent(7, ChangeLogEvent.Type.GROUP_ADD, "inst:sis:course:c0:students", null, null),
+				new IllegalStateException("bad world"));
+		ParkingLot.closeAll();
+
+		lot = ParkingLot.open(directory, "courseGroups");
+		List<ChangeLogEvent> parked = lot.getParked();
+		assertEquals(2, parked.size());
+		// Oldest first
+		assertEquals(7, parked.get(0).sequenceNumber);
+		ChangeLogEvent event = parked.get(1);
+		assertEquals(12, event.sequenceNumber);
+		assertEquals(ChangeLogEvent.Type.MEMBERSHIP_ADD, event.type);
+		assertEquals("inst:sis:course:c1:students", event.grouperName);
+		assertEquals("user1", event.subjectId);
+		assertNull(event.groupTypeName);
+		assertTrue(lot.getError(12).contains("bad subject"));
+		// Parking resets the failure count
+		assertEquals(1, lot.recordFailure(12));
+
+		lot.remove(7);
+		ParkingLot.closeAll();
+		lot = ParkingLot.open(directory, "courseGroups");
+		assertEquals(1, lot.size());
+		assertNull(lot.getError(7));
+	}
+
+	public void testDamagedLineIsSkipped() throws IOException{
+		ParkingLot lot = ParkingLot.open(directory, "courseGroups");
+		lot.park(new ChangeLogEvent(3, ChangeLogEvent.Type.GROUP_DELETE, "inst:sis:course:c1:students", null, null),
+				new IllegalStateException("oops"));
+		ParkingLot.closeAll();
+
+		FileWriter writer = new FileWriter(lot.getFile(), true);
+		writer.write("{\"op\":\"park\",\"seq\":4,\"ev");
+		writer.close();
+
+		lot = ParkingLot.open(directory, "courseGroups");
+		assertEquals(1, lot.size());
+	}
+}
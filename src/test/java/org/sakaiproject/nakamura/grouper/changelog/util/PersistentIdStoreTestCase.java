@@ -0,0 +1,90 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+public class PersistentIdStoreTestCase extends TestCase {
+
+	private File directory;
+	private URL url;
+
+	@Override
+	public void setUp() throws IOException{
+		directory = File.createTempFile("idstore", "");
+		directory.delete();
+		directory.mkdirs();
+		url = new URL("http://localhost:8080");
+	}
+
+	@Override
+	public void tearDown(){
+		PersistentIdStore.closeAll();
+		for (File f : directory.listFiles()){
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	public void testSurvivesReopen() throws IOException{
+		PersistentIdStore store = PersistentIdStore.open(directory, url, "1");
+		store.addUser("user1");
+		store.addGroup("course1");
+		store.addGroup("course2");
+		store.removeGroup("course2");
+		PersistentIdStore.closeAll();
+
+		store = PersistentIdStore.open(directory, url, "1");
+		assertTrue(store.containsUser("user1"));
+		assertTrue(store.containsGroup("course1"));
+		assertFalse(store.containsGroup("course2"));
+		assertFalse(store.containsGroup("user1"));
+	}
+
+	public void testNewVersionStartsOver() throws IOException{
+		PersistentIdStore store = PersistentIdStore.open(directory, url, "1");
+		store.addUser("user1");
+		PersistentIdStore.closeAll();
+
+		store = PersistentIdStore.open(directory, url, "2");
+		assertFalse(store.containsUser("user1"));
+	}
+
+	public void testPartialRecordIsIgnored() throws IOException{
+		PersistentIdStore store = PersistentIdStore.open(directory, url, "1");
+		store.addUser("user1");
+		PersistentIdStore.closeAll();
+
+		RandomAccessFile raf = new RandomAccessFile(store.getFile(), "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[] { 1, 0, 10, 'u' });
+		raf.close();
+
+		store = PersistentIdStore.open(directory, url, "1");
+		assertTrue(store.containsUser("user1"));
+		store.addUser("user2");
+		PersistentIdStore.closeAll();
+
+		store = PersistentIdStore.open(directory, url, "1");
+		assertTrue(store.containsUser("user2"));
+	}
+}
@@ -0,0 +1,184 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ProvisioningPipelineTestCase extends TestCase {
+
+	private Set<String> ensured;
+	private List<String> written;
+
+	@Override
+	public void setUp(){
+		ensured = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		written = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	private Iterator<List<String>> pages(String prefix, int pageCount, int pageSize){
+		List<List<String>> pages = new ArrayList<List<String>>();
+		for (int p = 0; p < pageCount; p++){
+			List<String> page = new ArrayList<String>();
+			for (int m = 0; m < pageSize; m++){
+				page.add(prefix + "-" + p + "-" + m);
+			}
+			pages.add(page);
+		}
+		return pages.iterator();
+	}
+
+	private class RecordingPipeline extends ProvisioningPipeline {
+		RecordingPipeline(int queueSize){
+			super("test", 2, 3, 2, queueSize);
+		}
+
+		@Override
+		protected void ensureUsers(List<String> userIds) throws Exception {
+			ensured.addAll(userIds);
+		}
+
+		@Override
+		protected void addMemberships(String groupId, List<String> memberIds) throws Exception {
+			for (String memberId : memberIds){
+				// A user is always created before their membership
+				assertTrue(ensured.contains(memberId));
+				written.add(groupId + "/" + memberId);
+			}
+		}
+	}
+
+	public void testSyncsEveryMember() throws Exception {
+		Map<String, Iterator<List<String>>> groups = new LinkedHashMap<String, Iterator<List<String>>>();
+		groups.put("course1-student", pages("s", 10, 7));
+		groups.put("course1-ta", pages("t", 3, 5));
+		groups.put("course1-lecturer", pages("l", 1, 1));
+		groups.put("course1-empty", pages("e", 0, 0));
+
+		ProvisioningPipeline pipeline = new RecordingPipeline(1);
+		pipeline.start(groups);
+		pipeline.await();
+
+		assertEquals(70 + 15 + 1, written.size());
+		assertEquals(70 + 15 + 1, pipeline.getMemberships());
+		assertEquals(14, pipeline.getPages());
+		assertTrue(written.contains("course1-student/s-9-6"));
+		assertTrue(written.contains("course1-lecturer/l-0-0"));
+	}
+
+	public void testUsersInSeveralGroupsAreEnsuredOnce() throws Exception {
+		final ConcurrentHashMap<String, AtomicInteger> ensures = new ConcurrentHashMap<String, AtomicInteger>();
+		ProvisioningPipeline pipeline = new RecordingPipeline(1) {
+			@Override
+			protected void ensureUsers(List<String> userIds) throws Exception {
+				for (String userId : userIds){
+					AtomicInteger count = new AtomicInteger();
+					AtomicInteger existing = ensures.putIfAbsent(userId, count);
+					(existing == null? count : existing).incrementAndGet();
+				}
+				// Give the other workers a chance to reach the same users
+				Thread.sleep(5);
+				super.ensureUsers(userIds);
+			}
+		};
+		// A student who is also a TA
+		Map<String, Iterator<List<String>>> groups = new LinkedHashMap<String, Iterator<List<String>>>();
+		groups.put("course1-student", pages("u", 5, 4));
+		groups.put("course1-ta", pages("u", 5, 4));
+		pipeline.start(groups);
+		pipeline.await();
+
+		assertEquals(20, ensures.size());
+		for (AtomicInteger count : ensures.values()){
+			assertEquals(1, count.get());
+		}
+		assertEquals(40, written.size());
+	}
+
+	public void testNoGroups() throws Exception {
+		ProvisioningPipeline pipeline = new RecordingPipeline(1);
+		pipeline.start(new LinkedHashMap<String, Iterator<List<String>>>());
+		pipeline.await();
+		assertEquals(0, pipeline.getMemberships());
+	}
+
+	public void testFailureStopsThePipeline() throws Exception {
+		final AtomicInteger writes = new AtomicInteger();
+		ProvisioningPipeline pipeline = new ProvisioningPipeline("test", 1, 1, 1, 1) {
+			@Override
+			protected void ensureUsers(List<String> userIds) throws Exception {
+			}
+
+			@Override
+			protected void addMemberships(String groupId, List<String> memberIds) throws Exception {
+				writes.incrementAndGet();
+				throw new Exception("OAE is down");
+			}
+		};
+		Map<String, Iterator<List<String>>> groups = new LinkedHashMap<String, Iterator<List<String>>>();
+		groups.put("course1-student", pages("s", 1000, 2));
+		pipeline.start(groups);
+		try {
+			pipeline.await();
+			fail("The failure should be thrown");
+		}
+		catch (Exception e){
+			assertEquals("OAE is down", e.getMessage());
+		}
+		assertEquals(1, writes.get());
+		// The enumerator stopped instead of reading every page
+		assertTrue(pipeline.getPages() < 1000);
+	}
+
+	public void testStagesRunConcurrently() throws Exception {
+		// The first write waits for a page to be enumerated after it
+		final CountDownLatch laterPageRead = new CountDownLatch(1);
+		final AtomicInteger waited = new AtomicInteger();
+		ProvisioningPipeline pipeline = new ProvisioningPipeline("test", 1, 1, 1, 4) {
+			@Override
+			protected void ensureUsers(List<String> userIds) throws Exception {
+				if (userIds.contains("s-2-0")){
+					laterPageRead.countDown();
+				}
+			}
+
+			@Override
+			protected void addMemberships(String groupId, List<String> memberIds) throws Exception {
+				if (memberIds.contains("s-0-0") && laterPageRead.await(5, TimeUnit.SECONDS)){
+					waited.incrementAndGet();
+				}
+			}
+		};
+		Map<String, Iterator<List<String>>> groups = new LinkedHashMap<String, Iterator<List<String>>>();
+		groups.put("course1-student", pages("s", 3, 1));
+		pipeline.start(groups);
+		pipeline.await();
+		assertEquals(1, waited.get());
+		assertEquals(3, pipeline.getMemberships());
+	}
+}
@@ -0,0 +1,91 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.nakamura.grouper.changelog.util.RateGovernor.Operation;
+
+public class RateGovernorTestCase extends TestCase {
+
+	private long now;
+	private long slept;
+
+	private RateGovernor governor;
+
+	@Override
+	public void setUp(){
+		now = 100000;
+		slept = 0;
+		Map<Operation, Double> rates = new EnumMap<Operation, Double>(Operation.class);
+		rates.put(Operation.WORLD_CREATE, 2.0);
+		rates.put(Operation.READ, 0.0);
+		governor = new RateGovernor(rates, 1000){
+			@Override
+			protected long now(){
+				return now;
+			}
+			@Override
+			protected void sleep(long millis){
+				slept += millis;
+				now += millis;
+			}
+		};
+	}
+
+	public void testPacesInsteadOfDropping() throws InterruptedException {
+		// The first second's worth goes right away
+		governor.acquire(Operation.WORLD_CREATE);
+		governor.acquire(Operation.WORLD_CREATE);
+		assertEquals(0, slept);
+		// Then one every 500ms
+		governor.acquire(Operation.WORLD_CREATE);
+		assertEquals(500, slept);
+		governor.acquire(Operation.WORLD_CREATE);
+		assertEquals(1000, slept);
+		assertEquals(0, governor.getQueueDepth(Operation.WORLD_CREATE));
+	}
+
+	public void testUnlimitedOperations() throws InterruptedException {
+		for (int i = 0; i < 100; i++){
+			governor.acquire(Operation.READ);
+			governor.acquire(Operation.USER_CREATE);
+		}
+		assertEquals(0, slept);
+		assertEquals(0.0, governor.getCurrentRate(Operation.READ));
+	}
+
+	public void testTightensWhenSlowAndRecovers(){
+		governor.recordLatency(5000);
+		assertEquals(0.5, governor.getScale());
+		assertEquals(1.0, governor.getCurrentRate(Operation.WORLD_CREATE));
+
+		// Only adjusts once per interval
+		governor.recordLatency(5000);
+		assertEquals(0.5, governor.getScale());
+
+		for (int i = 0; i < 20; i++){
+			now += 1000;
+			governor.recordLatency(10);
+		}
+		assertEquals(1.0, governor.getScale());
+		assertEquals(2.0, governor.getCurrentRate(Operation.WORLD_CREATE));
+	}
+}
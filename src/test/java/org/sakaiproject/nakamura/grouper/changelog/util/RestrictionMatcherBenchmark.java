@@ -0,0 +1,106 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Compares checking every restriction pattern in turn to {@link RestrictionMatcher}
+ * with and without its stem cache.
+ *
+ * Not a unit test. Run it by hand with the test classpath:
+ *
+ * java org.sakaiproject.nakamura.grouper.changelog.util.RestrictionMatcherBenchmark [restrictions] [names]
+ */
+public class RestrictionMatcherBenchmark {
+
+	private static final String[] ROLES = new String[] { "students", "instructors", "TAs", "managers", "all" };
+
+	public static void main(String[] args){
+		int restrictionCount = (args.length > 0)? Integer.parseInt(args[0]) : 2000;
+		int nameCount = (args.length > 1)? Integer.parseInt(args[1]) : 100000;
+		Random random = new Random(42);
+
+		// Mostly literal prefixes with a few real regexes, like the COURSE_RESTRICTIONS table
+		List<String> restrictions = new ArrayList<String>();
+		for (int i = 0; i < restrictionCount; i++){
+			if (i % 100 == 99){
+				restrictions.add("edu:apps:sakaioae:provisioned:courses:FA11:DEPT" + i + ":[0-9]+:.*");
+			}
+			else {
+				restrictions.add("inst:sis:courses:FA11:DEPT" + i + ":.*");
+			}
+		}
+
+		// Each course shows up once per role, the way a batch of enrollments does
+		List<String> names = new ArrayList<String>();
+		while (names.size() < nameCount){
+			String stem = "inst:sis:courses:FA11:DEPT" + random.nextInt(restrictionCount * 2) + ":" + random.nextInt(500);
+			for (String role : ROLES){
+				names.add(stem + ":" + role);
+			}
+		}
+
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String restriction : restrictions){
+			patterns.add(Pattern.compile(restriction));
+		}
+
+		System.out.println(restrictionCount + " restrictions, " + names.size() + " names");
+		for (int round = 0; round < 2; round++){
+			long start = System.nanoTime();
+			int linear = 0;
+			for (String name : names){
+				for (Pattern pattern : patterns){
+					if (pattern.matcher(name).matches()){
+						linear++;
+					}
+				}
+			}
+			report("every pattern", start, names.size(), linear);
+
+			RestrictionMatcher uncached = new RestrictionMatcher(restrictions, 0);
+			start = System.nanoTime();
+			int matched = 0;
+			for (String name : names){
+				if (uncached.matches(name)){
+					matched++;
+				}
+			}
+			report("matcher, no cache", start, names.size(), matched);
+
+			RestrictionMatcher cached = new RestrictionMatcher(restrictions);
+			start = System.nanoTime();
+			matched = 0;
+			for (String name : names){
+				if (cached.matches(name)){
+					matched++;
+				}
+			}
+			report("matcher, stem cache", start, names.size(), matched);
+			System.out.println(cached);
+		}
+	}
+
+	private static void report(String name, long start, int count, int matched){
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-22s %10.3f us/name  matched=%d", name, elapsed / 1000.0 / count, matched));
+	}
+}
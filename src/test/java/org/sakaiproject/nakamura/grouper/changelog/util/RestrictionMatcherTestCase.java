@@ -0,0 +1,112 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class RestrictionMatcherTestCase extends TestCase {
+
+	private static final List<String> RESTRICTIONS = Arrays.asList(
+		"edu:apps:sakai:courses:FA11:SOMETHING.*",
+		"inst:sis:courses:.*",
+		"edu:apps:sakai:courses:FA11:SOMETHING:ELSE.*",
+		"edu:apps:sakai:exact:group",
+		"edu:apps:sakai:regex:[0-9]+:.*");
+
+	private static final String[] NAMES = new String[] {
+		"edu:apps:sakai:courses:FA11:SOMETHING:coursename:rolename",
+		"edu:apps:sakai:courses:FA11:SOMETHINGELSE:rolename",
+		"edu:apps:sakai:courses:FA11:OTHER:rolename",
+		"inst:sis:courses:FA11:MATH:students",
+		"inst:sis:courses",
+		"inst:sis",
+		"edu:apps:sakai:exact:group",
+		"edu:apps:sakai:exact:groups",
+		"edu:apps:sakai:regex:123:students",
+		"edu:apps:sakai:regex:abc:students",
+		"edu",
+		"",
+	};
+
+	/**
+	 * The answers have to be the same as checking every pattern.
+	 */
+	public void testSameAsEachPattern(){
+		for (int cacheSize : new int[] { 0, 100 }){
+			RestrictionMatcher matcher = new RestrictionMatcher(RESTRICTIONS, cacheSize);
+			// Twice so the second round comes from the cache
+			for (int round = 0; round < 2; round++){
+				for (String name : NAMES){
+					assertEquals(name, linear(RESTRICTIONS, name), matcher.matches(name));
+				}
+			}
+		}
+		assertFalse(new RestrictionMatcher(RESTRICTIONS).matches(null));
+	}
+
+	public void testCacheByStem(){
+		RestrictionMatcher matcher = new RestrictionMatcher(Arrays.asList("inst:sis:courses:.*", "inst:sis:exact"));
+		assertTrue(matcher.matches("inst:sis:courses:FA11:MATH:students"));
+		assertTrue(matcher.matches("inst:sis:courses:FA11:MATH:instructors"));
+		assertFalse(matcher.matches("inst:other:FA11:MATH:students"));
+		assertFalse(matcher.matches("inst:other:FA11:MATH:instructors"));
+		assertTrue(matcher.toString().contains("hits=2"));
+	}
+
+	public void testDontCacheWhenTheExtensionMatters(){
+		RestrictionMatcher matcher = new RestrictionMatcher(Arrays.asList("inst:sis:courses:FA11:MATH:stu.*"));
+		assertTrue(matcher.matches("inst:sis:courses:FA11:MATH:students"));
+		assertFalse(matcher.matches("inst:sis:courses:FA11:MATH:instructors"));
+		assertTrue(matcher.matches("inst:sis:courses:FA11:MATH:students"));
+
+		matcher = new RestrictionMatcher(Arrays.asList(".*:students"));
+		assertTrue(matcher.matches("inst:sis:courses:FA11:MATH:students"));
+		assertFalse(matcher.matches("inst:sis:courses:FA11:MATH:instructors"));
+	}
+
+	public void testEscapedLiterals(){
+		RestrictionMatcher matcher = new RestrictionMatcher(Arrays.asList("inst:sis\\.courses:.*", "inst:\\w+:x"), 0);
+		assertTrue(matcher.matches("inst:sis.courses:FA11:students"));
+		assertFalse(matcher.matches("inst:sisXcourses:FA11:students"));
+		assertTrue(matcher.matches("inst:abc:x"));
+	}
+
+	public void testManyRestrictions(){
+		List<String> restrictions = new ArrayList<String>();
+		for (int i = 0; i < 2000; i++){
+			restrictions.add("inst:sis:courses:FA11:DEPT" + i + ":.*");
+		}
+		RestrictionMatcher matcher = new RestrictionMatcher(restrictions);
+		assertEquals(2000, matcher.size());
+		assertTrue(matcher.matches("inst:sis:courses:FA11:DEPT1999:101:students"));
+		assertFalse(matcher.matches("inst:sis:courses:FA11:DEPT2000:101:students"));
+	}
+
+	private boolean linear(List<String> restrictions, String name){
+		for (String restriction : restrictions){
+			if (Pattern.compile(restriction).matcher(name).matches()){
+				return true;
+			}
+		}
+		return false;
+	}
+}
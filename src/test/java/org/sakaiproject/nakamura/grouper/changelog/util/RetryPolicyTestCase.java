@@ -0,0 +1,54 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+public class RetryPolicyTestCase extends TestCase {
+
+	public void testDelayDoublesWithJitter(){
+		RetryPolicy policy = new RetryPolicy(5, 100, 1000);
+		for (int i = 0; i < 100; i++){
+			long first = policy.getDelay(0);
+			assertTrue(first >= 50 && first <= 100);
+			long third = policy.getDelay(2);
+			assertTrue(third >= 200 && third <= 400);
+		}
+	}
+
+	public void testDelayIsCapped(){
+		RetryPolicy policy = new RetryPolicy(50, 100, 1000);
+		for (int i = 0; i < 100; i++){
+			long delay = policy.getDelay(40);
+			assertTrue(delay >= 500 && delay <= 1000);
+		}
+	}
+
+	public void testBackoffCountsTheWait() throws InterruptedException {
+		final long[] slept = new long[1];
+		RetryPolicy policy = new RetryPolicy(3, 100, 1000){
+			@Override
+			protected void sleep(long millis){
+				slept[0] += millis;
+			}
+		};
+		policy.backoff(0);
+		policy.backoff(1);
+		assertEquals(2, policy.getRetries());
+		assertEquals(slept[0], policy.getWaited());
+	}
+}
@@ -0,0 +1,105 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Stem;
+
+public class StemAttributeResolverTestCase extends TestCase {
+
+	private static final String ATTRIBUTE = "sakai:worldTemplatePath";
+
+	// stem name -> attribute value on that stem
+	private Map<String, String> values;
+	private Map<String, Integer> reads;
+	private StemAttributeResolver resolver;
+
+	private Stem root;
+	private Stem inst;
+	private Stem dept;
+	private Stem course1;
+	private Stem course2;
+
+	@Override
+	public void setUp(){
+		values = new HashMap<String, String>();
+		reads = new HashMap<String, Integer>();
+		resolver = new StemAttributeResolver(ATTRIBUTE){
+			@Override
+			protected String readStem(Stem stem){
+				Integer count = reads.get(stem.getName());
+				reads.put(stem.getName(), (count == null)? 1 : count + 1);
+				return values.get(stem.getName());
+			}
+		};
+		root = stem("", null);
+		inst = stem("inst", root);
+		dept = stem("inst:MATH", inst);
+		course1 = stem("inst:MATH:101", dept);
+		course2 = stem("inst:MATH:102", dept);
+	}
+
+	private Stem stem(String name, Stem parent){
+		Stem stem = mock(Stem.class);
+		when(stem.getName()).thenReturn(name);
+		when(stem.getParentStem()).thenReturn(parent);
+		when(stem.isRootStem()).thenReturn(parent == null);
+		return stem;
+	}
+
+	public void testInheritedFromTheParentStem(){
+		values.put("inst", "/var/templates/inst");
+		assertEquals("/var/templates/inst", resolver.resolve(course1));
+		assertEquals("/var/templates/inst", resolver.resolve(course2));
+		// The department and inst stems were only read once
+		assertEquals(Integer.valueOf(1), reads.get("inst:MATH"));
+		assertEquals(Integer.valueOf(1), reads.get("inst"));
+		assertNull(reads.get(""));
+	}
+
+	public void testNoValueIsRemembered(){
+		assertNull(resolver.resolve(course1));
+		assertNull(resolver.resolve(course2));
+		assertEquals(Integer.valueOf(1), reads.get(""));
+	}
+
+	public void testGroupValueWins(){
+		values.put("inst", "/var/templates/inst");
+		Group group = mock(Group.class);
+		when(group.getAttributeOrFieldValue(ATTRIBUTE, false, false)).thenReturn("/var/templates/group");
+		when(group.getParentStem()).thenReturn(course1);
+		assertEquals("/var/templates/group", resolver.resolve(group));
+		assertNull(reads.get("inst:MATH:101"));
+	}
+
+	public void testInvalidateTheStemAndBelow(){
+		values.put("inst", "/var/templates/inst");
+		assertEquals("/var/templates/inst", resolver.resolve(course1));
+		values.put("inst:MATH", "/var/templates/math");
+		assertEquals("/var/templates/inst", resolver.resolve(course1));
+		resolver.invalidate("inst:MATH");
+		assertEquals("/var/templates/math", resolver.resolve(course1));
+		assertEquals("/var/templates/math", resolver.resolve(course2));
+	}
+}
@@ -0,0 +1,81 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Classification;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Kind;
+import org.sakaiproject.nakamura.grouper.changelog.util.StemClassifier.Origin;
+
+public class StemClassifierTestCase extends TestCase {
+
+	private StemClassifier classifier;
+
+	@Override
+	public void setUp(){
+		classifier = new StemClassifier();
+		classifier.addStem("apps:sakaioae:adhoc:groups", Origin.ADHOC, Kind.COURSE);
+		classifier.addStem("apps:sakaioae:provisioned:simplegroups", Origin.PROVISIONED, Kind.SIMPLE);
+		classifier.addStem("inst:sis:groups", Origin.INSTITUTIONAL, Kind.COURSE);
+	}
+
+	public void testClassify(){
+		Classification c = classifier.classify("inst:sis:groups:FA11:MATH:students");
+		assertEquals(Origin.INSTITUTIONAL, c.origin);
+		assertEquals(Kind.COURSE, c.kind);
+		assertEquals("inst:sis:groups", c.stem);
+		assertEquals("FA11:MATH:students", c.remainder);
+
+		c = classifier.classify("apps:sakaioae:provisioned:simplegroups:some:group:members");
+		assertTrue(c.isProvisioned());
+		assertTrue(c.isSimple());
+		assertEquals("some:group:members", c.remainder);
+	}
+
+	public void testNoMatch(){
+		assertNull(classifier.classify(null));
+		assertNull(classifier.classify("other:stem:group"));
+		assertNull(classifier.classify("inst:sis"));
+		// The stem itself isn't a group in the stem
+		assertNull(classifier.classify("inst:sis:groups"));
+		// Only whole segments match
+		assertNull(classifier.classify("inst:sis:groupsX:FA11:students"));
+	}
+
+	public void testLongestStemWins(){
+		classifier.addStem("inst:sis", Origin.INSTITUTIONAL, Kind.SIMPLE);
+		assertEquals(Kind.COURSE, classifier.classify("inst:sis:groups:FA11:students").kind);
+		assertEquals(Kind.SIMPLE, classifier.classify("inst:sis:other:students").kind);
+	}
+
+	public void testManyStems(){
+		for (int i = 0; i < 1000; i++){
+			classifier.addStem("inst:campus" + i + ":groups", Origin.INSTITUTIONAL, Kind.COURSE);
+		}
+		assertEquals(1003, classifier.size());
+		assertEquals("inst:campus517:groups", classifier.classify("inst:campus517:groups:FA11:students").stem);
+	}
+
+	public void testRemoveStem(){
+		classifier.removeStem("inst:sis:groups:");
+		assertEquals(2, classifier.size());
+		assertNull(classifier.classify("inst:sis:groups:FA11:students"));
+		classifier.removeStem("not:a:stem");
+		assertEquals(2, classifier.size());
+	}
+}
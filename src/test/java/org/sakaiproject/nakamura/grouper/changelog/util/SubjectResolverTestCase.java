@@ -0,0 +1,74 @@
+/* Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.grouper.changelog.util;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+import junit.framework.TestCase;
+
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.internet2.middleware.grouper.SubjectFinder;
+import edu.internet2.middleware.subject.Subject;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = { SubjectFinder.class })
+public class SubjectResolverTestCase extends TestCase {
+
+	private SubjectResolver resolver;
+	private Subject user1;
+
+	public void setUp(){
+		mockStatic(SubjectFinder.class);
+		user1 = mock(Subject.class);
+		when(SubjectFinder.findByIdOrIdentifier("user1", false)).thenReturn(user1);
+		when(SubjectFinder.findByIdOrIdentifier("missing", false)).thenReturn(null);
+		resolver = new SubjectResolver();
+	}
+
+	public void testResolveOncePerBatch(){
+		assertEquals(1, resolver.resolveAll(ImmutableList.of("user1", "missing", "user1")));
+		assertSame(user1, resolver.find("user1"));
+		assertSame(user1, resolver.find("user1"));
+		verifyStatic(times(1));
+		SubjectFinder.findByIdOrIdentifier("user1", false);
+	}
+
+	public void testMissingIsNotRemembered(){
+		assertNull(resolver.find("missing"));
+		assertNull(resolver.find("missing"));
+		verifyStatic(times(2));
+		SubjectFinder.findByIdOrIdentifier("missing", false);
+	}
+
+	public void testClear(){
+		resolver.find("user1");
+		assertEquals(1, resolver.size());
+		resolver.clear();
+		assertEquals(0, resolver.size());
+		resolver.find("user1");
+		verifyStatic(times(2));
+		SubjectFinder.findByIdOrIdentifier("user1", false);
+	}
+}